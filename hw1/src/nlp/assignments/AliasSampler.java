@@ -0,0 +1,123 @@
+package nlp.assignments;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nlp.util.Counter;
+
+/**
+ * Samples from a fixed discrete distribution in constant time with Vose's
+ * alias method. Construction is linear in the number of outcomes; each
+ * sample reads one column of the table, picked together with the coin flip
+ * from a single uniform draw.
+ */
+final class AliasSampler<E> {
+
+	private final List<E> outcomes;
+	private final double[] probability;
+	private final int[] alias;
+
+	/**
+	 * Builds a sampler over the keys of a counter, weighted by their counts.
+	 * When the counts sum to less than one, the missing mass goes to
+	 * residualOutcome, as it did for the running-sum samplers this replaces.
+	 */
+	static AliasSampler<String> of(Counter<String> counter,
+			String residualOutcome) {
+		return of(counter, residualOutcome, null);
+	}
+
+	/**
+	 * As above, but never returns excludedOutcome: its count still counts
+	 * towards the total, and the samples are drawn conditioned on not
+	 * picking it.
+	 */
+	static AliasSampler<String> of(Counter<String> counter,
+			String residualOutcome, String excludedOutcome) {
+		List<String> outcomes = new ArrayList<String>(counter.size() + 1);
+		double[] weights = new double[counter.size() + 1];
+		double total = 0.0;
+		for (String word : counter.keySet()) {
+			double count = counter.getCount(word);
+			if (count > 0) {
+				total += count;
+				if (word.equals(excludedOutcome))
+					continue;
+				weights[outcomes.size()] = count;
+				outcomes.add(word);
+			}
+		}
+		if (total < 1.0) {
+			weights[outcomes.size()] = 1.0 - total;
+			outcomes.add(residualOutcome);
+		}
+		return new AliasSampler<String>(outcomes, weights);
+	}
+
+	/** Returns an outcome for a uniform draw in [0, 1). */
+	public E sample(double uniform) {
+		int n = probability.length;
+		double scaled = uniform * n;
+		int column = Math.min((int) scaled, n - 1);
+		return outcomes.get(scaled - column < probability[column] ? column
+				: alias[column]);
+	}
+
+	public int size() {
+		return probability.length;
+	}
+
+	/**
+	 * Builds the table for outcomes weighted by the first outcomes.size()
+	 * entries of weights, which must be non-negative with a positive sum.
+	 */
+	public AliasSampler(List<E> outcomes, double[] weights) {
+		int n = outcomes.size();
+		if (n == 0)
+			throw new IllegalArgumentException("No outcomes to sample");
+		double total = 0.0;
+		for (int i = 0; i < n; i++) {
+			total += weights[i];
+		}
+		if (!(total > 0))
+			throw new IllegalArgumentException("Weights must have a positive sum");
+		this.outcomes = outcomes;
+		this.probability = new double[n];
+		this.alias = new int[n];
+
+		double[] scaled = new double[n];
+		int[] small = new int[n];
+		int[] large = new int[n];
+		int numSmall = 0;
+		int numLarge = 0;
+		for (int i = 0; i < n; i++) {
+			scaled[i] = weights[i] * n / total;
+			if (scaled[i] < 1.0)
+				small[numSmall++] = i;
+			else
+				large[numLarge++] = i;
+		}
+		while (numSmall > 0 && numLarge > 0) {
+			int less = small[--numSmall];
+			int more = large[--numLarge];
+			probability[less] = scaled[less];
+			alias[less] = more;
+			scaled[more] = (scaled[more] + scaled[less]) - 1.0;
+			if (scaled[more] < 1.0)
+				small[numSmall++] = more;
+			else
+				large[numLarge++] = more;
+		}
+		// Whatever is left is 1 up to rounding error.
+		while (numLarge > 0) {
+			int i = large[--numLarge];
+			probability[i] = 1.0;
+			alias[i] = i;
+		}
+		while (numSmall > 0) {
+			int i = small[--numSmall];
+			probability[i] = 1.0;
+			alias[i] = i;
+		}
+	}
+}
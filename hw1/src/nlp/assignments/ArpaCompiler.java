@@ -0,0 +1,69 @@
+package nlp.assignments;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import nlp.util.CommandLineUtils;
+
+/**
+ * Compiles an ARPA back-off language model into the binary format read by
+ * BackoffNgramTable.Reader.map. To run it, use
+ * <p/>
+ * java nlp.assignments.ArpaCompiler -arpa MODEL.arpa -out MODEL.bin [-q BITS]
+ * [-b BITS] [-test SENTENCES_FILE]
+ * <p/>
+ * -q and -b quantize log probabilities and back-offs to 8- or 16-bit
+ * codebooks per order. With -test, the perplexity of the quantized model is
+ * reported next to that of the unquantized one. The resulting file can be
+ * passed to LanguageModelTester as the -sri model in place of the ARPA file.
+ */
+public class ArpaCompiler {
+
+	public static void main(String[] args) throws IOException {
+		Map<String, String> argMap = CommandLineUtils
+				.simpleCommandLineParser(args);
+		if (!argMap.containsKey("-arpa") || !argMap.containsKey("-out")) {
+			System.err.println("Usage: java nlp.assignments.ArpaCompiler "
+					+ "-arpa ARPA_FILE -out BINARY_FILE [-q BITS] [-b BITS] "
+					+ "[-test SENTENCES_FILE]");
+			System.exit(1);
+		}
+		int probabilityBits = NgramValues.FLOAT_BITS;
+		int backoffBits = NgramValues.FLOAT_BITS;
+		if (argMap.containsKey("-q")) {
+			probabilityBits = Integer.parseInt(argMap.get("-q"));
+		}
+		if (argMap.containsKey("-b")) {
+			backoffBits = Integer.parseInt(argMap.get("-b"));
+		}
+
+		long start = System.currentTimeMillis();
+		BackoffNgramTable table = BackoffNgramTable.Reader.readArpa(argMap
+				.get("-arpa"));
+		for (int n = 1; n <= table.getOrder(); n++) {
+			System.out.println(n + "-grams: " + table.size(n));
+		}
+		BackoffNgramTable compiled = table.quantize(probabilityBits,
+				backoffBits);
+		compiled.write(argMap.get("-out"));
+		System.out.println("Compiled " + argMap.get("-arpa") + " to "
+				+ argMap.get("-out") + " in "
+				+ (System.currentTimeMillis() - start) + " ms");
+
+		if (argMap.containsKey("-test")) {
+			Collection<List<String>> testSentences = Corpus
+					.read(argMap.get("-test"));
+			double perplexity = LanguageModelTester.calculatePerplexity(
+					new SriLanguageModel(table), testSentences);
+			double compiledPerplexity = LanguageModelTester
+					.calculatePerplexity(new SriLanguageModel(compiled),
+							testSentences);
+			System.out.println("Perplexity:           " + perplexity);
+			System.out.println("Compiled perplexity:  " + compiledPerplexity);
+			System.out.println("Delta:                "
+					+ (compiledPerplexity - perplexity));
+		}
+	}
+}
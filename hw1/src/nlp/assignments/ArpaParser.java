@@ -0,0 +1,405 @@
+package nlp.assignments;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Parses an ARPA file into a BackoffNgramTable using all cores. The header
+ * and the unigram section are read on the calling thread to build the
+ * vocabulary; the rest of the file is split into byte ranges on newline
+ * boundaries, and each range is parsed on a ForkJoinPool straight from a
+ * memory-mapped buffer into per-chunk NgramRecords. The order of an n-gram is
+ * taken from its word count, so chunks do not need to know which section they
+ * start in. Chunk records are concatenated per order and each order is
+ * sorted in parallel.
+ */
+class ArpaParser {
+
+	private static final int CHUNK_SIZE = 32 << 20;
+	private static final double LOG10_E = Math.log10(Math.E);
+	private static final String INF = "inf";
+	private static final String INFINITY = "infinity";
+	private static final double[] POWERS_OF_TEN = new double[23];
+
+	static {
+		POWERS_OF_TEN[0] = 1.0;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10.0;
+		}
+	}
+
+	private final String fileName;
+	private final ForkJoinPool pool;
+	private final Vocabulary vocabulary = new Vocabulary();
+	private int[] counts = new int[0];
+
+	public BackoffNgramTable parse() throws IOException {
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			long fileSize = channel.size();
+			BackoffNgramTable.NgramRecords unigrams = new BackoffNgramTable.NgramRecords(
+					1, 16);
+			long start = readHeaderAndUnigrams(channel, unigrams);
+			BackoffNgramTable.NgramRecords[] records = mergeChunks(
+					parseChunks(channel, start, fileSize), unigrams);
+			sortInParallel(records);
+			return BackoffNgramTable.Reader.build(vocabulary, records);
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Reads the \data\ counts and the unigram section, and returns the file
+	 * offset of the first line after it.
+	 */
+	private long readHeaderAndUnigrams(FileChannel channel,
+			BackoffNgramTable.NgramRecords unigrams) throws IOException {
+		ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+				Math.min(channel.size(), Integer.MAX_VALUE));
+		int limit = buffer.limit();
+		int section = -1;
+		int position = 0;
+		while (position < limit) {
+			int lineStart = position;
+			int lineEnd = lineEnd(buffer, lineStart, limit);
+			position = lineEnd + 1;
+			int end = trimCarriageReturn(buffer, lineStart, lineEnd);
+			if (end == lineStart)
+				continue;
+			if (buffer.get(lineStart) == '\\') {
+				String header = Vocabulary.decode(buffer, lineStart, end
+						- lineStart);
+				if (header.equals("\\data\\")) {
+					section = 0;
+				} else if (header.equals("\\1-grams:")) {
+					section = 1;
+				} else {
+					return lineStart;
+				}
+				continue;
+			}
+			if (section == 0) {
+				String line = Vocabulary.decode(buffer, lineStart, end
+						- lineStart);
+				if (line.startsWith("ngram ")) {
+					int equals = line.indexOf('=');
+					int order = Integer.parseInt(line.substring(6, equals)
+							.trim());
+					if (order > counts.length)
+						counts = Arrays.copyOf(counts, order);
+					counts[order - 1] = Integer.parseInt(line.substring(
+							equals + 1).trim());
+				}
+			} else if (section == 1) {
+				int tab = indexOf(buffer, lineStart, end, (byte) '\t');
+				if (tab == end) {
+					bug(buffer, lineStart, end);
+					continue;
+				}
+				int secondTab = indexOf(buffer, tab + 1, end, (byte) '\t');
+				String word = Vocabulary.decode(buffer, tab + 1, secondTab
+						- tab - 1);
+				int id = vocabulary.add(word);
+				if (id < unigrams.size) {
+					bug(buffer, lineStart, end);
+					continue;
+				}
+				float backoff = secondTab < end ? parseNaturalLog(buffer,
+						secondTab + 1, end) : 0.0f;
+				unigrams.add(new int[] { id }, parseNaturalLog(buffer,
+						lineStart, tab), backoff);
+			}
+		}
+		return limit;
+	}
+
+	private List<BackoffNgramTable.NgramRecords[]> parseChunks(
+			FileChannel channel, long start, long fileSize) throws IOException {
+		if (counts.length == 0)
+			throw new IOException("Missing \\data\\ header in " + fileName);
+		List<Callable<BackoffNgramTable.NgramRecords[]>> chunks = new ArrayList<Callable<BackoffNgramTable.NgramRecords[]>>();
+		long chunkSize = Math.max(1 << 20, Math.min(CHUNK_SIZE, (fileSize
+				- start) / (pool.getParallelism() * 4L) + 1));
+		long chunkStart = start;
+		while (chunkStart < fileSize) {
+			long chunkEnd = nextLineStart(channel, Math.min(fileSize,
+					chunkStart + chunkSize), fileSize);
+			chunks.add(new ChunkParser(channel, chunkStart, chunkEnd));
+			chunkStart = chunkEnd;
+		}
+		List<BackoffNgramTable.NgramRecords[]> results = new ArrayList<BackoffNgramTable.NgramRecords[]>();
+		try {
+			for (Future<BackoffNgramTable.NgramRecords[]> result : pool
+					.invokeAll(chunks)) {
+				results.add(result.get());
+			}
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while parsing " + fileName, e);
+		} catch (ExecutionException e) {
+			throw new IOException("Problem parsing " + fileName, e.getCause());
+		}
+		return results;
+	}
+
+	/** Returns the offset just past the first newline at or after position. */
+	private static long nextLineStart(FileChannel channel, long position,
+			long fileSize) throws IOException {
+		ByteBuffer probe = ByteBuffer.allocate(4096);
+		while (position < fileSize) {
+			probe.clear();
+			int read = channel.read(probe, position);
+			if (read <= 0)
+				break;
+			for (int i = 0; i < read; i++) {
+				if (probe.get(i) == '\n')
+					return position + i + 1;
+			}
+			position += read;
+		}
+		return fileSize;
+	}
+
+	private BackoffNgramTable.NgramRecords[] mergeChunks(
+			List<BackoffNgramTable.NgramRecords[]> chunkRecords,
+			BackoffNgramTable.NgramRecords unigrams) {
+		BackoffNgramTable.NgramRecords[] records = new BackoffNgramTable.NgramRecords[counts.length];
+		records[0] = unigrams;
+		for (int n = 1; n < counts.length; n++) {
+			int size = 0;
+			for (BackoffNgramTable.NgramRecords[] chunk : chunkRecords) {
+				size += chunk[n].size;
+			}
+			records[n] = new BackoffNgramTable.NgramRecords(n + 1, size);
+			for (BackoffNgramTable.NgramRecords[] chunk : chunkRecords) {
+				records[n].addAll(chunk[n]);
+			}
+			if (size != counts[n])
+				System.err.println("WARNING: header declares " + counts[n]
+						+ " " + (n + 1) + "-grams, read " + size);
+		}
+		return records;
+	}
+
+	private void sortInParallel(
+			final BackoffNgramTable.NgramRecords[] records) throws IOException {
+		List<Callable<Void>> sorts = new ArrayList<Callable<Void>>();
+		for (final BackoffNgramTable.NgramRecords orderRecords : records) {
+			sorts.add(new Callable<Void>() {
+				public Void call() {
+					orderRecords.sort();
+					return null;
+				}
+			});
+		}
+		try {
+			for (Future<Void> sort : pool.invokeAll(sorts)) {
+				sort.get();
+			}
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while sorting " + fileName, e);
+		} catch (ExecutionException e) {
+			throw new IOException("Problem sorting " + fileName, e.getCause());
+		}
+	}
+
+	/** Parses the n-grams of order two and up in one line-aligned range. */
+	private class ChunkParser implements
+			Callable<BackoffNgramTable.NgramRecords[]> {
+		final FileChannel channel;
+		final long start;
+		final long end;
+
+		public BackoffNgramTable.NgramRecords[] call() throws IOException {
+			int order = counts.length;
+			BackoffNgramTable.NgramRecords[] records = new BackoffNgramTable.NgramRecords[order];
+			for (int n = 0; n < order; n++) {
+				records[n] = new BackoffNgramTable.NgramRecords(n + 1, 1024);
+			}
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+					start, end - start);
+			int limit = buffer.limit();
+			int[] wordIds = new int[order];
+			int position = 0;
+			while (position < limit) {
+				int lineStart = position;
+				int lineEnd = lineEnd(buffer, lineStart, limit);
+				position = lineEnd + 1;
+				int lineLimit = trimCarriageReturn(buffer, lineStart, lineEnd);
+				if (lineLimit == lineStart || buffer.get(lineStart) == '\\')
+					continue;
+				int tab = indexOf(buffer, lineStart, lineLimit, (byte) '\t');
+				if (tab == lineLimit) {
+					bug(buffer, lineStart, lineLimit);
+					continue;
+				}
+				int secondTab = indexOf(buffer, tab + 1, lineLimit,
+						(byte) '\t');
+				int length = 0;
+				int wordStart = tab + 1;
+				boolean known = true;
+				while (wordStart < secondTab && length < order) {
+					int wordEnd = indexOf(buffer, wordStart, secondTab,
+							(byte) ' ');
+					int id = vocabulary.indexOf(buffer, wordStart, wordEnd
+							- wordStart);
+					known &= id != Vocabulary.NOT_FOUND;
+					wordIds[length++] = id;
+					wordStart = wordEnd + 1;
+				}
+				if (!known || length < 2 || wordStart < secondTab) {
+					bug(buffer, lineStart, lineLimit);
+					continue;
+				}
+				float backoff = secondTab < lineLimit ? parseNaturalLog(
+						buffer, secondTab + 1, lineLimit) : 0.0f;
+				records[length - 1].add(wordIds, parseNaturalLog(buffer,
+						lineStart, tab), backoff);
+			}
+			return records;
+		}
+
+		ChunkParser(FileChannel channel, long start, long end) {
+			this.channel = channel;
+			this.start = start;
+			this.end = end;
+		}
+	}
+
+	private static int lineEnd(ByteBuffer buffer, int from, int limit) {
+		return indexOf(buffer, from, limit, (byte) '\n');
+	}
+
+	private static int trimCarriageReturn(ByteBuffer buffer, int lineStart,
+			int lineEnd) {
+		if (lineEnd > lineStart && buffer.get(lineEnd - 1) == '\r')
+			return lineEnd - 1;
+		return lineEnd;
+	}
+
+	/** Returns the index of the first b in [from, limit), or limit. */
+	private static int indexOf(ByteBuffer buffer, int from, int limit, byte b) {
+		int i = from;
+		while (i < limit && buffer.get(i) != b)
+			i++;
+		return i;
+	}
+
+	private static void bug(ByteBuffer buffer, int from, int limit) {
+		System.err.println("BUG: " + Vocabulary.decode(buffer, from, limit
+				- from));
+	}
+
+	/**
+	 * Parses a decimal log10 value such as -1.234567 or -2.5e-05 directly
+	 * from the bytes and converts it to a natural log. The infinities some
+	 * toolkits write for zero probabilities, inf or -inf in any case, map to
+	 * the float infinities. Other forms fall back to Double.parseDouble, which
+	 * throws NumberFormatException for anything that is not a number.
+	 */
+	static float parseNaturalLog(ByteBuffer buffer, int from, int limit) {
+		int i = from;
+		boolean negative = false;
+		if (i < limit && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+			negative = buffer.get(i) == '-';
+			i++;
+		}
+		if (isInfinity(buffer, i, limit))
+			return negative ? Float.NEGATIVE_INFINITY : Float.POSITIVE_INFINITY;
+		long mantissa = 0;
+		int digits = 0;
+		int exponent = 0;
+		boolean seenDigit = false;
+		while (i < limit && isDigit(buffer.get(i))) {
+			seenDigit = true;
+			if (digits < 18) {
+				mantissa = mantissa * 10 + (buffer.get(i) - '0');
+				if (mantissa != 0)
+					digits++;
+			} else {
+				exponent++;
+			}
+			i++;
+		}
+		if (i < limit && buffer.get(i) == '.') {
+			i++;
+			while (i < limit && isDigit(buffer.get(i))) {
+				seenDigit = true;
+				if (digits < 18) {
+					mantissa = mantissa * 10 + (buffer.get(i) - '0');
+					if (mantissa != 0)
+						digits++;
+					exponent--;
+				}
+				i++;
+			}
+		}
+		if (seenDigit && i < limit && (buffer.get(i) == 'e' || buffer.get(i) == 'E')) {
+			i++;
+			boolean negativeExponent = false;
+			if (i < limit && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+				negativeExponent = buffer.get(i) == '-';
+				i++;
+			}
+			int explicitExponent = 0;
+			boolean seenExponentDigit = false;
+			while (i < limit && isDigit(buffer.get(i))) {
+				seenExponentDigit = true;
+				explicitExponent = Math.min(explicitExponent * 10
+						+ (buffer.get(i) - '0'), 10000);
+				i++;
+			}
+			if (!seenExponentDigit)
+				seenDigit = false;
+			exponent += negativeExponent ? -explicitExponent
+					: explicitExponent;
+		}
+		if (!seenDigit || i != limit) {
+			return (float) (Double.parseDouble(Vocabulary.decode(buffer, from,
+					limit - from)) / LOG10_E);
+		}
+		double value;
+		if (exponent >= 0 && exponent < POWERS_OF_TEN.length) {
+			value = mantissa * POWERS_OF_TEN[exponent];
+		} else if (exponent < 0 && -exponent < POWERS_OF_TEN.length) {
+			value = mantissa / POWERS_OF_TEN[-exponent];
+		} else {
+			value = mantissa * Math.pow(10.0, exponent);
+		}
+		if (negative)
+			value = -value;
+		return (float) (value / LOG10_E);
+	}
+
+	/** Returns true if [from, limit) spells inf or infinity, ignoring case. */
+	private static boolean isInfinity(ByteBuffer buffer, int from, int limit) {
+		int length = limit - from;
+		if (length != INF.length() && length != INFINITY.length())
+			return false;
+		for (int i = 0; i < length; i++) {
+			if (Character.toLowerCase((char) buffer.get(from + i)) != INFINITY
+					.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean isDigit(byte b) {
+		return b >= '0' && b <= '9';
+	}
+
+	public ArpaParser(String fileName, ForkJoinPool pool) {
+		this.fileName = fileName;
+		this.pool = pool;
+	}
+}
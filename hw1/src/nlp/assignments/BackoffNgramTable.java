@@ -0,0 +1,437 @@
+package nlp.assignments;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The n-grams of a back-off language model, stored per order as sorted
+ * arrays of word ids with parallel arrays of natural-log probabilities and
+ * back-off weights. Lookups binary search the records of one order.
+ * <p/>
+ * The same layout is used in the heap (after reading an ARPA file) and in
+ * the compiled binary format, which is memory-mapped section by section so
+ * that the model lives off-heap and is shared through the page cache:
+ * <p/>
+ * header: int MAGIC, int VERSION, int order, int vocabularySize, int count
+ * per order, and per order the bit width of its log probabilities and of its
+ * back-offs (32 for floats, 8 or 16 for codebook-quantized values, see
+ * NgramValues); then for each order n: int ids[count * n], the log
+ * probability column, and the back-off column for all but the highest order;
+ * finally the vocabulary as (int length, UTF-8 bytes) in id order.
+ */
+class BackoffNgramTable {
+
+	static final int MAGIC = 0x4E475242;
+	static final int VERSION = 2;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final Vocabulary vocabulary;
+	private final int order;
+	private final int[] counts;
+	private final IntBuffer[] ids;
+	private final NgramValues[] logProbabilities;
+	private final NgramValues[] backoffs;
+
+	public int getOrder() {
+		return order;
+	}
+
+	public Vocabulary getVocabulary() {
+		return vocabulary;
+	}
+
+	public int indexOf(String word) {
+		return vocabulary.indexOf(word);
+	}
+
+	/** Returns the number of n-grams of the given order. */
+	public int size(int length) {
+		return counts[length - 1];
+	}
+
+	/**
+	 * Returns the log probability of words[offset, offset + length), or NaN
+	 * if that n-gram is not in the model.
+	 */
+	public double getLogProbability(int[] words, int offset, int length) {
+		int record = find(words, offset, length);
+		if (record < 0)
+			return Double.NaN;
+		return logProbabilities[length - 1].get(record);
+	}
+
+	/**
+	 * Returns the back-off weight of words[offset, offset + length), or zero
+	 * if that n-gram is not in the model or is of the highest order.
+	 */
+	public double getBackoff(int[] words, int offset, int length) {
+		if (length >= order)
+			return 0.0;
+		int record = find(words, offset, length);
+		if (record < 0)
+			return 0.0;
+		return backoffs[length - 1].get(record);
+	}
+
+	private int find(int[] words, int offset, int length) {
+		if (length > order)
+			return -1;
+		if (length == 1) {
+			// Unigram records are exactly the vocabulary, in id order.
+			int word = words[offset];
+			return word >= 0 && word < counts[0] ? word : -1;
+		}
+		IntBuffer orderIds = ids[length - 1];
+		int low = 0;
+		int high = counts[length - 1] - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int comparison = compare(orderIds, middle, length, words, offset);
+			if (comparison < 0)
+				low = middle + 1;
+			else if (comparison > 0)
+				high = middle - 1;
+			else
+				return middle;
+		}
+		return -1;
+	}
+
+	private static int compare(IntBuffer orderIds, int record, int length,
+			int[] words, int offset) {
+		int base = record * length;
+		for (int i = 0; i < length; i++) {
+			int a = orderIds.get(base + i);
+			int b = words[offset + i];
+			if (a != b)
+				return a < b ? -1 : 1;
+		}
+		return 0;
+	}
+
+	/** Writes the table in the compiled binary format. */
+	public void write(String fileName) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(fileName), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(order);
+			out.writeInt(vocabulary.size());
+			for (int n = 0; n < order; n++) {
+				out.writeInt(counts[n]);
+			}
+			for (int n = 0; n < order; n++) {
+				out.writeInt(logProbabilities[n].getBits());
+				out.writeInt(n < order - 1 ? backoffs[n].getBits() : 0);
+			}
+			for (int n = 0; n < order; n++) {
+				int values = counts[n] * (n + 1);
+				for (int i = 0; i < values; i++) {
+					out.writeInt(ids[n].get(i));
+				}
+				logProbabilities[n].write(out, counts[n]);
+				if (n < order - 1)
+					backoffs[n].write(out, counts[n]);
+			}
+			for (int id = 0; id < vocabulary.size(); id++) {
+				byte[] bytes = vocabulary.get(id).getBytes(UTF8);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Returns a heap copy of this table whose log probabilities and back-offs
+	 * are quantized to the given widths per order; 32 keeps floats.
+	 */
+	public BackoffNgramTable quantize(int probabilityBits, int backoffBits) {
+		NgramValues[] quantizedProbabilities = new NgramValues[order];
+		NgramValues[] quantizedBackoffs = new NgramValues[order];
+		for (int n = 0; n < order; n++) {
+			quantizedProbabilities[n] = quantize(logProbabilities[n],
+					counts[n], probabilityBits);
+			if (n < order - 1)
+				quantizedBackoffs[n] = quantize(backoffs[n], counts[n],
+						backoffBits);
+		}
+		return new BackoffNgramTable(vocabulary, counts, ids,
+				quantizedProbabilities, quantizedBackoffs);
+	}
+
+	private static NgramValues quantize(NgramValues values, int size, int bits) {
+		if (bits == NgramValues.FLOAT_BITS)
+			return values;
+		return NgramValues.quantize(values, size, bits);
+	}
+
+	BackoffNgramTable(Vocabulary vocabulary, int[] counts, IntBuffer[] ids,
+			NgramValues[] logProbabilities, NgramValues[] backoffs) {
+		this.vocabulary = vocabulary;
+		this.order = counts.length;
+		this.counts = counts;
+		this.ids = ids;
+		this.logProbabilities = logProbabilities;
+		this.backoffs = backoffs;
+	}
+
+	static class Reader {
+
+		/** Returns true if the file starts with the compiled-format magic. */
+		public static boolean isBinary(String fileName) throws IOException {
+			DataInputStream in = new DataInputStream(new FileInputStream(
+					fileName));
+			try {
+				return in.readInt() == MAGIC;
+			} catch (IOException e) {
+				return false;
+			} finally {
+				in.close();
+			}
+		}
+
+		/**
+		 * Memory-maps a compiled table. Each array is mapped as its own
+		 * read-only section, so only the vocabulary is copied into the heap.
+		 */
+		public static BackoffNgramTable map(String fileName)
+				throws IOException {
+			RandomAccessFile file = new RandomAccessFile(fileName, "r");
+			try {
+				FileChannel channel = file.getChannel();
+				if (file.readInt() != MAGIC)
+					throw new IOException("Not a compiled n-gram file: "
+							+ fileName);
+				int version = file.readInt();
+				if (version != 1 && version != VERSION)
+					throw new IOException("Unsupported n-gram file version "
+							+ version + ": " + fileName);
+				int order = file.readInt();
+				int vocabularySize = file.readInt();
+				int[] counts = new int[order];
+				for (int n = 0; n < order; n++) {
+					counts[n] = file.readInt();
+				}
+				// Version 1 files predate quantization and hold only floats.
+				int[] probabilityBits = new int[order];
+				int[] backoffBits = new int[order];
+				for (int n = 0; n < order; n++) {
+					probabilityBits[n] = version == 1 ? NgramValues.FLOAT_BITS
+							: file.readInt();
+					backoffBits[n] = version == 1 ? NgramValues.FLOAT_BITS
+							: file.readInt();
+				}
+				long position = file.getFilePointer();
+				IntBuffer[] ids = new IntBuffer[order];
+				NgramValues[] logProbabilities = new NgramValues[order];
+				NgramValues[] backoffs = new NgramValues[order];
+				for (int n = 0; n < order; n++) {
+					String section = (n + 1) + "-gram ";
+					long size = 4L * counts[n] * (n + 1);
+					ids[n] = map(channel, position, size, section + "ids",
+							fileName).asIntBuffer();
+					position += size;
+					logProbabilities[n] = NgramValues.map(channel, position,
+							counts[n], probabilityBits[n], section
+									+ "log probabilities", fileName);
+					position += NgramValues.byteSize(counts[n],
+							probabilityBits[n]);
+					if (n < order - 1) {
+						backoffs[n] = NgramValues.map(channel, position,
+								counts[n], backoffBits[n], section
+										+ "back-offs", fileName);
+						position += NgramValues.byteSize(counts[n],
+								backoffBits[n]);
+					}
+				}
+				ByteBuffer words = map(channel, position, channel.size()
+						- position, "vocabulary", fileName);
+				Vocabulary vocabulary = new Vocabulary();
+				for (int id = 0; id < vocabularySize; id++) {
+					byte[] bytes = new byte[words.getInt()];
+					words.get(bytes);
+					vocabulary.add(new String(bytes, UTF8));
+				}
+				return new BackoffNgramTable(vocabulary, counts, ids,
+						logProbabilities, backoffs);
+			} finally {
+				file.close();
+			}
+		}
+
+		/**
+		 * Maps one section of a compiled file. A section is addressed by int
+		 * indices and so must fit in a single mapping of at most 2GB; a
+		 * larger one is reported by name rather than left to fail inside
+		 * FileChannel.map().
+		 */
+		static ByteBuffer map(FileChannel channel, long position, long size,
+				String section, String fileName) throws IOException {
+			if (size > Integer.MAX_VALUE)
+				throw new IOException("The " + section + " section of "
+						+ fileName + " is " + size
+						+ " bytes, more than a single mapping can hold ("
+						+ Integer.MAX_VALUE + " bytes)");
+			return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+		}
+
+		/**
+		 * Reads an ARPA file into a heap table, parsing it in parallel on all
+		 * cores. Log10 values are converted to natural logs; n-grams over
+		 * words missing from the unigram section are reported and skipped.
+		 */
+		public static BackoffNgramTable readArpa(String fileName)
+				throws IOException {
+			ForkJoinPool pool = new ForkJoinPool();
+			try {
+				return new ArpaParser(fileName, pool).parse();
+			} finally {
+				pool.shutdown();
+			}
+		}
+
+		static BackoffNgramTable build(Vocabulary vocabulary,
+				NgramRecords[] records) {
+			int order = records.length;
+			int[] counts = new int[order];
+			IntBuffer[] ids = new IntBuffer[order];
+			NgramValues[] logProbabilities = new NgramValues[order];
+			NgramValues[] backoffs = new NgramValues[order];
+			for (int n = 0; n < order; n++) {
+				NgramRecords orderRecords = records[n];
+				orderRecords.sort();
+				counts[n] = orderRecords.size;
+				ids[n] = IntBuffer.wrap(orderRecords.ids, 0, counts[n]
+						* (n + 1)).slice();
+				logProbabilities[n] = NgramValues.of(FloatBuffer.wrap(
+						orderRecords.logProbabilities, 0, counts[n]).slice());
+				if (n < order - 1)
+					backoffs[n] = NgramValues.of(FloatBuffer.wrap(
+							orderRecords.backoffs, 0, counts[n]).slice());
+			}
+			return new BackoffNgramTable(vocabulary, counts, ids,
+					logProbabilities, backoffs);
+		}
+	}
+
+	/** Growable parallel arrays holding the n-grams of one order. */
+	static class NgramRecords {
+		final int length;
+		int size;
+		boolean sorted;
+		int[] ids;
+		float[] logProbabilities;
+		float[] backoffs;
+
+		void add(int[] wordIds, float logProbability, float backoff) {
+			if (size == logProbabilities.length) {
+				int capacity = size * 2;
+				ids = Arrays.copyOf(ids, capacity * length);
+				logProbabilities = Arrays.copyOf(logProbabilities, capacity);
+				backoffs = Arrays.copyOf(backoffs, capacity);
+			}
+			System.arraycopy(wordIds, 0, ids, size * length, length);
+			logProbabilities[size] = logProbability;
+			backoffs[size] = backoff;
+			size++;
+			sorted = false;
+		}
+
+		void addAll(NgramRecords other) {
+			if (size + other.size > logProbabilities.length) {
+				int capacity = Math.max(size * 2, size + other.size);
+				ids = Arrays.copyOf(ids, capacity * length);
+				logProbabilities = Arrays.copyOf(logProbabilities, capacity);
+				backoffs = Arrays.copyOf(backoffs, capacity);
+			}
+			System.arraycopy(other.ids, 0, ids, size * length, other.size
+					* length);
+			System.arraycopy(other.logProbabilities, 0, logProbabilities,
+					size, other.size);
+			System.arraycopy(other.backoffs, 0, backoffs, size, other.size);
+			size += other.size;
+			sorted = false;
+		}
+
+		/** Sorts the records lexicographically by their word ids. */
+		void sort() {
+			if (sorted)
+				return;
+			int[] permutation = new int[size];
+			for (int i = 0; i < size; i++) {
+				permutation[i] = i;
+			}
+			mergeSort(permutation, new int[size], 0, size);
+			int[] sortedIds = new int[size * length];
+			float[] sortedLogProbabilities = new float[size];
+			float[] sortedBackoffs = new float[size];
+			for (int i = 0; i < size; i++) {
+				int record = permutation[i];
+				System.arraycopy(ids, record * length, sortedIds, i * length,
+						length);
+				sortedLogProbabilities[i] = logProbabilities[record];
+				sortedBackoffs[i] = backoffs[record];
+			}
+			ids = sortedIds;
+			logProbabilities = sortedLogProbabilities;
+			backoffs = sortedBackoffs;
+			sorted = true;
+		}
+
+		private void mergeSort(int[] permutation, int[] scratch, int from,
+				int to) {
+			if (to - from < 2)
+				return;
+			int middle = (from + to) >>> 1;
+			mergeSort(permutation, scratch, from, middle);
+			mergeSort(permutation, scratch, middle, to);
+			if (compare(permutation[middle - 1], permutation[middle]) <= 0)
+				return;
+			System.arraycopy(permutation, from, scratch, from, to - from);
+			int left = from;
+			int right = middle;
+			for (int i = from; i < to; i++) {
+				if (right >= to
+						|| (left < middle && compare(scratch[left],
+								scratch[right]) <= 0))
+					permutation[i] = scratch[left++];
+				else
+					permutation[i] = scratch[right++];
+			}
+		}
+
+		private int compare(int first, int second) {
+			int a = first * length;
+			int b = second * length;
+			for (int i = 0; i < length; i++) {
+				if (ids[a + i] != ids[b + i])
+					return ids[a + i] < ids[b + i] ? -1 : 1;
+			}
+			return 0;
+		}
+
+		NgramRecords(int length, int capacity) {
+			capacity = Math.max(capacity, 1);
+			this.length = length;
+			this.ids = new int[capacity * length];
+			this.logProbabilities = new float[capacity];
+			this.backoffs = new float[capacity];
+		}
+	}
+}
@@ -0,0 +1,199 @@
+package nlp.assignments;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * A sentence file read once into memory. Every token becomes an id of the
+ * corpus vocabulary in a single int array, and sentence i is the range
+ * tokens[offsets[i], offsets[i + 1]). Sentences are handed out as read-only
+ * list views over that range, so passes over the corpus scan memory
+ * instead of re-reading and re-tokenizing the file. The text is tokenized
+ * by a MappedTokenScanner, split on whitespace and lowercased as
+ * the harness always has, and only a word's first occurrence creates a
+ * String.
+ * <p/>
+ * read() can also keep a binary cache of the arrays next to the text file,
+ * named after it with a ".corpus" suffix. The cache records the length and
+ * modification time of the text it was built from, and is rebuilt when
+ * they no longer match.
+ */
+class Corpus extends AbstractList<List<String>> implements RandomAccess {
+
+	static final int MAGIC = 0x434F5250;
+	static final int VERSION = 1;
+	static final String CACHE_SUFFIX = ".corpus";
+
+	private static final int STREAM_BUFFER = 1 << 16;
+
+	private final Vocabulary vocabulary;
+	private final int[] tokens;
+	private final int[] offsets;
+	private final int numSentences;
+
+	public static Corpus read(String fileName) throws IOException {
+		return read(fileName, false);
+	}
+
+	/**
+	 * Reads a sentence file, using and refreshing its binary cache if
+	 * useCache is set.
+	 */
+	public static Corpus read(String fileName, boolean useCache)
+			throws IOException {
+		File text = new File(fileName);
+		File cache = new File(fileName + CACHE_SUFFIX);
+		if (useCache && cache.exists()) {
+			Corpus corpus = readCache(cache, text);
+			if (corpus != null)
+				return corpus;
+		}
+		Corpus corpus = readText(text);
+		if (useCache)
+			corpus.writeCache(cache, text);
+		return corpus;
+	}
+
+	private static Corpus readText(File text) throws IOException {
+		Vocabulary vocabulary = new Vocabulary();
+		int[] tokens = new int[1024];
+		int[] offsets = new int[256];
+		int numTokens = 0;
+		int numSentences = 0;
+		MappedTokenScanner scanner = MappedTokenScanner.open(text.getPath());
+		while (scanner.nextLine()) {
+			while (scanner.nextToken()) {
+				if (numTokens == tokens.length)
+					tokens = Arrays.copyOf(tokens, tokens.length * 2);
+				tokens[numTokens++] = scanner.addLowerCaseToken(vocabulary);
+			}
+			if (numSentences + 1 >= offsets.length)
+				offsets = Arrays.copyOf(offsets, offsets.length * 2);
+			offsets[++numSentences] = numTokens;
+		}
+		return new Corpus(vocabulary, Arrays.copyOf(tokens, numTokens), Arrays
+				.copyOf(offsets, numSentences + 1), numSentences);
+	}
+
+	/** Returns the cached corpus, or null if the cache is stale. */
+	private static Corpus readCache(File cache, File text) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(cache), STREAM_BUFFER));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				return null;
+			if (in.readLong() != text.length()
+					|| in.readLong() != text.lastModified())
+				return null;
+			int vocabularySize = in.readInt();
+			Vocabulary vocabulary = new Vocabulary();
+			for (int id = 0; id < vocabularySize; id++) {
+				vocabulary.add(in.readUTF());
+			}
+			int numSentences = in.readInt();
+			int[] offsets = new int[numSentences + 1];
+			for (int i = 0; i <= numSentences; i++) {
+				offsets[i] = in.readInt();
+			}
+			int[] tokens = new int[offsets[numSentences]];
+			for (int i = 0; i < tokens.length; i++) {
+				tokens[i] = in.readInt();
+			}
+			return new Corpus(vocabulary, tokens, offsets, numSentences);
+		} finally {
+			in.close();
+		}
+	}
+
+	private void writeCache(File cache, File text) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(cache), STREAM_BUFFER));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(text.length());
+			out.writeLong(text.lastModified());
+			out.writeInt(vocabulary.size());
+			for (int id = 0; id < vocabulary.size(); id++) {
+				out.writeUTF(vocabulary.get(id));
+			}
+			out.writeInt(numSentences);
+			for (int i = 0; i <= numSentences; i++) {
+				out.writeInt(offsets[i]);
+			}
+			for (int i = 0; i < offsets[numSentences]; i++) {
+				out.writeInt(tokens[i]);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	public Vocabulary getVocabulary() {
+		return vocabulary;
+	}
+
+	public int getNumTokens() {
+		return offsets[numSentences];
+	}
+
+	public int getSentenceLength(int sentence) {
+		return offsets[sentence + 1] - offsets[sentence];
+	}
+
+	/** Returns the vocabulary id of a token of a sentence. */
+	public int getTokenId(int sentence, int position) {
+		return tokens[offsets[sentence] + position];
+	}
+
+	public List<String> get(int sentence) {
+		if (sentence < 0 || sentence >= numSentences)
+			throw new IndexOutOfBoundsException("Sentence " + sentence
+					+ " of " + numSentences);
+		return new SentenceView(offsets[sentence], offsets[sentence + 1]);
+	}
+
+	public int size() {
+		return numSentences;
+	}
+
+	private class SentenceView extends AbstractList<String> implements
+			RandomAccess {
+		private final int start;
+		private final int end;
+
+		public String get(int position) {
+			if (position < 0 || position >= end - start)
+				throw new IndexOutOfBoundsException("Token " + position
+						+ " of " + (end - start));
+			return vocabulary.get(tokens[start + position]);
+		}
+
+		public int size() {
+			return end - start;
+		}
+
+		SentenceView(int start, int end) {
+			this.start = start;
+			this.end = end;
+		}
+	}
+
+	private Corpus(Vocabulary vocabulary, int[] tokens, int[] offsets,
+			int numSentences) {
+		this.vocabulary = vocabulary;
+		this.tokens = tokens;
+		this.offsets = offsets;
+		this.numSentences = numSentences;
+	}
+}
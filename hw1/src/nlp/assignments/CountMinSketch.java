@@ -0,0 +1,99 @@
+package nlp.assignments;
+
+/**
+ * A count-min sketch over primitive long keys: depth rows of width counters,
+ * each row indexed by its own hash of the key. An estimate is the minimum of
+ * the key's counters, so it never undercounts, and overcounts only through
+ * collisions. Updates are conservative: a row is raised only as far as the
+ * new estimate, which keeps counters shared with heavier keys from growing
+ * further.
+ * <p/>
+ * Keys carry a small tag (the n-gram order) so that different kinds of key
+ * can share one sketch even where their packed values coincide.
+ */
+class CountMinSketch {
+
+	private final int width;
+	private final int depth;
+	private final int[] counters;
+	private final long[] seeds;
+
+	/** Returns a width that fits depth rows of int counters in about bytes. */
+	static int widthForBudget(long bytes, int depth) {
+		long width = bytes / (4L * depth);
+		if (width < 1 || width > Integer.MAX_VALUE / depth)
+			throw new IllegalArgumentException("Bad memory budget: " + bytes);
+		return (int) width;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	/** Returns the memory held by the counters, in bytes. */
+	public long getMemoryBytes() {
+		return 4L * counters.length;
+	}
+
+	public int get(long key, int tag) {
+		int estimate = Integer.MAX_VALUE;
+		for (int row = 0; row < depth; row++) {
+			estimate = Math.min(estimate, counters[index(key, tag, row)]);
+		}
+		return estimate;
+	}
+
+	public void add(long key, int tag, int amount) {
+		int[] cells = new int[depth];
+		int estimate = Integer.MAX_VALUE;
+		for (int row = 0; row < depth; row++) {
+			cells[row] = index(key, tag, row);
+			estimate = Math.min(estimate, counters[cells[row]]);
+		}
+		long raised = (long) estimate + amount;
+		int target = raised > Integer.MAX_VALUE ? Integer.MAX_VALUE
+				: (int) raised;
+		for (int row = 0; row < depth; row++) {
+			if (counters[cells[row]] < target)
+				counters[cells[row]] = target;
+		}
+	}
+
+	/**
+	 * The tag is added to the row's hash of the key and mixed again, rather
+	 * than xored into spare key bits, which packed trigrams do not have. Two
+	 * keys of different tags then meet in a row only by that row's own
+	 * collision, not in every row at once.
+	 */
+	private int index(long key, int tag, int row) {
+		long h = mix(mix(key ^ seeds[row]) + tag);
+		return row * width + (int) ((h >>> 1) % width);
+	}
+
+	private static long mix(long h) {
+		h *= 0x9E3779B97F4A7C15L;
+		h ^= h >>> 31;
+		h *= 0xBF58476D1CE4E5B9L;
+		h ^= h >>> 29;
+		return h;
+	}
+
+	public CountMinSketch(int width, int depth) {
+		if (width < 1 || depth < 1 || (long) width * depth > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Bad sketch size: " + width
+					+ " x " + depth);
+		this.width = width;
+		this.depth = depth;
+		this.counters = new int[width * depth];
+		this.seeds = new long[depth];
+		long seed = 0x2545F4914F6CDD1DL;
+		for (int row = 0; row < depth; row++) {
+			seed = seed * 6364136223846793005L + 1442695040888963407L;
+			seeds[row] = seed;
+		}
+	}
+}
@@ -0,0 +1,253 @@
+package nlp.assignments;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * A trigram stupid-backoff model whose bigram and trigram counts live in a
+ * CountMinSketch of fixed size, for corpora whose n-grams do not fit in
+ * exact tables. Only the vocabulary and the unigram counts are exact.
+ * <p/>
+ * Counting takes the same path as EmpiricalTrigramLanguageModel: sentences
+ * go through NgramCounts in batches of BATCH_SENTENCES, and each batch's
+ * exact counts are then added to the sketch, so the exact tables never hold
+ * more than one batch.
+ * <p/>
+ * The scores are those of NgramSmoothing.StupidBackoff on the same data:
+ * the relative frequency of the longest n-gram seen, times ALPHA per order
+ * backed off from a seen context. Since the sketch only overcounts, unseen
+ * n-grams may get a small positive count and seen ones a slightly larger
+ * one; with a large enough sketch the scores match the exact model.
+ */
+class CountMinSketchLanguageModel implements IncrementalLanguageModel,
+		FrozenLanguageModel.Freezable {
+
+	static final String START = "<S>";
+	static final String STOP = "</S>";
+	static final String UNKNOWN = "*UNKNOWN*";
+	static final double ALPHA = 0.4;
+	static final int BATCH_SENTENCES = 10000;
+
+	private static final int BIGRAM = 2;
+	private static final int TRIGRAM = 3;
+
+	Vocabulary vocabulary = new Vocabulary();
+	double[] unigramCounts = new double[16];
+	// Tokens that are predicted (words and STOP), and sentences seen; the
+	// latter is the number of times START is a bigram context.
+	double numPredictedTokens;
+	int numSentences;
+	final CountMinSketch sketch;
+	volatile boolean frozen;
+
+	public CountMinSketch getSketch() {
+		return sketch;
+	}
+
+	public void updateCounters(Collection<List<String>> sentenceCollection) {
+		if (frozen)
+			throw new IllegalStateException("Model is frozen");
+		List<List<String>> batch = new ArrayList<List<String>>(
+				BATCH_SENTENCES);
+		for (List<String> sentence : sentenceCollection) {
+			batch.add(sentence);
+			if (batch.size() == BATCH_SENTENCES) {
+				addCounts(NgramCounts.count(batch, 3, vocabulary));
+				batch.clear();
+			}
+		}
+		if (!batch.isEmpty())
+			addCounts(NgramCounts.count(batch, 3, vocabulary));
+	}
+
+	public void freeze() {
+		frozen = true;
+	}
+
+	private void addCounts(NgramCounts counts) {
+		counts.checkOrder(3);
+		if (unigramCounts.length < vocabulary.size()) {
+			double[] grown = new double[Math.max(vocabulary.size(),
+					unigramCounts.length * 2)];
+			System.arraycopy(unigramCounts, 0, grown, 0, unigramCounts.length);
+			unigramCounts = grown;
+		}
+		int startId = vocabulary.indexOf(START);
+		for (int id = 0; id < vocabulary.size(); id++) {
+			double count = counts.getUnigramCount(id);
+			unigramCounts[id] += count;
+			if (id != startId)
+				numPredictedTokens += count;
+		}
+		numSentences += counts.getSentenceCount();
+		LongDoubleHashMap bigramCounts = counts.getBigramCounts();
+		for (long key : bigramCounts.keys()) {
+			sketch.add(NgramKeys.pack(NgramKeys.first(key), NgramKeys
+					.second(key), 0), BIGRAM, (int) bigramCounts.get(key));
+		}
+		LongDoubleHashMap trigramCounts = counts.getTrigramCounts();
+		for (long key : trigramCounts.keys()) {
+			sketch.add(key, TRIGRAM, (int) trigramCounts.get(key));
+		}
+	}
+
+	/**
+	 * Bigram keys use the trigram layout with an empty last field, so every
+	 * key in the sketch packs ids the same way.
+	 */
+	private double getBigramCount(int previousId, int wordId) {
+		if (previousId == Vocabulary.NOT_FOUND || wordId == Vocabulary.NOT_FOUND)
+			return 0.0;
+		return sketch.get(NgramKeys.pack(previousId, wordId, 0), BIGRAM);
+	}
+
+	private double getTrigramCount(int prePreviousId, int previousId,
+			int wordId) {
+		if (prePreviousId == Vocabulary.NOT_FOUND
+				|| previousId == Vocabulary.NOT_FOUND
+				|| wordId == Vocabulary.NOT_FOUND)
+			return 0.0;
+		return sketch.get(NgramKeys.pack(prePreviousId, previousId, wordId),
+				TRIGRAM);
+	}
+
+	/** c(previous .): START opens each sentence once as a bigram context. */
+	private double getContextCount(int previousId) {
+		if (previousId == Vocabulary.NOT_FOUND)
+			return 0.0;
+		if (previousId == vocabulary.indexOf(START))
+			return numSentences;
+		return unigramCounts[previousId];
+	}
+
+	/** P(w) with a single fictitious count shared by unknown words. */
+	private double getUnigramProbability(int wordId) {
+		double count = wordId == Vocabulary.NOT_FOUND ? 0.0
+				: unigramCounts[wordId];
+		return (count == 0 ? 1.0 : count) / (numPredictedTokens + 1.0);
+	}
+
+	double getTrigramScore(int prePreviousId, int previousId, int wordId) {
+		double scale = 1.0;
+		// The trigram context (prePrevious previous) is itself a bigram.
+		double contextCount = getBigramCount(prePreviousId, previousId);
+		if (contextCount > 0) {
+			double count = getTrigramCount(prePreviousId, previousId, wordId);
+			if (count > 0)
+				return Math.min(count / contextCount, 1.0);
+			scale *= ALPHA;
+		}
+		contextCount = getContextCount(previousId);
+		if (contextCount > 0) {
+			double count = getBigramCount(previousId, wordId);
+			if (count > 0)
+				return scale * Math.min(count / contextCount, 1.0);
+			scale *= ALPHA;
+		}
+		return scale * getUnigramProbability(wordId);
+	}
+
+	public double getSentenceProbability(List<String> sentence) {
+		return Math.exp(getSentenceLogProbability(sentence));
+	}
+
+	public double getSentenceLogProbability(List<String> sentence) {
+		return scoreSentence(sentence, null);
+	}
+
+	public double[] getWordLogProbabilities(List<String> sentence) {
+		double[] wordLogProbabilities = new double[sentence.size() + 1];
+		scoreSentence(sentence, wordLogProbabilities);
+		return wordLogProbabilities;
+	}
+
+	private double scoreSentence(List<String> sentence,
+			double[] wordLogProbabilities) {
+		double logProbability = 0.0;
+		int startId = vocabulary.indexOf(START);
+		int prePreviousId = startId;
+		int previousId = startId;
+		for (int i = 0; i <= sentence.size(); i++) {
+			int wordId = vocabulary.indexOf(i < sentence.size() ? sentence
+					.get(i) : STOP);
+			double wordLogProbability = Math.log(getTrigramScore(
+					prePreviousId, previousId, wordId));
+			if (wordLogProbabilities != null)
+				wordLogProbabilities[i] = wordLogProbability;
+			logProbability += wordLogProbability;
+			prePreviousId = previousId;
+			previousId = wordId;
+		}
+		return logProbability;
+	}
+
+	/** The state context packs the ids of the last two words. */
+	public LanguageModelState getInitialState() {
+		int startId = vocabulary.indexOf(START);
+		return new LanguageModelState(NgramKeys.pack(startId, startId), null,
+				0.0);
+	}
+
+	public LanguageModelState score(LanguageModelState state, String word) {
+		int wordId = vocabulary.indexOf(word);
+		int previousId = NgramKeys.second(state.context);
+		double logProbability = Math.log(getTrigramScore(
+				NgramKeys.first(state.context), previousId, wordId));
+		return new LanguageModelState(NgramKeys.pack(previousId, wordId), null,
+				logProbability);
+	}
+
+	public double getFinalLogProbability(LanguageModelState state) {
+		return Math.log(getTrigramScore(NgramKeys.first(state.context),
+				NgramKeys.second(state.context), vocabulary.indexOf(STOP)));
+	}
+
+	/**
+	 * Samples from the scores renormalized over the vocabulary. The sketch
+	 * keeps no list of followers, so each word costs a pass over it.
+	 */
+	String generateWord(int prePreviousId, int previousId,
+			SplittableRandom random) {
+		int startId = vocabulary.indexOf(START);
+		double[] scores = new double[vocabulary.size()];
+		double sum = 0.0;
+		for (int wordId = 0; wordId < scores.length; wordId++) {
+			if (wordId != startId) {
+				scores[wordId] = getTrigramScore(prePreviousId, previousId,
+						wordId);
+				sum += scores[wordId];
+			}
+		}
+		double sample = random.nextDouble() * sum;
+		for (int wordId = 0; wordId < scores.length; wordId++) {
+			sample -= scores[wordId];
+			if (sample < 0 && scores[wordId] > 0)
+				return vocabulary.get(wordId);
+		}
+		return STOP;
+	}
+
+	public List<String> generateSentence() {
+		SplittableRandom random = new SplittableRandom();
+		List<String> sentence = new ArrayList<String>();
+		int prePreviousId = vocabulary.indexOf(START);
+		int previousId = prePreviousId;
+		String word = generateWord(prePreviousId, previousId, random);
+		while (!word.equals(STOP)) {
+			sentence.add(word);
+			prePreviousId = previousId;
+			previousId = vocabulary.indexOf(word);
+			word = generateWord(prePreviousId, previousId, random);
+		}
+		return sentence;
+	}
+
+	public CountMinSketchLanguageModel(
+			Collection<List<String>> trainingSentenceCollection, int width,
+			int depth) {
+		sketch = new CountMinSketch(width, depth);
+		updateCounters(trainingSentenceCollection);
+	}
+}
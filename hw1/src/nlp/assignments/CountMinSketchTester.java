@@ -0,0 +1,96 @@
+package nlp.assignments;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import nlp.util.CommandLineUtils;
+
+/**
+ * Measures what the count-min-sketch language model loses against exact
+ * counts. To run it, use
+ * <p/>
+ * java nlp.assignments.CountMinSketchTester -path ASSIGNMENT_DATA_PATH
+ * [-budgets MEGABYTES,...] [-depth ROWS]
+ * <p/>
+ * The reference is the exact trigram NgramLanguageModel with stupid backoff,
+ * which scores the same way. For each memory budget the sketch model is
+ * trained on the same data and its validation perplexity, HUB perplexity and
+ * HUB word error rate are printed next to the reference values.
+ */
+public class CountMinSketchTester {
+
+	public static void main(String[] args) throws IOException {
+		Map<String, String> argMap = CommandLineUtils
+				.simpleCommandLineParser(args);
+		String basePath = argMap.containsKey("-path") ? argMap.get("-path")
+				: ".";
+		String budgets = argMap.containsKey("-budgets") ? argMap
+				.get("-budgets") : "1,4,16,64";
+		int depth = argMap.containsKey("-depth") ? Integer.parseInt(argMap
+				.get("-depth")) : 4;
+		System.out.println("Using base path: " + basePath);
+
+		Collection<List<String>> trainingSentenceCollection = Corpus
+				.read(basePath
+						+ "/treebank-sentences-spoken-train.txt");
+		Collection<List<String>> validationSentenceCollection = Corpus
+				.read(basePath
+						+ "/treebank-sentences-spoken-validate.txt");
+		Set<String> trainingVocabulary = LanguageModelTester
+				.extractVocabulary(trainingSentenceCollection);
+		trainingVocabulary.addAll(LanguageModelTester
+				.extractVocabulary(validationSentenceCollection));
+		List<SpeechNBestList> speechNBestLists = SpeechNBestList.Reader
+				.readSpeechNBestLists(basePath + "/wsj_n_bst",
+						trainingVocabulary);
+		Collection<List<String>> hubSentenceCollection = LanguageModelTester
+				.extractCorrectSentenceList(speechNBestLists);
+
+		NgramLanguageModel exactModel = new NgramLanguageModel(
+				trainingSentenceCollection, 3, NgramSmoothing
+						.forName("stupid-backoff"));
+		double exactValidation = LanguageModelTester.calculatePerplexity(
+				exactModel, validationSentenceCollection);
+		double exactHub = LanguageModelTester.calculatePerplexity(exactModel,
+				hubSentenceCollection);
+		// Every model is scored against the same hypothesis distances.
+		WordErrorRateEvaluation evaluation = new WordErrorRateEvaluation(
+				speechNBestLists);
+		double exactWordErrorRate = LanguageModelTester.calculateWordErrorRate(
+				FrozenLanguageModel.freeze(exactModel), evaluation, false);
+		System.out.println("Exact: " + exactModel.size(2) + " bigrams, "
+				+ exactModel.size(3) + " trigrams");
+		System.out.println("  Validation Perplexity: " + exactValidation);
+		System.out.println("  HUB Perplexity:        " + exactHub);
+		System.out.println("  HUB Word Error Rate:   " + exactWordErrorRate);
+
+		for (String budget : budgets.split(",")) {
+			long bytes = (long) (Double.parseDouble(budget.trim()) * (1 << 20));
+			int width = CountMinSketch.widthForBudget(bytes, depth);
+			CountMinSketchLanguageModel sketchModel = new CountMinSketchLanguageModel(
+					trainingSentenceCollection, width, depth);
+			double validation = LanguageModelTester.calculatePerplexity(
+					sketchModel, validationSentenceCollection);
+			double hub = LanguageModelTester.calculatePerplexity(sketchModel,
+					hubSentenceCollection);
+			double wordErrorRate = LanguageModelTester.calculateWordErrorRate(
+					FrozenLanguageModel.freeze(sketchModel), evaluation, false);
+			System.out.println("Sketch " + budget.trim() + " MB (" + width
+					+ " x " + depth + "):");
+			System.out.println("  Validation Perplexity: " + validation
+					+ " (" + formatChange(validation, exactValidation) + ")");
+			System.out.println("  HUB Perplexity:        " + hub + " ("
+					+ formatChange(hub, exactHub) + ")");
+			System.out.println("  HUB Word Error Rate:   " + wordErrorRate
+					+ " (" + formatChange(wordErrorRate, exactWordErrorRate)
+					+ ")");
+		}
+	}
+
+	private static String formatChange(double value, double reference) {
+		return String.format("%+.2f%%", 100.0 * (value - reference) / reference);
+	}
+}
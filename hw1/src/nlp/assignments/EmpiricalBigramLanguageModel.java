@@ -1,10 +1,15 @@
 package nlp.assignments;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
 
-import nlp.langmodel.LanguageModel;
 import nlp.util.Counter;
 import nlp.util.CounterMap;
 
@@ -12,138 +17,345 @@ import nlp.util.CounterMap;
  * A dummy language model -- uses empirical unigram counts, plus a single
  * ficticious count for unknown words.
  */
-class EmpiricalBigramLanguageModel implements LanguageModel {
+class EmpiricalBigramLanguageModel implements IncrementalLanguageModel,
+		ParallelSentenceGenerator.SentenceSampler,
+		FrozenLanguageModel.Freezable, ScoringMetrics.Source,
+		LanguageModelSnapshot.Writable {
 
 	static final String START = "<S>";
 	static final String STOP = "</S>";
 	static final String UNKNOWN = "*UNKNOWN*";
 	static final double lambda = 0.9;
     double discountFactor = 0.5;
+	// Good-Turing normalized distributions, derived from the raw counts.
 	Counter<String> wordCounter = new Counter<String>();
-    CounterMap<String, String> continuationBigram = new CounterMap<String, String>();
-    Counter<String> continuationProb = new Counter<String>();
 	CounterMap<String, String> bigramCounter = new CounterMap<String, String>();
+	// Raw counts are the source of truth. Training and updateCounters only
+	// add to them; the distributions are renormalized on the first query
+	// that follows.
+	Counter<String> rawWordCounter = new Counter<String>();
+	CounterMap<String, String> rawBigramCounter = new CounterMap<String, String>();
+	// Alias tables per context, built on first use and dropped when the
+	// model is renormalized.
+	ConcurrentHashMap<String, AliasSampler<String>> wordSamplers = new ConcurrentHashMap<String, AliasSampler<String>>();
+	boolean countsChanged;
+	volatile boolean frozen;
+	final ScoringMetrics metrics = new ScoringMetrics(2);
+
+	// Scoring tables indexed by vocabulary id, rebuilt from the normalized
+	// distributions.
+	Vocabulary vocabulary = new Vocabulary();
+	double[] unigramProbabilities = new double[0];
+	LongDoubleHashMap bigramProbabilities = new LongDoubleHashMap(16);
+	double[] contextTypes = new double[0];
+	double[] continuationTypes = new double[0];
+	double totalTypes;
+	int startId = vocabulary.add(START);
+	int stopId = vocabulary.add(STOP);
+	int unknownId = vocabulary.add(UNKNOWN);
 
 	public double getBigramProbability(String previousWord, String word) {
-		double bigramCount = bigramCounter.getCount(previousWord, word);
-		double unigramCount =  wordCounter.getCount(word);
-
-        //Stupid backoff
-        double prob = bigramCount;
-        if (bigramCount == 0) {
-            if (unigramCount == 0) {
-                prob = wordCounter.getCount(UNKNOWN);
-            } else {
-                prob = unigramCount;
-            }
-        }
-        //Stupid backoff
-        //return prob;
-        if (bigramCount == 0) {
-            System.out.println("Context: <"+previousWord+","+word+"> was not seen before. Unigram "+unigramCount);
-        }
-		return lambda * bigramCount + (1.0 - lambda) * unigramCount;
-	}
-    public double getKneserNeyBigram(String prev, String word) {
-        Counter<String> prevCount = bigramCounter
-                .getCounter(prev);
-        double normalizedDiscount = Math.max(prevCount.getCount(word) - discountFactor, 0) /  (1 +wordCounter.getCount(prev));
-        double normalizingConstantNum = discountFactor * bigramCounter.getCounter(prev).getModCount();
-        double normalizingConstantDen = 1 + wordCounter.getCount(prev);
-        double normalizingConstant= normalizingConstantNum / normalizingConstantDen;
-        return normalizedDiscount + normalizingConstant * getContinuationProbability(word);
-    }
-    public double getContinuationProbability(String word) {
+		refresh();
+		return getBigramProbability(vocabulary.indexOf(previousWord),
+				vocabulary.indexOf(word));
+	}
 
-        return continuationProb.getCount(word);
-    }
+	/**
+	 * Scores a bigram against the id-indexed tables. Unknown words carry the id
+	 * Vocabulary.NOT_FOUND and simply miss every table.
+	 */
+	double getBigramProbability(int previousId, int wordId) {
+		double bigramCount = bigramProbabilities.get(NgramKeys.pack(previousId,
+				wordId));
+		double unigramCount = getUnigramProbability(wordId);
+		double probability = lambda * bigramCount + (1.0 - lambda)
+				* unigramCount;
+		metrics.recordLookup(2);
+		metrics.recordLookup(1);
+		metrics.recordPrediction(bigramCount != 0 ? 2 : unigramCount != 0 ? 1
+				: 0, wordId == Vocabulary.NOT_FOUND, probability == 0);
+		return probability;
+	}
+
+	public ScoringMetrics getMetrics() {
+		return metrics;
+	}
+
+	double getUnigramProbability(int wordId) {
+		if (wordId == Vocabulary.NOT_FOUND)
+			return 0.0;
+		return unigramProbabilities[wordId];
+	}
+
+	/**
+	 * Interpolated Kneser-Ney over the normalized bigram distributions, with
+	 * the unigram probability of prev as its context count:
+	 * <p/>
+	 * P(w | v) = max(p(w | v) - D, 0) / (1 + p(v)) + D N1+(v .) / (1 + p(v)) Pc(w)
+	 */
+	public double getKneserNeyBigram(String prev, String word) {
+		refresh();
+		int previousId = vocabulary.indexOf(prev);
+		if (previousId == Vocabulary.NOT_FOUND)
+			return 0.0;
+		int wordId = vocabulary.indexOf(word);
+		double bigramCount = bigramProbabilities.get(NgramKeys.pack(previousId,
+				wordId));
+		double inverseDenominator = 1.0 / (1.0 + getUnigramProbability(previousId));
+		return Math.max(bigramCount - discountFactor, 0) * inverseDenominator
+				+ discountFactor * contextTypes[previousId] * inverseDenominator
+				* getContinuationProbability(wordId);
+	}
+
+	/** Returns N1+(. w) / N1+(. .). */
+	public double getContinuationProbability(String word) {
+		refresh();
+		return getContinuationProbability(vocabulary.indexOf(word));
+	}
+
+	private double getContinuationProbability(int wordId) {
+		if (wordId == Vocabulary.NOT_FOUND || totalTypes == 0)
+			return 0.0;
+		return continuationTypes[wordId] / totalTypes;
+	}
 
 	public double getSentenceProbability(List<String> sentence) {
-		List<String> stoppedSentence = new ArrayList<String>(sentence);
-		stoppedSentence.add(0, START);
-		stoppedSentence.add(STOP);
-		double probability = 1.0;
-		String previousWord = stoppedSentence.get(0);
-		for (int i = 1; i < stoppedSentence.size(); i++) {
-			String word = stoppedSentence.get(i);
-			probability *= getBigramProbability(previousWord, word);
-			previousWord = word;
+		return Math.exp(getSentenceLogProbability(sentence));
+	}
+
+	public double getSentenceLogProbability(List<String> sentence) {
+		return scoreSentence(sentence, null);
+	}
+
+	public double[] getWordLogProbabilities(List<String> sentence) {
+		double[] wordLogProbabilities = new double[sentence.size() + 1];
+		scoreSentence(sentence, wordLogProbabilities);
+		return wordLogProbabilities;
+	}
+
+	private double scoreSentence(List<String> sentence,
+			double[] wordLogProbabilities) {
+		refresh();
+		double logProbability = 0.0;
+		int previousId = startId;
+		for (int i = 0; i <= sentence.size(); i++) {
+			int wordId = i < sentence.size() ? vocabulary.indexOf(sentence
+					.get(i)) : stopId;
+			double wordLogProbability = Math.log(getBigramProbability(
+					previousId, wordId));
+			if (wordLogProbabilities != null)
+				wordLogProbabilities[i] = wordLogProbability;
+			logProbability += wordLogProbability;
+			previousId = wordId;
 		}
-		if (probability > 1) {
-            System.out.println("Something went wrong");
-        }
-		return probability;
+		return logProbability;
+	}
+
+	public LanguageModelState getInitialState() {
+		refresh();
+		return new LanguageModelState(startId, START, 0.0);
+	}
+
+	public LanguageModelState score(LanguageModelState state, String word) {
+		refresh();
+		int wordId = vocabulary.indexOf(word);
+		return new LanguageModelState(wordId, word, Math.log(getBigramProbability(
+				(int) state.context, wordId)));
 	}
 
-	String generateWord(String previoudWord) {
-		double sample = Math.random();
-		double sum = 0.0;
-		for (String word : bigramCounter.getCounter(previoudWord).keySet()) {
-			sum += bigramCounter.getCounter(previoudWord).getCount(word);
-			if (sum > sample) {
-				return word;
-			}
+	public double getFinalLogProbability(LanguageModelState state) {
+		refresh();
+		return Math.log(getBigramProbability((int) state.context, stopId));
+	}
+
+	String generateWord(String previousWord, SplittableRandom random) {
+		refresh();
+		AliasSampler<String> sampler = wordSamplers.get(previousWord);
+		if (sampler == null) {
+			Counter<String> currentCounter = bigramCounter.keySet().contains(
+					previousWord) ? bigramCounter.getCounter(previousWord)
+					: new Counter<String>();
+			sampler = AliasSampler.of(currentCounter, UNKNOWN);
+			wordSamplers.putIfAbsent(previousWord, sampler);
 		}
-		return UNKNOWN;
+		return sampler.sample(random.nextDouble());
 	}
 
 	public List<String> generateSentence() {
+		return generateSentence(new SplittableRandom());
+	}
+
+	public List<String> generateSentence(SplittableRandom random) {
 		List<String> sentence = new ArrayList<String>();
-		String word = generateWord(START);
+		String word = generateWord(START, random);
 		while (!word.equals(STOP)) {
 			sentence.add(word);
-			word = generateWord(word);
+			word = generateWord(word, random);
 		}
 		return sentence;
 	}
 
+	/** Catches up on pending updates before the generating threads start. */
+	public List<List<String>> generateSentences(int numSentences, long seed) {
+		refresh();
+		return ParallelSentenceGenerator.SentenceSampler.super
+				.generateSentences(numSentences, seed);
+	}
+
 	public EmpiricalBigramLanguageModel(
             Collection<List<String>> trainingsentenceCollection, Collection<List<String>> validationSentenceCollection) {
-		updateCounters(trainingsentenceCollection);
+		this(NgramCounts.count(trainingsentenceCollection, 2, new Vocabulary()));
         //updateCounters(validationSentenceCollection);
-		wordCounter.incrementCount(UNKNOWN, 1.0);
-        computeContinuationProbablity();
-        //normalizeDistributions();
 	}
 
-    private void computeContinuationProbablity() {
-        double totalBigrams = bigramCounter.totalModCount();
-        for (String previousWord : bigramCounter.keySet()) {
-            double totalWordWordCompletes = continuationBigram.getCounter(previousWord).getModCount();
-            continuationProb.incrementCount(previousWord, totalWordWordCompletes / totalBigrams);
+	/**
+	 * Builds the model from bigram counts, e.g. those read from a count file.
+	 * The counts go through the same path as a later updateCounters batch, so
+	 * training on A and then updating with B gives the same model as
+	 * training on A and B together.
+	 */
+	public EmpiricalBigramLanguageModel(NgramCounts counts) {
+		counts.checkOrder(2);
+		addRawCounts(counts);
+		refresh();
+	}
+
+    /**
+     * Adds the counts of a batch of sentences. Only the raw counts are
+     * updated here; the model is renormalized on the next query.
+     */
+    public void updateCounters(Collection<List<String>> sentenceCollection) {
+        if (frozen)
+            throw new IllegalStateException("Model is frozen");
+        addRawCounts(NgramCounts.count(sentenceCollection, 2,
+                new Vocabulary()));
+    }
+
+    private void addRawCounts(NgramCounts counts) {
+        counts.addUnigramsTo(rawWordCounter);
+        counts.addBigramsTo(rawBigramCounter);
+        rawBigramCounter.incrementCount(START, START, counts.getSentenceCount());
+        countsChanged = true;
+    }
+
+    /** Adds a word to the vocabulary, growing the id-indexed tables. */
+    private int addWord(String word) {
+        int id = vocabulary.add(word);
+        if (id >= unigramProbabilities.length) {
+            int capacity = Math.max(2 * unigramProbabilities.length, id + 1);
+            unigramProbabilities = Arrays.copyOf(unigramProbabilities, capacity);
+            contextTypes = Arrays.copyOf(contextTypes, capacity);
+            continuationTypes = Arrays.copyOf(continuationTypes, capacity);
         }
+        return id;
     }
 
-    public void updateCounters(Collection<List<String>> sentenceCollection) {
-        for (List<String> sentence : sentenceCollection) {
-            List<String> stoppedSentence = new ArrayList<String>(sentence);
-            stoppedSentence.add(0, START);
-            stoppedSentence.add(STOP);
-            String previousWord = stoppedSentence.get(0);
-            wordCounter.incrementCount(START, 1);
-            bigramCounter.incrementCount(START, previousWord, 1.0);
-            for (int i = 1; i < stoppedSentence.size(); i++) {
-                String word = stoppedSentence.get(i);
-                wordCounter.incrementCount(word, 1.0);
-                bigramCounter.incrementCount(previousWord, word, 1.0);
-                continuationBigram.incrementCount(word, previousWord, 1.0);
-                previousWord = word;
-            }
+    /**
+     * Renormalizes the whole model from its raw counts, the way it has
+     * always been normalized: the CounterMap of contexts is Good-Turing
+     * normalized, then each context's counter, then the unigram counter,
+     * which then gets a single ficticious count for UNKNOWN. Good-Turing
+     * looks at the counts of counts of the whole table, so every context is
+     * renormalized, not just those a batch touched.
+     */
+    private void refresh() {
+        if (!countsChanged)
+            return;
+        Counter<String> normalizedWords = new Counter<String>();
+        normalizedWords.incrementAll(rawWordCounter);
+        normalizedWords.good_turing_normalize();
+        normalizedWords.incrementCount(UNKNOWN, 1.0);
+        CounterMap<String, String> normalizedBigrams = new CounterMap<String, String>();
+        for (String previousWord : rawBigramCounter.keySet()) {
+            normalizedBigrams.getCounter(previousWord).incrementAll(
+                    rawBigramCounter.getCounter(previousWord));
         }
-        normalizeDistributions();
+        normalizedBigrams.good_turing_normalize();
+        for (String previousWord : normalizedBigrams.keySet()) {
+            normalizedBigrams.getCounter(previousWord).good_turing_normalize();
+        }
+
+        buildTables(normalizedWords, normalizedBigrams);
+        wordCounter = normalizedWords;
+        bigramCounter = normalizedBigrams;
+        wordSamplers.clear();
+        countsChanged = false;
     }
-	private void normalizeDistributions() {
-        /*
-		bigramCounter.laplace_normalize();
-		wordCounter.laplace_normalize();
-		*/
-        bigramCounter.good_turing_normalize();
-        for (String previousWord : bigramCounter.keySet()) {
-            bigramCounter.getCounter(previousWord).good_turing_normalize();
+
+    /** Indexes the normalized distributions by vocabulary id. */
+    private void buildTables(Counter<String> normalizedWords,
+            CounterMap<String, String> normalizedBigrams) {
+        for (String word : normalizedWords.keySet()) {
+            addWord(word);
+        }
+        Arrays.fill(unigramProbabilities, 0.0);
+        for (String word : normalizedWords.keySet()) {
+            unigramProbabilities[vocabulary.indexOf(word)] = normalizedWords
+                    .getCount(word);
+        }
+        Arrays.fill(contextTypes, 0.0);
+        Arrays.fill(continuationTypes, 0.0);
+        totalTypes = 0;
+        bigramProbabilities = new LongDoubleHashMap(16);
+        for (String previousWord : normalizedBigrams.keySet()) {
+            Counter<String> normalizedCounter = normalizedBigrams
+                    .getCounter(previousWord);
+            int previousId = addWord(previousWord);
+            for (String word : normalizedCounter.keySet()) {
+                double probability = normalizedCounter.getCount(word);
+                int wordId = addWord(word);
+                bigramProbabilities.put(NgramKeys.pack(previousId, wordId),
+                        probability);
+                if (probability > 0) {
+                    contextTypes[previousId]++;
+                    continuationTypes[wordId]++;
+                    totalTypes++;
+                }
+            }
         }
-        wordCounter.good_turing_normalize();
+        // Only words seen as contexts get a continuation probability.
+        for (int id = 0; id < vocabulary.size(); id++) {
+            if (!normalizedBigrams.keySet().contains(vocabulary.get(id)))
+                continuationTypes[id] = 0.0;
+        }
+    }
+
+    /**
+     * Writes the raw counts, so a loaded model can still be updated, and the
+     * normalized distributions. Loading indexes those by id again but does
+     * not renormalize.
+     */
+    public void write(DataOutputStream out) throws IOException {
+        refresh();
+        LanguageModelSnapshot.writeCounter(rawWordCounter, out);
+        LanguageModelSnapshot.writeCounterMap(rawBigramCounter, out);
+        LanguageModelSnapshot.writeCounter(wordCounter, out);
+        LanguageModelSnapshot.writeCounterMap(bigramCounter, out);
+    }
+
+    /** Reads a model written by write(). */
+    static EmpiricalBigramLanguageModel read(DataInputStream in)
+            throws IOException {
+        EmpiricalBigramLanguageModel model = new EmpiricalBigramLanguageModel();
+        model.rawWordCounter = LanguageModelSnapshot.readCounter(in);
+        model.rawBigramCounter = LanguageModelSnapshot.readCounterMap(in);
+        model.wordCounter = LanguageModelSnapshot.readCounter(in);
+        model.bigramCounter = LanguageModelSnapshot.readCounterMap(in);
+        model.buildTables(model.wordCounter, model.bigramCounter);
+        return model;
+    }
+
+    private EmpiricalBigramLanguageModel() {
+    }
+
+    /**
+     * Catches up on pending updates, so that queries only read from here on.
+     */
+    public void freeze() {
+        refresh();
+        frozen = true;
+    }
 
-	}
 	public static void main(String[] args) {
 
 
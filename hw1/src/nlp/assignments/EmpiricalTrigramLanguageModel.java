@@ -1,10 +1,15 @@
 package nlp.assignments;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
 
-import nlp.langmodel.LanguageModel;
 import nlp.util.Counter;
 import nlp.util.CounterMap;
 
@@ -12,7 +17,10 @@ import nlp.util.CounterMap;
  * A dummy language model -- uses empirical unigram counts, plus a single
  * ficticious count for unknown words.
  */
-class EmpiricalTrigramLanguageModel implements LanguageModel {
+class EmpiricalTrigramLanguageModel implements IncrementalLanguageModel,
+		ParallelSentenceGenerator.SentenceSampler,
+		FrozenLanguageModel.Freezable, ScoringMetrics.Source,
+		LanguageModelSnapshot.Writable {
 
 	static final String START = "<S>";
 	static final String STOP = "</S>";
@@ -22,14 +30,36 @@ class EmpiricalTrigramLanguageModel implements LanguageModel {
 
 	Counter<String> wordCounter = new Counter<String>();
 	CounterMap<String, String> bigramCounter = new CounterMap<String, String>();
-	CounterMap<String, String> trigramCounter = new CounterMap<String, String>();
+	// Trigram counts keyed by packed word ids, plus the total count of each
+	// (prePrevious, previous) context; probabilities are their ratio.
+	Vocabulary vocabulary = new Vocabulary();
+	LongDoubleHashMap trigramCounts = new LongDoubleHashMap();
+	LongDoubleHashMap trigramContextCounts = new LongDoubleHashMap();
+	// Alias tables over the seen followers of each packed context, and the
+	// followers of every context, built on first use.
+	ConcurrentHashMap<Long, AliasSampler<String>> wordSamplers = new ConcurrentHashMap<Long, AliasSampler<String>>();
+	private volatile Followers followers;
+	volatile boolean frozen;
+	final ScoringMetrics metrics = new ScoringMetrics(3);
 
 	public double getTrigramProbability(String prePreviousWord,
 			String previousWord, String word) {
-		double trigramCount = trigramCounter.getCount(prePreviousWord
-				+ previousWord, word);
+		return getTrigramProbability(vocabulary.indexOf(prePreviousWord),
+				vocabulary.indexOf(previousWord), vocabulary.indexOf(word),
+				previousWord, word);
+	}
+
+	private double getTrigramProbability(int prePreviousId, int previousId,
+			int wordId, String previousWord, String word) {
+		double trigramCount = getTrigramProbability(prePreviousId,
+				previousId, wordId);
 		double bigramCount = bigramCounter.getCount(previousWord, word);
 		double unigramCount = wordCounter.getCount(word);
+		metrics.recordLookup(3);
+		metrics.recordLookup(2);
+		metrics.recordLookup(1);
+		int resolvedOrder = trigramCount != 0 ? 3 : bigramCount != 0 ? 2
+				: unigramCount != 0 ? 1 : 0;
 		if (unigramCount == 0) {
 			unigramCount = wordCounter.getCount(UNKNOWN);
 		}
@@ -47,53 +77,190 @@ class EmpiricalTrigramLanguageModel implements LanguageModel {
         }
         //Stupid backoff
         //return  prob;
-		return lambda1 * trigramCount + lambda2 * bigramCount + (1- lambda1 - lambda2) * unigramCount;
+		double probability = lambda1 * trigramCount + lambda2 * bigramCount + (1- lambda1 - lambda2) * unigramCount;
+		metrics.recordPrediction(resolvedOrder, wordId == Vocabulary.NOT_FOUND,
+				probability == 0);
+		return probability;
+	}
+
+	public ScoringMetrics getMetrics() {
+		return metrics;
+	}
+
+	double getTrigramProbability(int prePreviousId, int previousId, int wordId) {
+		double contextCount = trigramContextCounts.get(NgramKeys.pack(
+				prePreviousId, previousId));
+		if (contextCount == 0)
+			return 0.0;
+		return trigramCounts.get(NgramKeys.pack(prePreviousId, previousId,
+				wordId)) / contextCount;
 	}
 
 	public double getSentenceProbability(List<String> sentence) {
-		List<String> stoppedSentence = new ArrayList<String>(sentence);
-		stoppedSentence.add(0, START);
-		stoppedSentence.add(0, START);
-		stoppedSentence.add(STOP);
-		double probability = 1.0;
-		String prePreviousWord = stoppedSentence.get(0);
-		String previousWord = stoppedSentence.get(1);
-		for (int i = 2; i < stoppedSentence.size(); i++) {
-			String word = stoppedSentence.get(i);
-
-			probability *= getTrigramProbability(prePreviousWord, previousWord,
-					word);
-			prePreviousWord = previousWord;
+		return Math.exp(getSentenceLogProbability(sentence));
+	}
+
+	public double getSentenceLogProbability(List<String> sentence) {
+		return scoreSentence(sentence, null);
+	}
+
+	public double[] getWordLogProbabilities(List<String> sentence) {
+		double[] wordLogProbabilities = new double[sentence.size() + 1];
+		scoreSentence(sentence, wordLogProbabilities);
+		return wordLogProbabilities;
+	}
+
+	private double scoreSentence(List<String> sentence,
+			double[] wordLogProbabilities) {
+		double logProbability = 0.0;
+		int startId = vocabulary.indexOf(START);
+		int prePreviousId = startId;
+		int previousId = startId;
+		String previousWord = START;
+		for (int i = 0; i <= sentence.size(); i++) {
+			String word = i < sentence.size() ? sentence.get(i) : STOP;
+			int wordId = vocabulary.indexOf(word);
+			double wordLogProbability = Math.log(getTrigramProbability(
+					prePreviousId, previousId, wordId, previousWord, word));
+			if (wordLogProbabilities != null)
+				wordLogProbabilities[i] = wordLogProbability;
+			logProbability += wordLogProbability;
+			prePreviousId = previousId;
+			previousId = wordId;
 			previousWord = word;
 		}
-		if (probability == 0) {
-            System.out.println("Zero probability");
-        }
-		return probability;
+		return logProbability;
+	}
+
+	/**
+	 * The state context packs the ids of the last two words; the last word
+	 * itself is kept for the String-keyed bigram and unigram counters.
+	 */
+	public LanguageModelState getInitialState() {
+		int startId = vocabulary.indexOf(START);
+		return new LanguageModelState(NgramKeys.pack(startId, startId), START,
+				0.0);
+	}
+
+	public LanguageModelState score(LanguageModelState state, String word) {
+		int wordId = vocabulary.indexOf(word);
+		int previousId = NgramKeys.second(state.context);
+		double logProbability = Math.log(getTrigramProbability(
+				NgramKeys.first(state.context), previousId, wordId,
+				state.lastWord, word));
+		return new LanguageModelState(NgramKeys.pack(previousId, wordId), word,
+				logProbability);
+	}
+
+	public double getFinalLogProbability(LanguageModelState state) {
+		return Math.log(getTrigramProbability(NgramKeys.first(state.context),
+				NgramKeys.second(state.context), vocabulary.indexOf(STOP),
+				state.lastWord, STOP));
 	}
 
-	String generateWord(String prePrevious, String previous) {
-		double sample = Math.random();
+	String generateWord(String prePrevious, String previous,
+			SplittableRandom random) {
+		int prePreviousId = vocabulary.indexOf(prePrevious);
+		int previousId = vocabulary.indexOf(previous);
+		Long context = NgramKeys.pack(prePreviousId, previousId);
+		AliasSampler<String> sampler = wordSamplers.get(context);
+		if (sampler == null) {
+			sampler = buildWordSampler(prePreviousId, previousId);
+			wordSamplers.putIfAbsent(context, sampler);
+		}
+		return sampler.sample(random.nextDouble());
+	}
+
+	/**
+	 * Weighs the words seen after the context by their trigram probability,
+	 * in time proportional to their number. Whatever mass is left, all of it
+	 * for an unseen context, goes to UNKNOWN.
+	 */
+	private AliasSampler<String> buildWordSampler(int prePreviousId,
+			int previousId) {
+		Followers index = followers;
+		if (index == null) {
+			index = new Followers(trigramCounts);
+			followers = index;
+		}
+		int[] followerIds = index.get(prePreviousId, previousId);
+		List<String> outcomes = new ArrayList<String>(followerIds.length + 1);
+		double[] weights = new double[followerIds.length + 1];
 		double sum = 0.0;
-        Counter<String> possibleCurrents = trigramCounter.getCounter(prePrevious + previous);
+		for (int wordId : followerIds) {
+			double probability = getTrigramProbability(prePreviousId,
+					previousId, wordId);
+			if (probability > 0) {
+				weights[outcomes.size()] = probability;
+				outcomes.add(vocabulary.get(wordId));
+				sum += probability;
+			}
+		}
+		if (sum < 1.0) {
+			weights[outcomes.size()] = 1.0 - sum;
+			outcomes.add(UNKNOWN);
+		}
+		return new AliasSampler<String>(outcomes, weights);
+	}
 
-        for (String word : possibleCurrents.keySet()) {
-			sum += possibleCurrents.getCount(word);
-			if (sum > sample) {
-				return word;
+	/**
+	 * The words seen after each (prePrevious, previous) context, gathered in
+	 * one pass over the trigram counts.
+	 */
+	static final class Followers {
+		private final LongIntHashMap slots;
+		private final int[] starts;
+		private final int[] words;
+
+		int[] get(int prePreviousId, int previousId) {
+			int slot = slots.get(NgramKeys.pack(prePreviousId, previousId), -1);
+			if (slot < 0)
+				return new int[0];
+			return Arrays.copyOfRange(words, starts[slot], starts[slot + 1]);
+		}
+
+		Followers(LongDoubleHashMap trigramCounts) {
+			long[] keys = trigramCounts.keys();
+			slots = new LongIntHashMap(keys.length);
+			int[] keySlots = new int[keys.length];
+			int numSlots = 0;
+			for (int i = 0; i < keys.length; i++) {
+				long context = NgramKeys.pack(NgramKeys.trigramField(keys[i],
+						0), NgramKeys.trigramField(keys[i], 1));
+				int slot = slots.get(context, -1);
+				if (slot < 0) {
+					slot = numSlots++;
+					slots.put(context, slot);
+				}
+				keySlots[i] = slot;
+			}
+			starts = new int[numSlots + 1];
+			for (int slot : keySlots) {
+				starts[slot + 1]++;
+			}
+			for (int slot = 0; slot < numSlots; slot++) {
+				starts[slot + 1] += starts[slot];
+			}
+			words = new int[keys.length];
+			int[] next = Arrays.copyOf(starts, numSlots);
+			for (int i = 0; i < keys.length; i++) {
+				words[next[keySlots[i]]++] = NgramKeys.trigramField(keys[i], 2);
 			}
 		}
-		return UNKNOWN;
 	}
 
 	public List<String> generateSentence() {
+		return generateSentence(new SplittableRandom());
+	}
+
+	public List<String> generateSentence(SplittableRandom random) {
 		List<String> sentence = new ArrayList<String>();
-		String word = generateWord(START, START);
+		String word = generateWord(START, START, random);
         String prePrevious= START;
 		while (!word.equals(STOP)) {
 			sentence.add(word);
             String temp = word;
-			word = generateWord(prePrevious, word);
+			word = generateWord(prePrevious, word, random);
             prePrevious = temp;
 		}
 		return sentence;
@@ -107,33 +274,62 @@ class EmpiricalTrigramLanguageModel implements LanguageModel {
 		normalizeDistributions();
 	}
 
+	/** Builds the model from trigram counts, e.g. those read from a count file. */
+	public EmpiricalTrigramLanguageModel(NgramCounts counts) {
+		addCounts(counts);
+		wordCounter.incrementCount(UNKNOWN, 1.0);
+		normalizeDistributions();
+	}
+
 	public void updateCounters(Collection<List<String>> sentenceCollection) {
-        for (List<String> sentence : sentenceCollection) {
-            List<String> stoppedSentence = new ArrayList<String>(sentence);
-            stoppedSentence.add(0, START);
-            stoppedSentence.add(0, START);
-            stoppedSentence.add(STOP);
-            String prePreviousWord = stoppedSentence.get(0);
-            String previousWord = stoppedSentence.get(1);
-            bigramCounter.incrementCount(prePreviousWord, previousWord, 1.0);
-            wordCounter.incrementCount(prePreviousWord, 1.0);
-            wordCounter.incrementCount(previousWord, 1.0);
-            for (int i = 2; i < stoppedSentence.size(); i++) {
-                String word = stoppedSentence.get(i);
-                wordCounter.incrementCount(word, 1.0);
-                bigramCounter.incrementCount(previousWord, word, 1.0);
-                trigramCounter.incrementCount(prePreviousWord + previousWord,
-                        word, 1.0);
-                prePreviousWord = previousWord;
-                previousWord = word;
-            }
-        }
+		if (frozen)
+			throw new IllegalStateException("Model is frozen");
+        addCounts(NgramCounts.count(sentenceCollection, 3, vocabulary));
+        wordSamplers.clear();
+        followers = null;
+    }
+
+	/** Scores are computed from the tables at query time; only updates stop. */
+	public void freeze() {
+		frozen = true;
+	}
+
+	/**
+	 * Writes the normalized unigram and bigram distributions and the trigram
+	 * counts with their context totals, which are divided at lookup time.
+	 */
+	public void write(DataOutputStream out) throws IOException {
+		LanguageModelSnapshot.writeCounter(wordCounter, out);
+		LanguageModelSnapshot.writeCounterMap(bigramCounter, out);
+		LanguageModelSnapshot.writeVocabulary(vocabulary, out);
+		LanguageModelSnapshot.writeTable(trigramCounts, out);
+		LanguageModelSnapshot.writeTable(trigramContextCounts, out);
+	}
+
+	/** Reads a model written by write(). */
+	static EmpiricalTrigramLanguageModel read(DataInputStream in)
+			throws IOException {
+		EmpiricalTrigramLanguageModel model = new EmpiricalTrigramLanguageModel();
+		model.wordCounter = LanguageModelSnapshot.readCounter(in);
+		model.bigramCounter = LanguageModelSnapshot.readCounterMap(in);
+		LanguageModelSnapshot.readVocabulary(model.vocabulary, in);
+		model.trigramCounts = LanguageModelSnapshot.readTable(in);
+		model.trigramContextCounts = LanguageModelSnapshot.readTable(in);
+		return model;
+	}
+
+	private EmpiricalTrigramLanguageModel() {
+	}
+
+	private void addCounts(NgramCounts counts) {
+        counts.checkOrder(3);
+        counts.addUnigramsTo(wordCounter);
+        counts.addBigramsTo(bigramCounter);
+        counts.addTrigramsTo(vocabulary, trigramCounts, trigramContextCounts);
     }
 
 	private void normalizeDistributions() {
-		for (String previousBigram : trigramCounter.keySet()) {
-			trigramCounter.getCounter(previousBigram).normalize();
-		}
+		// Trigram probabilities are derived from the raw counts at lookup time.
 		for (String previousWord : bigramCounter.keySet()) {
 			bigramCounter.getCounter(previousWord).normalize();
 		}
@@ -3,24 +3,30 @@ package nlp.assignments;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.SplittableRandom;
 
-import nlp.langmodel.LanguageModel;
 import nlp.util.Counter;
 
 /**
  * A dummy language model -- uses empirical unigram counts, plus a single
  * ficticious count for unknown words.
  */
-class EmpiricalUnigramLanguageModel implements LanguageModel {
+class EmpiricalUnigramLanguageModel implements IncrementalLanguageModel,
+		ParallelSentenceGenerator.SentenceSampler {
 
 	static final String STOP = "</S>";
 	static final String UNKNOWN = "*UNKNOWN*";
 
 	Counter<String> wordCounter = new Counter<String>();
+	// Built on first use; the unigram distribution never changes afterwards.
+	private volatile AliasSampler<String> wordSampler;
 
 
 	public double getWordProbability(List<String> sentence, int index) {
-		String word = sentence.get(index);
+		return getWordProbability(sentence.get(index));
+	}
+
+	double getWordProbability(String word) {
 		double count = wordCounter.getCount(word);
 		if (count == 0) {
 			return wordCounter.getCount(UNKNOWN);
@@ -29,33 +35,68 @@ class EmpiricalUnigramLanguageModel implements LanguageModel {
 	}
 
 	public double getSentenceProbability(List<String> sentence) {
-		List<String> stoppedSentence = new ArrayList<String>(sentence);
-		stoppedSentence.add(STOP);
-		double probability = 1.0;
-		for (int index = 0; index < stoppedSentence.size(); index++) {
-			probability *= getWordProbability(stoppedSentence, index);
+		return Math.exp(getSentenceLogProbability(sentence));
+	}
+
+	public double getSentenceLogProbability(List<String> sentence) {
+		return scoreSentence(sentence, null);
+	}
+
+	public double[] getWordLogProbabilities(List<String> sentence) {
+		double[] wordLogProbabilities = new double[sentence.size() + 1];
+		scoreSentence(sentence, wordLogProbabilities);
+		return wordLogProbabilities;
+	}
+
+	/**
+	 * Sums the log probabilities of the words and the stop symbol, storing
+	 * each one in wordLogProbabilities when it is non-null.
+	 */
+	private double scoreSentence(List<String> sentence,
+			double[] wordLogProbabilities) {
+		double logProbability = 0.0;
+		for (int index = 0; index <= sentence.size(); index++) {
+			String word = index < sentence.size() ? sentence.get(index) : STOP;
+			double wordLogProbability = Math.log(getWordProbability(word));
+			if (wordLogProbabilities != null)
+				wordLogProbabilities[index] = wordLogProbability;
+			logProbability += wordLogProbability;
 		}
-		return probability;
+		return logProbability;
 	}
 
-	String generateWord() {
-		double sample = Math.random();
-		double sum = 0.0;
-		for (String word : wordCounter.keySet()) {
-			sum += wordCounter.getCount(word);
-			if (sum > sample) {
-				return word;
-			}
+	public LanguageModelState getInitialState() {
+		return new LanguageModelState(0, null, 0.0);
+	}
+
+	public LanguageModelState score(LanguageModelState state, String word) {
+		return new LanguageModelState(0, null,
+				Math.log(getWordProbability(word)));
+	}
+
+	public double getFinalLogProbability(LanguageModelState state) {
+		return Math.log(getWordProbability(STOP));
+	}
+
+	String generateWord(SplittableRandom random) {
+		AliasSampler<String> sampler = wordSampler;
+		if (sampler == null) {
+			sampler = AliasSampler.of(wordCounter, UNKNOWN);
+			wordSampler = sampler;
 		}
-		return UNKNOWN;
+		return sampler.sample(random.nextDouble());
 	}
 
 	public List<String> generateSentence() {
+		return generateSentence(new SplittableRandom());
+	}
+
+	public List<String> generateSentence(SplittableRandom random) {
 		List<String> sentence = new ArrayList<String>();
-		String word = generateWord();
+		String word = generateWord(random);
 		while (!word.equals(STOP)) {
 			sentence.add(word);
-			word = generateWord();
+			word = generateWord(random);
 		}
 		return sentence;
 	}
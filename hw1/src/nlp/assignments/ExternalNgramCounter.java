@@ -0,0 +1,409 @@
+package nlp.assignments;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Counts n-grams for corpora whose counts do not fit in the heap. Sentences
+ * are counted into a bounded NgramCounts buffer; whenever it holds more than
+ * the configured number of bigram and trigram entries, each order is spilled
+ * as a run of (key, count) pairs sorted by packed key into a temporary
+ * directory. write() then k-way merges the runs of every order into a single
+ * count file, which read() opens as NgramCounts for the models.
+ * <p/>
+ * Only the vocabulary and the unigram counts stay in memory throughout, both
+ * while counting and once the file is read: the models stream the n-gram
+ * sections straight from the file into their own tables. The count file
+ * holds a header, the vocabulary in id order, the unigram counts and, per
+ * order from 2 up, the number of entries followed by the sorted (long key,
+ * double count) pairs. The header records the order and the path, size and
+ * modification time of the training file, so a stale file can be detected
+ * with isCurrent() and rebuilt.
+ */
+class ExternalNgramCounter {
+
+	static final int MAGIC = 0x4E47434E;
+	static final int VERSION = 2;
+
+	private static final int STREAM_BUFFER = 1 << 16;
+
+	private final int order;
+	private final int maxBufferedNgrams;
+	private final File runDirectory;
+	private final Vocabulary vocabulary = new Vocabulary();
+	private double[] unigramCounts = new double[16];
+	private int sentenceCount;
+	private NgramCounts buffer;
+	// runs.get(n - 2) holds the spilled runs of order n.
+	private final List<List<File>> runs = new ArrayList<List<File>>();
+
+	public ExternalNgramCounter(int order, int maxBufferedNgrams,
+			File tempDirectory) throws IOException {
+		if (order < 2 || order > 3)
+			throw new IllegalArgumentException("Unsupported order: " + order);
+		this.order = order;
+		this.maxBufferedNgrams = maxBufferedNgrams;
+		this.runDirectory = Files.createTempDirectory(tempDirectory.toPath(),
+				"ngram-runs").toFile();
+		for (int n = 2; n <= order; n++) {
+			runs.add(new ArrayList<File>());
+		}
+		buffer = new NgramCounts(order, vocabulary);
+	}
+
+	/**
+	 * Streams the sentences, read from the training file source, through a
+	 * counter with runs in the system temp directory and writes the merged
+	 * counts to fileName. The runs are deleted even if counting fails.
+	 */
+	public static void count(Iterable<List<String>> sentences, int order,
+			int maxBufferedNgrams, String fileName, File source)
+			throws IOException {
+		ExternalNgramCounter counter = new ExternalNgramCounter(order,
+				maxBufferedNgrams, new File(System.getProperty("java.io.tmpdir")));
+		try {
+			for (List<String> sentence : sentences) {
+				counter.add(sentence);
+			}
+			counter.write(fileName, source);
+		} finally {
+			counter.deleteRuns();
+		}
+	}
+
+	/**
+	 * Returns whether fileName is a count file of the given order built from
+	 * source as it is now, judged by its path, size and modification time.
+	 * A missing file or one of an older version is not current.
+	 */
+	public static boolean isCurrent(String fileName, File source, int order)
+			throws IOException {
+		if (!new File(fileName).exists())
+			return false;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(fileName), STREAM_BUFFER));
+		try {
+			if (in.readInt() != MAGIC)
+				throw new IOException("Not an n-gram count file: " + fileName);
+			if (in.readInt() != VERSION || in.readInt() != order)
+				return false;
+			in.readLong();
+			return in.readUTF().equals(source.getCanonicalPath())
+					&& in.readLong() == source.length()
+					&& in.readLong() == source.lastModified();
+		} finally {
+			in.close();
+		}
+	}
+
+	public void add(List<String> sentence) {
+		buffer.countSentence(sentence);
+		if (buffer.ngramEntries() >= maxBufferedNgrams) {
+			try {
+				spill();
+			} catch (IOException e) {
+				throw new RuntimeException("Problem spilling n-gram counts to "
+						+ runDirectory, e);
+			}
+		}
+	}
+
+	/**
+	 * Merges every run into fileName, recording source in the header, and
+	 * deletes the runs. A partly written file is deleted too.
+	 */
+	public void write(String fileName, File source) throws IOException {
+		spill();
+		boolean written = false;
+		FileChannel channel = new RandomAccessFile(fileName, "rw").getChannel();
+		try {
+			channel.truncate(0);
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(Channels.newOutputStream(channel),
+							STREAM_BUFFER));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(order);
+			// The offset of the first section, patched once it is known.
+			long sectionsPosition = 12;
+			out.writeLong(0);
+			out.writeUTF(source.getCanonicalPath());
+			out.writeLong(source.length());
+			out.writeLong(source.lastModified());
+			out.writeInt(sentenceCount);
+			out.writeInt(vocabulary.size());
+			for (int id = 0; id < vocabulary.size(); id++) {
+				out.writeUTF(vocabulary.get(id));
+			}
+			for (int id = 0; id < vocabulary.size(); id++) {
+				out.writeDouble(unigramCounts[id]);
+			}
+			out.flush();
+			ByteBuffer sectionsPatch = ByteBuffer.allocate(8);
+			sectionsPatch.putLong(0, channel.position());
+			channel.write(sectionsPatch, sectionsPosition);
+			for (int n = 2; n <= order; n++) {
+				out.flush();
+				long countPosition = channel.position();
+				out.writeLong(0);
+				long entries = merge(runs.get(n - 2), out);
+				out.flush();
+				ByteBuffer patch = ByteBuffer.allocate(8);
+				patch.putLong(0, entries);
+				channel.write(patch, countPosition);
+			}
+			out.flush();
+			written = true;
+		} finally {
+			channel.close();
+			deleteRuns();
+			if (!written)
+				new File(fileName).delete();
+		}
+	}
+
+	/** Deletes the spilled runs and their directory; safe to call twice. */
+	private void deleteRuns() {
+		for (List<File> orderRuns : runs) {
+			for (File run : orderRuns) {
+				run.delete();
+			}
+			orderRuns.clear();
+		}
+		runDirectory.delete();
+	}
+
+	/**
+	 * Opens a count file written by write(). The vocabulary and unigram
+	 * counts are read; the n-gram sections stay in the file and are streamed
+	 * whenever the counts are added to a model.
+	 */
+	public static NgramCounts read(String fileName) throws IOException {
+		FileInputStream file = new FileInputStream(fileName);
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					file, STREAM_BUFFER));
+			if (in.readInt() != MAGIC)
+				throw new IOException("Not an n-gram count file: " + fileName);
+			int version = in.readInt();
+			if (version != VERSION)
+				throw new IOException("Unsupported count file version "
+						+ version + ": " + fileName);
+			int order = in.readInt();
+			long sectionsOffset = in.readLong();
+			in.readUTF();
+			in.readLong();
+			in.readLong();
+			int sentenceCount = in.readInt();
+			int vocabularySize = in.readInt();
+			Vocabulary vocabulary = new Vocabulary();
+			for (int id = 0; id < vocabularySize; id++) {
+				vocabulary.add(in.readUTF());
+			}
+			double[] unigramCounts = new double[Math.max(16, vocabularySize)];
+			for (int id = 0; id < vocabularySize; id++) {
+				unigramCounts[id] = in.readDouble();
+			}
+			// Each section is its entry count followed by 16-byte entries.
+			long[] offsets = new long[order - 1];
+			long[] entries = new long[order - 1];
+			FileChannel channel = file.getChannel();
+			ByteBuffer entryCount = ByteBuffer.allocate(8);
+			long offset = sectionsOffset;
+			for (int n = 2; n <= order; n++) {
+				entryCount.clear();
+				while (entryCount.hasRemaining()) {
+					if (channel.read(entryCount, offset + entryCount.position()) < 0)
+						throw new IOException("Truncated count file: " + fileName);
+				}
+				offsets[n - 2] = offset + 8;
+				entries[n - 2] = entryCount.getLong(0);
+				offset = offsets[n - 2] + 16 * entries[n - 2];
+			}
+			return new NgramCounts(order, vocabulary, unigramCounts,
+					new Sections(fileName, offsets, entries), sentenceCount);
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * The n-gram sections of a count file, read back one entry at a time in
+	 * key order.
+	 */
+	static class Sections {
+		private final String fileName;
+		private final long[] offsets;
+		private final long[] entries;
+
+		/** Passes every (key, count) entry of order n to the visitor. */
+		void scan(int n, NgramCounts.EntryVisitor visitor) throws IOException {
+			FileInputStream file = new FileInputStream(fileName);
+			try {
+				FileChannel channel = file.getChannel();
+				channel.position(offsets[n - 2]);
+				DataInputStream in = new DataInputStream(new BufferedInputStream(
+						Channels.newInputStream(channel), STREAM_BUFFER));
+				for (long i = 0; i < entries[n - 2]; i++) {
+					visitor.visit(in.readLong(), in.readDouble());
+				}
+			} finally {
+				file.close();
+			}
+		}
+
+		/** Loads the entries of order n into a table. */
+		LongDoubleHashMap load(int n) throws IOException {
+			if (entries[n - 2] > Integer.MAX_VALUE)
+				throw new IOException("Too many n-grams to load: "
+						+ entries[n - 2]);
+			final LongDoubleHashMap counts = new LongDoubleHashMap(
+					(int) entries[n - 2]);
+			scan(n, new NgramCounts.EntryVisitor() {
+				public void visit(long key, double count) {
+					counts.put(key, count);
+				}
+			});
+			return counts;
+		}
+
+		Sections(String fileName, long[] offsets, long[] entries) {
+			this.fileName = fileName;
+			this.offsets = offsets;
+			this.entries = entries;
+		}
+	}
+
+	/**
+	 * Writes the buffered bigrams and trigrams as one sorted run per order,
+	 * folds the unigram counts into the resident array and starts a fresh
+	 * buffer over the same vocabulary.
+	 */
+	private void spill() throws IOException {
+		if (vocabulary.size() > unigramCounts.length)
+			unigramCounts = Arrays.copyOf(unigramCounts, Math.max(
+					vocabulary.size(), unigramCounts.length * 2));
+		for (int id = 0; id < vocabulary.size(); id++) {
+			unigramCounts[id] += buffer.getUnigramCount(id);
+		}
+		sentenceCount += buffer.getSentenceCount();
+		if (buffer.ngramEntries() > 0) {
+			writeRun(buffer.getBigramCounts(), runs.get(0));
+			if (order >= 3)
+				writeRun(buffer.getTrigramCounts(), runs.get(1));
+		}
+		buffer = new NgramCounts(order, vocabulary);
+	}
+
+	private void writeRun(LongDoubleHashMap counts, List<File> orderRuns)
+			throws IOException {
+		long[] keys = counts.keys();
+		Arrays.sort(keys);
+		File run = new File(runDirectory, "run-" + orderRuns.size() + "-"
+				+ keys.length + "-" + System.nanoTime() + ".bin");
+		// Listed before it is written, so a failed write is cleaned up too.
+		orderRuns.add(run);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(run), STREAM_BUFFER));
+		try {
+			out.writeInt(keys.length);
+			for (long key : keys) {
+				out.writeLong(key);
+				out.writeDouble(counts.get(key));
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Merges sorted runs through a priority queue keyed on each run's current
+	 * key, summing the counts of equal keys. Returns the number of entries
+	 * written.
+	 */
+	private static long merge(List<File> orderRuns, DataOutputStream out)
+			throws IOException {
+		PriorityQueue<RunCursor> queue = new PriorityQueue<RunCursor>(Math.max(
+				1, orderRuns.size()));
+		try {
+			for (File run : orderRuns) {
+				RunCursor cursor = new RunCursor(run);
+				if (cursor.advance())
+					queue.add(cursor);
+				else
+					cursor.close();
+			}
+			long entries = 0;
+			while (!queue.isEmpty()) {
+				RunCursor cursor = queue.poll();
+				long key = cursor.key;
+				double count = cursor.count;
+				if (cursor.advance())
+					queue.add(cursor);
+				else
+					cursor.close();
+				while (!queue.isEmpty() && queue.peek().key == key) {
+					RunCursor next = queue.poll();
+					count += next.count;
+					if (next.advance())
+						queue.add(next);
+					else
+						next.close();
+				}
+				out.writeLong(key);
+				out.writeDouble(count);
+				entries++;
+			}
+			return entries;
+		} finally {
+			for (RunCursor cursor : queue) {
+				cursor.close();
+			}
+		}
+	}
+
+	private static class RunCursor implements Comparable<RunCursor> {
+		private final DataInputStream in;
+		private int remaining;
+		long key;
+		double count;
+
+		RunCursor(File run) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(run), STREAM_BUFFER));
+			remaining = in.readInt();
+		}
+
+		boolean advance() throws IOException {
+			if (remaining == 0)
+				return false;
+			remaining--;
+			key = in.readLong();
+			count = in.readDouble();
+			return true;
+		}
+
+		void close() throws IOException {
+			in.close();
+		}
+
+		public int compareTo(RunCursor other) {
+			return Long.compare(key, other.key);
+		}
+	}
+}
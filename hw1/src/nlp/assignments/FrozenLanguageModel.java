@@ -0,0 +1,128 @@
+package nlp.assignments;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * A read-only view of a trained language model that many threads can score
+ * against at once. freeze() first has the model finish any work it defers to
+ * query time and refuse further updates, so that scoring never writes to
+ * shared state; the view then exposes only the scoring methods.
+ * <p/>
+ * scoreBatch() cuts a list of sentences into fixed-size chunks and scores
+ * them on an executor. The result is in input order and does not depend on
+ * the number of threads.
+ */
+final class FrozenLanguageModel implements IncrementalLanguageModel,
+		ScoringMetrics.Source {
+
+	/**
+	 * Models that can change after construction. freeze() completes every
+	 * lazily built table and makes later updates throw
+	 * IllegalStateException.
+	 */
+	interface Freezable {
+		void freeze();
+	}
+
+	private static final int CHUNK_SENTENCES = 64;
+
+	private final IncrementalLanguageModel model;
+
+	/**
+	 * Freezes a model. This freezes the model passed in, not a copy: its own
+	 * updates throw from then on, also when called directly rather than
+	 * through the view. Models that are not Freezable have no mutators and
+	 * build nothing lazily, apart from caches published through volatile
+	 * fields.
+	 */
+	public static FrozenLanguageModel freeze(IncrementalLanguageModel model) {
+		if (model instanceof FrozenLanguageModel)
+			return (FrozenLanguageModel) model;
+		if (model instanceof Freezable)
+			((Freezable) model).freeze();
+		return new FrozenLanguageModel(model);
+	}
+
+	/** Returns the log probabilities of the sentences on the common pool. */
+	public double[] scoreBatch(List<List<String>> sentences) {
+		return scoreBatch(sentences, ForkJoinPool.commonPool());
+	}
+
+	/** Returns the log probabilities of the sentences, in input order. */
+	public double[] scoreBatch(final List<List<String>> sentences,
+			ExecutorService executor) {
+		final double[] logProbabilities = new double[sentences.size()];
+		List<Callable<Void>> chunks = new ArrayList<Callable<Void>>();
+		for (int start = 0; start < sentences.size(); start += CHUNK_SENTENCES) {
+			final int chunkStart = start;
+			final int chunkEnd = Math.min(start + CHUNK_SENTENCES, sentences
+					.size());
+			chunks.add(new Callable<Void>() {
+				public Void call() {
+					for (int i = chunkStart; i < chunkEnd; i++) {
+						logProbabilities[i] = model
+								.getSentenceLogProbability(sentences.get(i));
+					}
+					return null;
+				}
+			});
+		}
+		try {
+			for (Future<Void> chunk : executor.invokeAll(chunks)) {
+				chunk.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while scoring sentences", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Problem scoring sentences", e
+					.getCause());
+		}
+		return logProbabilities;
+	}
+
+	/** The frozen model's metrics, or null if it keeps none. */
+	public ScoringMetrics getMetrics() {
+		return model instanceof ScoringMetrics.Source ? ((ScoringMetrics.Source) model)
+				.getMetrics()
+				: null;
+	}
+
+	public double getSentenceProbability(List<String> sentence) {
+		return model.getSentenceProbability(sentence);
+	}
+
+	public double getSentenceLogProbability(List<String> sentence) {
+		return model.getSentenceLogProbability(sentence);
+	}
+
+	public double[] getWordLogProbabilities(List<String> sentence) {
+		return model.getWordLogProbabilities(sentence);
+	}
+
+	public LanguageModelState getInitialState() {
+		return model.getInitialState();
+	}
+
+	public LanguageModelState score(LanguageModelState state, String word) {
+		return model.score(state, word);
+	}
+
+	public double getFinalLogProbability(LanguageModelState state) {
+		return model.getFinalLogProbability(state);
+	}
+
+	public List<String> generateSentence() {
+		return model.generateSentence();
+	}
+
+	private FrozenLanguageModel(IncrementalLanguageModel model) {
+		this.model = model;
+	}
+}
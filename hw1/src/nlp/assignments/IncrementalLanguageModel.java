@@ -0,0 +1,27 @@
+package nlp.assignments;
+
+/**
+ * A language model that scores a sentence one word at a time by threading a
+ * LanguageModelState through the words. Decoders and rescorers can extend
+ * hypotheses word by word and share the scores of common prefixes instead
+ * of rescoring whole sentences. For any sentence w1..wn,
+ * <p/>
+ * score(...score(getInitialState(), w1)..., wn) log probabilities plus
+ * getFinalLogProbability of the last state
+ * <p/>
+ * equals getSentenceLogProbability(sentence).
+ */
+interface IncrementalLanguageModel extends LogLanguageModel {
+
+	/** Returns the state before the first word of a sentence. */
+	LanguageModelState getInitialState();
+
+	/**
+	 * Scores word after the history in state. The returned state carries the
+	 * natural-log probability of word and the history for the next word.
+	 */
+	LanguageModelState score(LanguageModelState state, String word);
+
+	/** Returns the log probability of ending the sentence after state. */
+	double getFinalLogProbability(LanguageModelState state);
+}
@@ -1,11 +1,13 @@
 package nlp.assignments;
 
-import java.math.BigDecimal;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.SplittableRandom;
 
-import nlp.langmodel.LanguageModel;
 import nlp.util.Counter;
 import nlp.util.CounterMap;
 
@@ -13,7 +15,9 @@ import nlp.util.CounterMap;
  * A dummy language model -- uses empirical unigram counts, plus a single
  * ficticious count for unknown words.
  */
-class KatzBigramLanguageModel implements LanguageModel {
+class KatzBigramLanguageModel implements IncrementalLanguageModel,
+		ParallelSentenceGenerator.SentenceSampler,
+		LanguageModelSnapshot.Writable {
 
 	static final String START = "<S>";
 	static final String STOP = "</S>";
@@ -21,222 +25,273 @@ class KatzBigramLanguageModel implements LanguageModel {
 	static final int cutOff = 5;
     double discountFactor = 1;
 	Counter<String> wordCounter = new Counter<String>();
+	// Built on first use; the unigram distribution never changes afterwards.
+	private volatile AliasSampler<String> wordSampler;
 	CounterMap<String, String> bigramCounter = new CounterMap<String, String>();
-    CounterMap<String, String> continuationBigram = new CounterMap<String, String>();
-    Counter<String> continuationProb = new Counter<String>();
-	Counter<String> probabilities = new Counter<String>();
-	Counter<String> backoffs = new Counter<String>();
-	Counter<String> discountedWordCounter = new Counter<String>();
-	Counter<String> discountedBigramCounter = new Counter<String>();
-
-	public double getBigramProbability(String previousWord, String word) {
-		double bigramProbability = probabilities.getCount(previousWord + " "
-				+ word);
-      //  double prob = bigramProbability;
-        //bigramProbability = getKneserNeyBigram(previousWord, word);
-		if (Double.isNaN(bigramProbability)
-				|| Double.isInfinite(bigramProbability)
-				|| bigramProbability < 0)
-			System.err.println("stop");
+    KneserNeyBigramTables kneserNey;
+	// Scoring uses Kneser-Ney; the Katz estimates are only built, from the
+	// same counts, on the first getBigramProbability() call.
+	private volatile KatzEstimates katz;
 
+	/**
+	 * Katz estimates, indexed by the ids of the Kneser-Ney vocabulary; bigram
+	 * keys are NgramKeys.pack(previous, word).
+	 */
+	private static class KatzEstimates {
+		double[] unigramProbabilities;
+		double unknownProbability;
+		LongDoubleHashMap bigramProbabilities;
+		double[] backoffs;
+	}
 
+	/** The Katz backoff estimate of P(word | previousWord). */
+	public double getBigramProbability(String previousWord, String word) {
+		KatzEstimates estimates = getKatzEstimates();
+		Vocabulary vocabulary = kneserNey.getVocabulary();
+		int previousId = vocabulary.indexOf(previousWord);
+		int wordId = vocabulary.indexOf(word);
+		double bigramProbability = estimates.bigramProbabilities.get(NgramKeys
+				.pack(previousId, wordId));
 		if (bigramProbability != 0)
 			return bigramProbability;
 
-		double unigramProbability = probabilities.getCount(word);
-
+		double unigramProbability = wordId == Vocabulary.NOT_FOUND ? 0.0
+				: estimates.unigramProbabilities[wordId];
 		if (unigramProbability == 0) {
-			unigramProbability = probabilities.getCount(UNKNOWN);
+			unigramProbability = estimates.unknownProbability;
 		}
 
-		if (Double.isNaN(unigramProbability)
-				|| Double.isInfinite(unigramProbability)
-				|| unigramProbability < 0)
-			System.err.println("stop");
-
-		double backoff = backoffs.getCount(previousWord);
-		if (backoff == 0) {
-			if (probabilities.getCount(previousWord) == 0)
-				backoff = 1.0;
-		}
+		// An unseen previous word backs off with weight one.
+		double backoff = previousId == Vocabulary.NOT_FOUND ? 1.0
+				: estimates.backoffs[previousId];
 		return unigramProbability * backoff;
 	}
+	private KatzEstimates getKatzEstimates() {
+		KatzEstimates estimates = katz;
+		if (estimates == null) {
+			estimates = normalizeDistributions(kneserNey);
+			katz = estimates;
+		}
+		return estimates;
+	}
+
     public double getKneserNeyBigram(String prev, String word) {
-        Counter<String> prevCount = bigramCounter
-                .getCounter(prev);
-        double bigramCount = bigramCounter.getCount(prev, word);
-        double normalizedDiscount = Math.max(bigramCount - discountFactor, 0) /  (1 +wordCounter.getCount(prev));
-        double normalizingConstantNum = discountFactor * bigramCounter.getCounter(prev).getModCount();
-        double normalizingConstantDen = 1 + wordCounter.getCount(prev);
-        double normalizingConstant= normalizingConstantNum / normalizingConstantDen;
-        double kneserProb = normalizedDiscount + normalizingConstant * getContinuationProbability(word);
-        return kneserProb;
+        return kneserNey.getProbability(prev, word);
     }
     public double getSimplifiedKneserNeyBigram(String prev, String word) {
-
-        double bigramCount = bigramCounter.getCount(prev, word);
-        double normalizedDiscount = Math.max(bigramCount - discountFactor, 0) /  (1 +wordCounter.getCount(prev));
-        double normalizingConstantNum = discountFactor * bigramCounter.getCounter(prev).getModCount();
-        double normalizingConstantDen =  wordCounter.getCount(prev);
-        double normalizingConstant= normalizingConstantNum / normalizingConstantDen;
-        double kneserProb = normalizedDiscount + normalizingConstant * getContinuationProbability(word);
-        return kneserProb;
+        Vocabulary vocabulary = kneserNey.getVocabulary();
+        return kneserNey.getSimplifiedProbability(vocabulary.indexOf(prev),
+                vocabulary.indexOf(word));
     }
     public double getContinuationProbability(String word) {
-        return continuationProb.getCount(word);
-    }
-
-    private void computeContinuationProbablity() {
-        double totalBigrams = bigramCounter.totalModCount();
-        for (String previousWord : bigramCounter.keySet()) {
-            double totalWordWordCompletes = continuationBigram.getCounter(previousWord).getModCount();
-            continuationProb.setCount(previousWord, totalWordWordCompletes / totalBigrams);
-        }
+        return kneserNey.getContinuationProbability(kneserNey.getVocabulary()
+                .indexOf(word));
     }
 
     public double getSentenceProbability(List<String> sentence) {
-		List<String> stoppedSentence = new ArrayList<String>(sentence);
-		stoppedSentence.add(0, START);
-		stoppedSentence.add(STOP);
-		double probability = 1.0;
-		String previousWord = stoppedSentence.get(0);
-		for (int i = 1; i < stoppedSentence.size(); i++) {
-			String word = stoppedSentence.get(i);
-			probability *= getKneserNeyBigram(previousWord, word);
-			previousWord = word;
+		return Math.exp(getSentenceLogProbability(sentence));
+	}
+
+	public double getSentenceLogProbability(List<String> sentence) {
+		return scoreSentence(sentence, null);
+	}
+
+	public double[] getWordLogProbabilities(List<String> sentence) {
+		double[] wordLogProbabilities = new double[sentence.size() + 1];
+		scoreSentence(sentence, wordLogProbabilities);
+		return wordLogProbabilities;
+	}
+
+	private double scoreSentence(List<String> sentence,
+			double[] wordLogProbabilities) {
+		double logProbability = 0.0;
+		Vocabulary vocabulary = kneserNey.getVocabulary();
+		int previousId = vocabulary.indexOf(START);
+		for (int i = 0; i <= sentence.size(); i++) {
+			String word = i < sentence.size() ? sentence.get(i) : STOP;
+			int wordId = vocabulary.indexOf(word);
+			double wordLogProbability = Math.log(kneserNey.getProbability(
+					previousId, wordId));
+			if (wordLogProbabilities != null)
+				wordLogProbabilities[i] = wordLogProbability;
+			logProbability += wordLogProbability;
+			previousId = wordId;
 		}
-		return probability;
+		return logProbability;
+	}
+
+	public LanguageModelState getInitialState() {
+		return new LanguageModelState(kneserNey.getVocabulary().indexOf(START),
+				null, 0.0);
 	}
 
-	String generateWord() {
-		double sample = Math.random();
-		double sum = 0.0;
-		for (String word : wordCounter.keySet()) {
-			sum += wordCounter.getCount(word);
-			if (sum > sample) {
-				return word;
-			}
+	public LanguageModelState score(LanguageModelState state, String word) {
+		int wordId = kneserNey.getVocabulary().indexOf(word);
+		return new LanguageModelState(wordId, null, Math.log(kneserNey
+				.getProbability((int) state.context, wordId)));
+	}
+
+	public double getFinalLogProbability(LanguageModelState state) {
+		return Math.log(kneserNey.getProbability((int) state.context,
+				kneserNey.getVocabulary().indexOf(STOP)));
+	}
+
+	String generateWord(SplittableRandom random) {
+		AliasSampler<String> sampler = wordSampler;
+		if (sampler == null) {
+			// START pads the counts but is never generated.
+			sampler = AliasSampler.of(wordCounter, UNKNOWN, START);
+			wordSampler = sampler;
 		}
-		return UNKNOWN;
+		return sampler.sample(random.nextDouble());
 	}
 
 	public List<String> generateSentence() {
+		return generateSentence(new SplittableRandom());
+	}
+
+	public List<String> generateSentence(SplittableRandom random) {
 		List<String> sentence = new ArrayList<String>();
-		String word = generateWord();
+		String word = generateWord(random);
 		while (!word.equals(STOP)) {
 			sentence.add(word);
-			word = generateWord();
+			word = generateWord(random);
 		}
 		return sentence;
 	}
 
 	public KatzBigramLanguageModel(Collection<List<String>> sentenceCollection) {
-		for (List<String> sentence : sentenceCollection) {
-			List<String> stoppedSentence = new ArrayList<String>(sentence);
-			stoppedSentence.add(0, START);
-			stoppedSentence.add(STOP);
-			String previousWord = stoppedSentence.get(0);
-            wordCounter.incrementCount(START, 1.0);
-			for (int i = 1; i < stoppedSentence.size(); i++) {
-				String word = stoppedSentence.get(i);
-				wordCounter.incrementCount(word, 1.0);
-				discountedWordCounter.incrementCount(word, 1.0);
-				discountedBigramCounter.incrementCount(previousWord + " "
-						+ word, 1.0);
-				bigramCounter.incrementCount(previousWord, word, 1.0);
-                continuationBigram.incrementCount(word, previousWord, 1.0);
-				previousWord = word;
-			}
+		this(NgramCounts.count(sentenceCollection, 2, new Vocabulary()));
+	}
 
-		}
-       //normalizeDistributions();
-        computeContinuationProbablity();
+	/** Builds the model from bigram counts, e.g. those read from a count file. */
+	public KatzBigramLanguageModel(NgramCounts counts) {
+		counts.checkOrder(2);
+		counts.addUnigramsTo(wordCounter);
+		counts.addBigramsTo(bigramCounter);
+        kneserNey = new KneserNeyBigramTables(new Vocabulary(), bigramCounter,
+                wordCounter, discountFactor, true);
 
 
 	}
 
-	private void normalizeDistributions() {
+	/**
+	 * Writes the counts, the Kneser-Ney tables that score the model and the
+	 * Katz estimates, which are built first if no query has needed them yet.
+	 */
+	public void write(DataOutputStream out) throws IOException {
+		KatzEstimates estimates = getKatzEstimates();
+		LanguageModelSnapshot.writeCounter(wordCounter, out);
+		LanguageModelSnapshot.writeCounterMap(bigramCounter, out);
+		LanguageModelSnapshot.writeVocabulary(kneserNey.getVocabulary(), out);
+		kneserNey.write(out);
+		LanguageModelSnapshot.writeArray(estimates.unigramProbabilities, out);
+		out.writeDouble(estimates.unknownProbability);
+		LanguageModelSnapshot.writeTable(estimates.bigramProbabilities, out);
+		LanguageModelSnapshot.writeArray(estimates.backoffs, out);
+	}
+
+	/** Reads a model written by write(). */
+	static KatzBigramLanguageModel read(DataInputStream in) throws IOException {
+		KatzBigramLanguageModel model = new KatzBigramLanguageModel();
+		model.wordCounter = LanguageModelSnapshot.readCounter(in);
+		model.bigramCounter = LanguageModelSnapshot.readCounterMap(in);
+		Vocabulary vocabulary = new Vocabulary();
+		LanguageModelSnapshot.readVocabulary(vocabulary, in);
+		model.kneserNey = KneserNeyBigramTables.read(vocabulary, in);
+		KatzEstimates estimates = new KatzEstimates();
+		estimates.unigramProbabilities = LanguageModelSnapshot.readArray(in);
+		estimates.unknownProbability = in.readDouble();
+		estimates.bigramProbabilities = LanguageModelSnapshot.readTable(in);
+		estimates.backoffs = LanguageModelSnapshot.readArray(in);
+		model.katz = estimates;
+		return model;
+	}
+
+	private KatzBigramLanguageModel() {
+	}
+
+	/**
+	 * Katz estimates from the counts held by the Kneser-Ney tables. Counts up
+	 * to the cutoff are discounted with Good-Turing estimates from the
+	 * count-of-count buckets; each previous word's backoff weight is the mass
+	 * its seen bigrams leave free, over the unigram mass of words it was not
+	 * seen with. Everything is a pass over double[] tables indexed by id or
+	 * over the packed bigram keys.
+	 */
+	private static KatzEstimates normalizeDistributions(
+			KneserNeyBigramTables counts) {
+		KatzEstimates estimates = new KatzEstimates();
+		int numWords = counts.getVocabulary().size();
+		LongDoubleHashMap bigramCounts = counts.getBigramCounts();
+		long[] bigramKeys = bigramCounts.keys();
+
 		double[] unigramBuckets = new double[cutOff + 2];
-		for (String word : wordCounter.keySet()) {
-			double count = wordCounter.getCount(word);
+		double totalCount = 0.0;
+		int numSeenWords = 0;
+		for (int id = 0; id < numWords; id++) {
+			double count = counts.getContextCount(id);
+			if (count == 0)
+				continue;
 			if (count <= cutOff + 1)
 				unigramBuckets[(int) count]++;
+			totalCount += count;
+			numSeenWords++;
 		}
-
 		double[] bigramBuckets = new double[cutOff + 2];
-		for (String previousWord : bigramCounter.keySet()) {
-			Counter<String> currentCounter = bigramCounter
-					.getCounter(previousWord);
-			for (String word : currentCounter.keySet()) {
-				double count = currentCounter.getCount(word);
-				if (count <= cutOff + 1)
-					bigramBuckets[(int) count]++;
-			}
+		double[] contextCounts = new double[numWords];
+		for (long key : bigramKeys) {
+			double count = bigramCounts.get(key);
+			if (count <= cutOff + 1)
+				bigramBuckets[(int) count]++;
+			contextCounts[NgramKeys.first(key)] += count;
 		}
 
-		double normalizer = (1  ) / (  wordCounter.totalCount());
-		double A = (cutOff + 1) * unigramBuckets[cutOff + 1]
-				/ unigramBuckets[1];
-		for (String word : wordCounter.keySet()) {
-			double count = wordCounter.getCount(word);
-			if (count > cutOff)
-				probabilities.setCount(word, count * normalizer);
-			else {
-				double discountedCount = (count + 1)
-						* unigramBuckets[(int) count + 1]
-						/ unigramBuckets[(int) count];
-				double probability = count * normalizer
-						* (discountedCount / count - A) / (1 - A);
-				probabilities.setCount(word, probability);
-				if (Double.isNaN(probability) || Double.isInfinite(probability)
-						|| probability < 0)
-					System.err.println("stop1");
-			}
-		}
-		probabilities.setCount(UNKNOWN, unigramBuckets[1] * normalizer
-				/ wordCounter.size());
-
-		A = (cutOff + 1) * bigramBuckets[cutOff + 1] / bigramBuckets[1];
-		Counter<String> forwardProbability = new Counter<String>();
-		Counter<String> backwardProbability = new Counter<String>();
-		for (String previousWord : bigramCounter.keySet()) {
-			Counter<String> currentCounter = bigramCounter
-					.getCounter(previousWord);
-			normalizer = 1.0 / currentCounter.totalCount();
-			double probability = 0;
-			double probabilitySoFar = 0;
-			for (String word : currentCounter.keySet()) {
-				double count = currentCounter.getCount(word);
-				if (count > cutOff) {
-					probability = count * normalizer;
-					 //probability *= 0.99;
-				} else {
-					double discountedCount = (count + 1)
-							* bigramBuckets[(int) count + 1]
-							/ bigramBuckets[(int) count];
-					probability = count * normalizer
-							* (discountedCount / count - A) / (1 - A);
-				}
-				if (Double.isNaN(probability) || Double.isInfinite(probability)
-						|| probability < 0)
-					System.err.println("stop2");
-				probabilities.setCount(previousWord + " " + word, probability);
-				backwardProbability.incrementCount(previousWord,
-						probabilities.getCount(word));
-				probabilitySoFar += probability;
-			}
-			forwardProbability.setCount(previousWord, probabilitySoFar);
+		double normalizer = 1.0 / totalCount;
+		double[] unigramProbabilities = new double[numWords];
+		for (int id = 0; id < numWords; id++) {
+			double count = counts.getContextCount(id);
+			if (count != 0)
+				unigramProbabilities[id] = count * normalizer
+						* discountRatio(unigramBuckets, count);
 		}
+		estimates.unigramProbabilities = unigramProbabilities;
+		estimates.unknownProbability = unigramBuckets[1] * normalizer
+				/ numSeenWords;
 
-		for (String word : wordCounter.keySet()) {
-            BigDecimal f = BigDecimal.valueOf(1 - forwardProbability.getCount(word));
-            BigDecimal b = BigDecimal.valueOf(1 - backwardProbability.getCount(word));
-            BigDecimal back = f.divide(b,4);
-            double backoff = back.doubleValue() ;
-			if (Double.isNaN(backoff) || Double.isInfinite(backoff)
-					|| backoff == 0)
-				System.err.println("stop3" +  word +  backoff);
-			backoffs.setCount(word, backoff);
+		double[] forwardMass = new double[numWords];
+		double[] backwardMass = new double[numWords];
+		LongDoubleHashMap bigramProbabilities = new LongDoubleHashMap(
+				bigramKeys.length);
+		for (long key : bigramKeys) {
+			int previousId = NgramKeys.first(key);
+			int wordId = NgramKeys.second(key);
+			double count = bigramCounts.get(key);
+			double probability = count / contextCounts[previousId]
+					* discountRatio(bigramBuckets, count);
+			bigramProbabilities.put(key, probability);
+			forwardMass[previousId] += probability;
+			backwardMass[previousId] += unigramProbabilities[wordId];
+		}
+		double[] backoffs = new double[numWords];
+		for (int id = 0; id < numWords; id++) {
+			backoffs[id] = (1.0 - forwardMass[id]) / (1.0 - backwardMass[id]);
 		}
+		estimates.bigramProbabilities = bigramProbabilities;
+		estimates.backoffs = backoffs;
+		return estimates;
+	}
+
+	/**
+	 * The Katz ratio d_r = (r* / r - A) / (1 - A) with A = (k+1) n_{k+1} / n_1,
+	 * or 1 above the cutoff k.
+	 */
+	private static double discountRatio(double[] buckets, double count) {
+		if (count > cutOff)
+			return 1.0;
+		double a = (cutOff + 1) * buckets[cutOff + 1] / buckets[1];
+		double discountedCount = (count + 1) * buckets[(int) count + 1]
+				/ buckets[(int) count];
+		return (discountedCount / count - a) / (1 - a);
 	}
 }
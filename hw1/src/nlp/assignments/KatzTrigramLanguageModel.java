@@ -1,10 +1,13 @@
 package nlp.assignments;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.SplittableRandom;
 
-import nlp.langmodel.LanguageModel;
 import nlp.util.Counter;
 import nlp.util.CounterMap;
 
@@ -12,7 +15,9 @@ import nlp.util.CounterMap;
  * A dummy language model -- uses empirical unigram counts, plus a single
  * ficticious count for unknown words.
  */
-class KatzTrigramLanguageModel implements LanguageModel {
+class KatzTrigramLanguageModel implements IncrementalLanguageModel,
+		ParallelSentenceGenerator.SentenceSampler, ScoringMetrics.Source,
+		LanguageModelSnapshot.Writable {
 
 	static final String START = "<S>";
 	static final String STOP = "</S>";
@@ -21,123 +26,239 @@ class KatzTrigramLanguageModel implements LanguageModel {
 	static final double lambda2 = 0.25;
 	double discountFactor = 10;
 	Counter<String> wordCounter = new Counter<String>();
+	// Built on first use; the unigram distribution never changes afterwards.
+	private volatile AliasSampler<String> wordSampler;
 	CounterMap<String, String> bigramCounter = new CounterMap<String, String>();
-    CounterMap<String, String> continuationBigram = new CounterMap<String, String>();
-	CounterMap<String, String> trigramCounter = new CounterMap<String, String>();
-    CounterMap<String, String> continuationTrigram = new CounterMap<String, String>();
+	// Trigram statistics keyed by packed word ids: raw trigram counts, the
+	// total and number of distinct successors of each (prePrevious, previous)
+	// context, and the number of distinct left extensions of each
+	// (previous, word) pair.
+	Vocabulary vocabulary = new Vocabulary();
+	LongDoubleHashMap trigramCounts = new LongDoubleHashMap();
+	LongDoubleHashMap trigramContextCounts = new LongDoubleHashMap();
+	LongDoubleHashMap trigramContextTypes = new LongDoubleHashMap();
+	LongDoubleHashMap continuationTrigramTypes = new LongDoubleHashMap();
+	// Kneser-Ney statistics computed from the raw counts before they are
+	// normalized, with D N1+(u v .) / c(u v) precomputed per trigram context.
+	KneserNeyBigramTables kneserNey;
+	LongDoubleHashMap trigramInterpolationWeights;
+	final ScoringMetrics metrics = new ScoringMetrics(3);
 
 	public double getTrigramProbability(String prePreviousWord,
 			String previousWord, String word) {
-		double trigramCount = trigramCounter.getCount(prePreviousWord
-				+ previousWord, word);
+		return getTrigramProbability(vocabulary.indexOf(prePreviousWord),
+				vocabulary.indexOf(previousWord), vocabulary.indexOf(word),
+				previousWord, word);
+	}
+
+	private double getTrigramProbability(int prePreviousId, int previousId,
+			int wordId, String previousWord, String word) {
+		double contextCount = trigramContextCounts.get(NgramKeys.pack(
+				prePreviousId, previousId));
+		double trigramCount = contextCount == 0 ? 0.0 : trigramCounts
+				.get(NgramKeys.pack(prePreviousId, previousId, wordId))
+				/ contextCount;
 		double bigramCount = bigramCounter.getCount(previousWord, word);
 		double unigramCount = wordCounter.getCount(word);
+		metrics.recordLookup(3);
+		metrics.recordLookup(2);
+		metrics.recordLookup(1);
+		int resolvedOrder = trigramCount != 0 ? 3 : bigramCount != 0 ? 2
+				: unigramCount != 0 ? 1 : 0;
 		if (unigramCount == 0) {
-			System.out.println("UNKNOWN Word: " + word);
 			unigramCount = wordCounter.getCount(UNKNOWN);
 		}
-		return lambda1 * trigramCount + lambda2 * bigramCount
+		double probability = lambda1 * trigramCount + lambda2 * bigramCount
 				+ (1.0 - lambda1 - lambda2) * unigramCount;
+		metrics.recordPrediction(resolvedOrder, resolvedOrder == 0,
+				probability == 0);
+		return probability;
+	}
+
+	public ScoringMetrics getMetrics() {
+		return metrics;
 	}
 	public double getKneserNeyProbability(String prePreviousWord, String previousWord, String word) {
-        double trigramCount = trigramCounter.getCount(prePreviousWord
-                + previousWord, word);
+        int prePreviousId = vocabulary.indexOf(prePreviousWord);
+        int previousId = vocabulary.indexOf(previousWord);
+        int wordId = vocabulary.indexOf(word);
+        long contextKey = NgramKeys.pack(prePreviousId, previousId);
+        double trigramCount = trigramCounts.get(NgramKeys.pack(prePreviousId,
+                previousId, wordId));
         double highestOrderNormalizedDiscountNum = Math.max((trigramCount - discountFactor), 0) ;
-        double highestOrderNormalizedDiscountDen =  trigramCounter.getCounter(prePreviousWord+previousWord).totalCount();
+        double highestOrderNormalizedDiscountDen =  trigramContextCounts.get(contextKey);
 		double higherOrderTerm = highestOrderNormalizedDiscountNum / highestOrderNormalizedDiscountDen;
-        double normalizingConstant = (discountFactor / bigramCounter.getCount(prePreviousWord, previousWord)) *
-                trigramCounter.getCounter(prePreviousWord + previousWord).getModCount();
-       double lowerOrderTerm = normalizingConstant * getKneserNeyBigram(previousWord, word);
+        double normalizingConstant = trigramInterpolationWeights.get(contextKey);
+       double lowerOrderTerm = normalizingConstant * kneserNey.getProbability(previousId, wordId);
         return higherOrderTerm + lowerOrderTerm;
 	}
     public double getKneserNeyBigram(String prev, String word) {
-        Counter<String> prevCount = bigramCounter
-                .getCounter(prev);
-        double normalizedDiscount = Math.max(prevCount.getCount(word) - discountFactor, 0) /  (1 +wordCounter.getCount(prev));
-        double normalizingConstantNum = discountFactor * bigramCounter.getCounter(prev).getModCount();
-        double normalizingConstantDen = 1 + wordCounter.getCount(prev);
-        double normalizingConstant= normalizingConstantNum / normalizingConstantDen;
-
-        return normalizedDiscount + normalizingConstant * getContinuationProbability(word);
+        return kneserNey.getProbability(vocabulary.indexOf(prev),
+                vocabulary.indexOf(word));
     }
     public double getContinuationProbability(String word) {
-        double totalWordWordCompletes = continuationBigram.getCounter(word).getModCount();
-        double totalBigrams = bigramCounter.totalModCount();
-        return totalWordWordCompletes / totalBigrams;
+        return kneserNey.getContinuationProbability(vocabulary.indexOf(word));
     }
 	public double getSentenceProbability(List<String> sentence) {
-		List<String> stoppedSentence = new ArrayList<String>(sentence);
-		stoppedSentence.add(0, START);
-		stoppedSentence.add(0, START);
-		stoppedSentence.add(STOP);
-		double probability = 1.0;
-		String prePreviousWord = stoppedSentence.get(0);
-		String previousWord = stoppedSentence.get(1);
-		for (int i = 2; i < stoppedSentence.size(); i++) {
-			String word = stoppedSentence.get(i);
-			probability *= getTrigramProbability(prePreviousWord, previousWord,
-					word);
-			prePreviousWord = previousWord;
+		double logProbability = getSentenceLogProbability(sentence);
+		double probability = Math.exp(logProbability);
+		if (probability == 0 && logProbability != Double.NEGATIVE_INFINITY)
+			metrics.recordUnderflow();
+		return probability;
+	}
+
+	public double getSentenceLogProbability(List<String> sentence) {
+		return scoreSentence(sentence, null);
+	}
+
+	public double[] getWordLogProbabilities(List<String> sentence) {
+		double[] wordLogProbabilities = new double[sentence.size() + 1];
+		scoreSentence(sentence, wordLogProbabilities);
+		return wordLogProbabilities;
+	}
+
+	private double scoreSentence(List<String> sentence,
+			double[] wordLogProbabilities) {
+		double logProbability = 0.0;
+		int startId = vocabulary.indexOf(START);
+		int prePreviousId = startId;
+		int previousId = startId;
+		String previousWord = START;
+		for (int i = 0; i <= sentence.size(); i++) {
+			String word = i < sentence.size() ? sentence.get(i) : STOP;
+			int wordId = vocabulary.indexOf(word);
+			double wordLogProbability = Math.log(getTrigramProbability(
+					prePreviousId, previousId, wordId, previousWord, word));
+			if (wordLogProbabilities != null)
+				wordLogProbabilities[i] = wordLogProbability;
+			logProbability += wordLogProbability;
+			prePreviousId = previousId;
+			previousId = wordId;
 			previousWord = word;
 		}
-		if (probability == 0)
-			System.err.println("Underflow");
-		return probability;
+		return logProbability;
+	}
+
+	/**
+	 * The state context packs the ids of the last two words; the last word
+	 * itself is kept for the String-keyed bigram and unigram counters.
+	 */
+	public LanguageModelState getInitialState() {
+		int startId = vocabulary.indexOf(START);
+		return new LanguageModelState(NgramKeys.pack(startId, startId), START,
+				0.0);
+	}
+
+	public LanguageModelState score(LanguageModelState state, String word) {
+		int wordId = vocabulary.indexOf(word);
+		int previousId = NgramKeys.second(state.context);
+		double logProbability = Math.log(getTrigramProbability(
+				NgramKeys.first(state.context), previousId, wordId,
+				state.lastWord, word));
+		return new LanguageModelState(NgramKeys.pack(previousId, wordId), word,
+				logProbability);
 	}
 
-	String generateWord() {
-		double sample = Math.random();
-		double sum = 0.0;
-		for (String word : wordCounter.keySet()) {
-			sum += wordCounter.getCount(word);
-			if (sum > sample) {
-				return word;
-			}
+	public double getFinalLogProbability(LanguageModelState state) {
+		return Math.log(getTrigramProbability(NgramKeys.first(state.context),
+				NgramKeys.second(state.context), vocabulary.indexOf(STOP),
+				state.lastWord, STOP));
+	}
+
+	String generateWord(SplittableRandom random) {
+		AliasSampler<String> sampler = wordSampler;
+		if (sampler == null) {
+			// START pads the counts but is never generated.
+			sampler = AliasSampler.of(wordCounter, UNKNOWN, START);
+			wordSampler = sampler;
 		}
-		return UNKNOWN;
+		return sampler.sample(random.nextDouble());
 	}
 
 	public List<String> generateSentence() {
+		return generateSentence(new SplittableRandom());
+	}
+
+	public List<String> generateSentence(SplittableRandom random) {
 		List<String> sentence = new ArrayList<String>();
-		String word = generateWord();
+		String word = generateWord(random);
 		while (!word.equals(STOP)) {
 			sentence.add(word);
-			word = generateWord();
+			word = generateWord(random);
 		}
 		return sentence;
 	}
 
 	public KatzTrigramLanguageModel(Collection<List<String>> sentenceCollection) {
-		for (List<String> sentence : sentenceCollection) {
-			List<String> stoppedSentence = new ArrayList<String>(sentence);
-			stoppedSentence.add(0, START);
-			stoppedSentence.add(0, START);
-
-			stoppedSentence.add(STOP);
-			String prePreviousWord = stoppedSentence.get(0);
-			String previousWord = stoppedSentence.get(1);
-            wordCounter.incrementCount(START, 2.0);
-            bigramCounter.incrementCount(prePreviousWord, previousWord, 1.0);
-			for (int i = 2; i < stoppedSentence.size(); i++) {
-				String word = stoppedSentence.get(i);
-				wordCounter.incrementCount(word, 1.0);
-				bigramCounter.incrementCount(previousWord, word, 1.0);
-                continuationBigram.incrementCount(word, previousWord, 1.0);
-				trigramCounter.incrementCount(prePreviousWord + previousWord,
-						word, 1.0);
-                continuationTrigram.incrementCount(previousWord + word, prePreviousWord, 1.0);
-				prePreviousWord = previousWord;
-				previousWord = word;
-			}
+		this(NgramCounts.count(sentenceCollection, 3, new Vocabulary()));
+	}
+
+	/** Builds the model from trigram counts, e.g. those read from a count file. */
+	public KatzTrigramLanguageModel(NgramCounts counts) {
+		counts.checkOrder(3);
+		counts.addUnigramsTo(wordCounter);
+		counts.addBigramsTo(bigramCounter);
+		counts.addTrigramsTo(vocabulary, trigramCounts, trigramContextCounts);
+		for (long trigramKey : trigramCounts.keys()) {
+			int prePreviousId = NgramKeys.trigramField(trigramKey, 0);
+			int previousId = NgramKeys.trigramField(trigramKey, 1);
+			int wordId = NgramKeys.trigramField(trigramKey, 2);
+			trigramContextTypes.increment(
+					NgramKeys.pack(prePreviousId, previousId), 1.0);
+			continuationTrigramTypes.increment(
+					NgramKeys.pack(previousId, wordId), 1.0);
 		}
 		wordCounter.incrementCount(UNKNOWN, 1.0);
+		computeKneserNeyTables();
 		normalizeDistributions();
 	}
 
-	private void normalizeDistributions() {
-		for (String previousBigram : trigramCounter.keySet()) {
-			trigramCounter.getCounter(previousBigram).normalize();
+	/**
+	 * Writes the normalized unigram and bigram distributions, the trigram
+	 * counts with their context totals, and the Kneser-Ney tables. The type
+	 * counts the tables were computed from are not needed once they exist.
+	 */
+	public void write(DataOutputStream out) throws IOException {
+		LanguageModelSnapshot.writeCounter(wordCounter, out);
+		LanguageModelSnapshot.writeCounterMap(bigramCounter, out);
+		LanguageModelSnapshot.writeVocabulary(vocabulary, out);
+		LanguageModelSnapshot.writeTable(trigramCounts, out);
+		LanguageModelSnapshot.writeTable(trigramContextCounts, out);
+		kneserNey.write(out);
+		LanguageModelSnapshot.writeTable(trigramInterpolationWeights, out);
+	}
+
+	/** Reads a model written by write(). */
+	static KatzTrigramLanguageModel read(DataInputStream in) throws IOException {
+		KatzTrigramLanguageModel model = new KatzTrigramLanguageModel();
+		model.wordCounter = LanguageModelSnapshot.readCounter(in);
+		model.bigramCounter = LanguageModelSnapshot.readCounterMap(in);
+		LanguageModelSnapshot.readVocabulary(model.vocabulary, in);
+		model.trigramCounts = LanguageModelSnapshot.readTable(in);
+		model.trigramContextCounts = LanguageModelSnapshot.readTable(in);
+		model.kneserNey = KneserNeyBigramTables.read(model.vocabulary, in);
+		model.trigramInterpolationWeights = LanguageModelSnapshot.readTable(in);
+		return model;
+	}
+
+	private KatzTrigramLanguageModel() {
+	}
+
+	private void computeKneserNeyTables() {
+		kneserNey = new KneserNeyBigramTables(vocabulary, bigramCounter,
+				wordCounter, discountFactor);
+		long[] contextKeys = trigramContextCounts.keys();
+		trigramInterpolationWeights = new LongDoubleHashMap(contextKeys.length);
+		for (long contextKey : contextKeys) {
+			double contextCount = kneserNey.getCount(
+					NgramKeys.first(contextKey), NgramKeys.second(contextKey));
+			trigramInterpolationWeights.put(contextKey, discountFactor
+					* trigramContextTypes.get(contextKey) / contextCount);
 		}
+	}
+
+	private void normalizeDistributions() {
+		// Trigram probabilities are derived from the raw counts at lookup time.
 		for (String previousWord : bigramCounter.keySet()) {
 			bigramCounter.getCounter(previousWord).normalize();
 		}
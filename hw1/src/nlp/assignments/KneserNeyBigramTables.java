@@ -0,0 +1,192 @@
+package nlp.assignments;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import nlp.util.Counter;
+import nlp.util.CounterMap;
+
+/**
+ * Interpolated Kneser-Ney bigram statistics, computed once from the counts
+ * and stored in arrays indexed by vocabulary id, so that a probability is a
+ * handful of array reads plus one probe into the packed bigram table:
+ * <p/>
+ * P(w | v) = max(c(v, w) - D, 0) / (1 + c(v)) + D N1+(v .) / (1 + c(v)) Pc(w)
+ * <p/>
+ * where Pc(w) = N1+(. w) / N1+(. .) is the continuation probability. The
+ * bigram models estimate Pc only for words seen as contexts, so </S> gets
+ * none; the trigram model estimates it for every word with a predecessor.
+ */
+class KneserNeyBigramTables {
+
+	private final Vocabulary vocabulary;
+	private final double discount;
+	private final LongDoubleHashMap bigramCounts;
+	private final double[] contextCounts;
+	private final double[] contextTypes;
+	private final double[] inverseDenominators;
+	private final double[] interpolationWeights;
+	private final double[] continuationProbabilities;
+
+	public double getProbability(String previousWord, String word) {
+		return getProbability(vocabulary.indexOf(previousWord),
+				vocabulary.indexOf(word));
+	}
+
+	public double getProbability(int previousId, int wordId) {
+		if (previousId == Vocabulary.NOT_FOUND)
+			return 0.0;
+		double bigramCount = getCount(previousId, wordId);
+		return Math.max(bigramCount - discount, 0)
+				* inverseDenominators[previousId]
+				+ interpolationWeights[previousId]
+				* getContinuationProbability(wordId);
+	}
+
+	/**
+	 * The variant whose interpolation weight is normalized by c(v) rather
+	 * than 1 + c(v).
+	 */
+	public double getSimplifiedProbability(int previousId, int wordId) {
+		if (previousId == Vocabulary.NOT_FOUND)
+			return 0.0;
+		double bigramCount = getCount(previousId, wordId);
+		return Math.max(bigramCount - discount, 0)
+				* inverseDenominators[previousId] + discount
+				* contextTypes[previousId] / contextCounts[previousId]
+				* getContinuationProbability(wordId);
+	}
+
+	public double getContinuationProbability(int wordId) {
+		if (wordId == Vocabulary.NOT_FOUND)
+			return 0.0;
+		return continuationProbabilities[wordId];
+	}
+
+	public double getCount(int previousId, int wordId) {
+		return bigramCounts.get(NgramKeys.pack(previousId, wordId));
+	}
+
+	/** Returns N1+(v .), the number of distinct words seen after v. */
+	public double getContextTypes(int previousId) {
+		if (previousId == Vocabulary.NOT_FOUND)
+			return 0.0;
+		return contextTypes[previousId];
+	}
+
+	/** Returns c(v), the count of v as a unigram. */
+	public double getContextCount(int previousId) {
+		return contextCounts[previousId];
+	}
+
+	/** The bigram counts, keyed by NgramKeys.pack(previous, word). */
+	public LongDoubleHashMap getBigramCounts() {
+		return bigramCounts;
+	}
+
+	public Vocabulary getVocabulary() {
+		return vocabulary;
+	}
+
+	/**
+	 * Builds the tables from bigram counts and the per-word counts c(v) used
+	 * in the denominators, with a continuation probability for every word
+	 * that has a predecessor. Words missing from the vocabulary are added.
+	 */
+	public KneserNeyBigramTables(Vocabulary vocabulary,
+			CounterMap<String, String> bigramCounter,
+			Counter<String> wordCounter, double discount) {
+		this(vocabulary, bigramCounter, wordCounter, discount, false);
+	}
+
+	/**
+	 * Builds the tables, giving a continuation probability only to words
+	 * seen as contexts if contextsOnly is set.
+	 */
+	public KneserNeyBigramTables(Vocabulary vocabulary,
+			CounterMap<String, String> bigramCounter,
+			Counter<String> wordCounter, double discount, boolean contextsOnly) {
+		this.vocabulary = vocabulary;
+		this.discount = discount;
+		int numBigrams = 0;
+		for (String previousWord : bigramCounter.keySet()) {
+			vocabulary.add(previousWord);
+			Counter<String> currentCounter = bigramCounter
+					.getCounter(previousWord);
+			for (String word : currentCounter.keySet()) {
+				vocabulary.add(word);
+			}
+			numBigrams += currentCounter.size();
+		}
+		for (String word : wordCounter.keySet()) {
+			vocabulary.add(word);
+		}
+
+		int size = vocabulary.size();
+		bigramCounts = new LongDoubleHashMap(numBigrams);
+		contextCounts = new double[size];
+		contextTypes = new double[size];
+		inverseDenominators = new double[size];
+		interpolationWeights = new double[size];
+		continuationProbabilities = new double[size];
+
+		boolean[] contexts = new boolean[size];
+		double totalTypes = 0.0;
+		for (String previousWord : bigramCounter.keySet()) {
+			int previousId = vocabulary.indexOf(previousWord);
+			contexts[previousId] = true;
+			Counter<String> currentCounter = bigramCounter
+					.getCounter(previousWord);
+			for (String word : currentCounter.keySet()) {
+				double count = currentCounter.getCount(word);
+				if (count <= 0)
+					continue;
+				int wordId = vocabulary.indexOf(word);
+				bigramCounts.put(NgramKeys.pack(previousId, wordId), count);
+				contextTypes[previousId]++;
+				continuationProbabilities[wordId]++;
+				totalTypes++;
+			}
+		}
+		for (int id = 0; id < size; id++) {
+			contextCounts[id] = wordCounter.getCount(vocabulary.get(id));
+			inverseDenominators[id] = 1.0 / (1.0 + contextCounts[id]);
+			interpolationWeights[id] = discount * contextTypes[id]
+					* inverseDenominators[id];
+			if (contextsOnly && !contexts[id])
+				continuationProbabilities[id] = 0.0;
+			else if (totalTypes > 0)
+				continuationProbabilities[id] /= totalTypes;
+		}
+	}
+
+	/** Writes the tables; the vocabulary is written by the owning model. */
+	void write(DataOutputStream out) throws IOException {
+		out.writeDouble(discount);
+		LanguageModelSnapshot.writeTable(bigramCounts, out);
+		LanguageModelSnapshot.writeArray(contextCounts, out);
+		LanguageModelSnapshot.writeArray(contextTypes, out);
+		LanguageModelSnapshot.writeArray(inverseDenominators, out);
+		LanguageModelSnapshot.writeArray(interpolationWeights, out);
+		LanguageModelSnapshot.writeArray(continuationProbabilities, out);
+	}
+
+	/** Reads tables written by write() over an already read vocabulary. */
+	static KneserNeyBigramTables read(Vocabulary vocabulary,
+			DataInputStream in) throws IOException {
+		return new KneserNeyBigramTables(vocabulary, in);
+	}
+
+	private KneserNeyBigramTables(Vocabulary vocabulary, DataInputStream in)
+			throws IOException {
+		this.vocabulary = vocabulary;
+		discount = in.readDouble();
+		bigramCounts = LanguageModelSnapshot.readTable(in);
+		contextCounts = LanguageModelSnapshot.readArray(in);
+		contextTypes = LanguageModelSnapshot.readArray(in);
+		inverseDenominators = LanguageModelSnapshot.readArray(in);
+		interpolationWeights = LanguageModelSnapshot.readArray(in);
+		continuationProbabilities = LanguageModelSnapshot.readArray(in);
+	}
+}
@@ -0,0 +1,231 @@
+package nlp.assignments;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import nlp.util.Counter;
+import nlp.util.CounterMap;
+
+/**
+ * Saves trained language models to a versioned binary file and loads them
+ * back, so a harness can skip reading the corpus and training when it
+ * evaluates the same model many times.
+ * <p/>
+ * A snapshot holds a header (magic, version), the model descriptor used on
+ * the LanguageModelTester command line, the vocabulary the n-best lists are
+ * filtered against, and the model's payload. Every payload is the model's
+ * estimated tables as they are scored from, plus whatever the model needs to
+ * keep taking updates. Loading reads them back, at most indexing them by
+ * word id again, and never re-estimates. Earlier versions stored only the
+ * counts of the count-based models; they are no longer read.
+ */
+class LanguageModelSnapshot {
+
+	static final int MAGIC = 0x4E474C4D;
+	static final int VERSION = 3;
+
+	private static final int STREAM_BUFFER = 1 << 16;
+
+	/** A model that can write its estimated tables to a snapshot. */
+	interface Writable {
+		void write(DataOutputStream out) throws IOException;
+	}
+
+	private final String modelName;
+	private final IncrementalLanguageModel model;
+	private final Set<String> vocabulary;
+
+	public String getModelName() {
+		return modelName;
+	}
+
+	public IncrementalLanguageModel getModel() {
+		return model;
+	}
+
+	/** The words of the corpus the model was trained and validated on. */
+	public Set<String> getVocabulary() {
+		return vocabulary;
+	}
+
+	/**
+	 * Saves a model with its command-line descriptor and the vocabulary the
+	 * evaluation should use once the model is loaded.
+	 */
+	public static void save(String modelName, IncrementalLanguageModel model,
+			Set<String> vocabulary, String fileName) throws IOException {
+		if (!(model instanceof Writable))
+			throw new IllegalArgumentException("Cannot snapshot model: "
+					+ modelName);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(fileName), STREAM_BUFFER));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(modelName.toLowerCase());
+			out.writeInt(vocabulary.size());
+			for (String word : vocabulary) {
+				out.writeUTF(word);
+			}
+			((Writable) model).write(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	public static LanguageModelSnapshot load(String fileName)
+			throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(fileName), STREAM_BUFFER));
+		try {
+			if (in.readInt() != MAGIC)
+				throw new IOException("Not a language model snapshot: "
+						+ fileName);
+			int version = in.readInt();
+			if (version != VERSION)
+				throw new IOException("Unsupported snapshot version " + version
+						+ ": " + fileName);
+			String modelName = in.readUTF();
+			int vocabularySize = in.readInt();
+			Set<String> vocabulary = new HashSet<String>();
+			for (int i = 0; i < vocabularySize; i++) {
+				vocabulary.add(in.readUTF());
+			}
+			IncrementalLanguageModel model;
+			if (modelName.equals("ngram"))
+				model = NgramLanguageModel.read(in);
+			else if (modelName.equals("bigram"))
+				model = EmpiricalBigramLanguageModel.read(in);
+			else if (modelName.equals("trigram"))
+				model = EmpiricalTrigramLanguageModel.read(in);
+			else if (modelName.equals("katz-bigram"))
+				model = KatzBigramLanguageModel.read(in);
+			else if (modelName.equals("katz-trigram"))
+				model = KatzTrigramLanguageModel.read(in);
+			else
+				throw new IOException("Unknown model in snapshot " + fileName
+						+ ": " + modelName);
+			return new LanguageModelSnapshot(modelName, model, vocabulary);
+		} finally {
+			in.close();
+		}
+	}
+
+	private LanguageModelSnapshot(String modelName,
+			IncrementalLanguageModel model, Set<String> vocabulary) {
+		this.modelName = modelName;
+		this.model = model;
+		this.vocabulary = vocabulary;
+	}
+
+	// Payload helpers shared by the models' write() and read() methods.
+
+	/** Writes the words of a vocabulary in id order. */
+	static void writeVocabulary(Vocabulary vocabulary, DataOutputStream out)
+			throws IOException {
+		out.writeInt(vocabulary.size());
+		for (int id = 0; id < vocabulary.size(); id++) {
+			out.writeUTF(vocabulary.get(id));
+		}
+	}
+
+	/**
+	 * Adds the words written by writeVocabulary() to a vocabulary, which must
+	 * be empty or hold a prefix of them, so that they keep their ids.
+	 */
+	static void readVocabulary(Vocabulary vocabulary, DataInputStream in)
+			throws IOException {
+		int size = in.readInt();
+		for (int id = 0; id < size; id++) {
+			if (vocabulary.add(in.readUTF()) != id)
+				throw new IOException("Snapshot vocabulary out of order at id "
+						+ id);
+		}
+	}
+
+	static void writeCounter(Counter<String> counter, DataOutputStream out)
+			throws IOException {
+		out.writeInt(counter.size());
+		for (String key : counter.keySet()) {
+			out.writeUTF(key);
+			out.writeDouble(counter.getCount(key));
+		}
+	}
+
+	static Counter<String> readCounter(DataInputStream in) throws IOException {
+		Counter<String> counter = new Counter<String>();
+		int size = in.readInt();
+		for (int i = 0; i < size; i++) {
+			counter.setCount(in.readUTF(), in.readDouble());
+		}
+		return counter;
+	}
+
+	static void writeCounterMap(CounterMap<String, String> counterMap,
+			DataOutputStream out) throws IOException {
+		out.writeInt(counterMap.size());
+		for (String key : counterMap.keySet()) {
+			out.writeUTF(key);
+			writeCounter(counterMap.getCounter(key), out);
+		}
+	}
+
+	static CounterMap<String, String> readCounterMap(DataInputStream in)
+			throws IOException {
+		CounterMap<String, String> counterMap = new CounterMap<String, String>();
+		int size = in.readInt();
+		for (int i = 0; i < size; i++) {
+			String key = in.readUTF();
+			Counter<String> counter = readCounter(in);
+			for (String value : counter.keySet()) {
+				counterMap.setCount(key, value, counter.getCount(value));
+			}
+		}
+		return counterMap;
+	}
+
+	/** Writes a table sorted by key, so equal tables give equal files. */
+	static void writeTable(LongDoubleHashMap table, DataOutputStream out)
+			throws IOException {
+		long[] keys = table.keys();
+		Arrays.sort(keys);
+		out.writeInt(keys.length);
+		for (long key : keys) {
+			out.writeLong(key);
+			out.writeDouble(table.get(key));
+		}
+	}
+
+	static LongDoubleHashMap readTable(DataInputStream in) throws IOException {
+		int size = in.readInt();
+		LongDoubleHashMap table = new LongDoubleHashMap(size);
+		for (int i = 0; i < size; i++) {
+			table.put(in.readLong(), in.readDouble());
+		}
+		return table;
+	}
+
+	static void writeArray(double[] values, DataOutputStream out)
+			throws IOException {
+		out.writeInt(values.length);
+		for (double value : values) {
+			out.writeDouble(value);
+		}
+	}
+
+	static double[] readArray(DataInputStream in) throws IOException {
+		double[] values = new double[in.readInt()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = in.readDouble();
+		}
+		return values;
+	}
+}
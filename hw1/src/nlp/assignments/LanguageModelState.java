@@ -0,0 +1,49 @@
+package nlp.assignments;
+
+/**
+ * The history an IncrementalLanguageModel needs to score the next word,
+ * together with the log probability of the word that led to it. The context
+ * is model specific (typically packed vocabulary ids of the last words);
+ * lastWord is kept for models that still look words up by String.
+ * <p/>
+ * Two states are equal when they score every continuation identically,
+ * regardless of how they were reached, so decoders can recombine
+ * hypotheses on them.
+ */
+final class LanguageModelState {
+
+	final long context;
+	final String lastWord;
+	final double logProbability;
+
+	/** Returns the log probability of the word that produced this state. */
+	public double getLogProbability() {
+		return logProbability;
+	}
+
+	public boolean equals(Object o) {
+		if (this == o)
+			return true;
+		if (!(o instanceof LanguageModelState))
+			return false;
+		LanguageModelState state = (LanguageModelState) o;
+		return context == state.context
+				&& (lastWord == null ? state.lastWord == null : lastWord
+						.equals(state.lastWord));
+	}
+
+	public int hashCode() {
+		int result = (int) (context ^ (context >>> 32));
+		return 31 * result + (lastWord == null ? 0 : lastWord.hashCode());
+	}
+
+	public String toString() {
+		return "[" + lastWord + " " + context + " " + logProbability + "]";
+	}
+
+	LanguageModelState(long context, String lastWord, double logProbability) {
+		this.context = context;
+		this.lastWord = lastWord;
+		this.logProbability = logProbability;
+	}
+}
@@ -1,16 +1,16 @@
 package nlp.assignments;
 
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
 import java.text.NumberFormat;
 import java.text.DecimalFormat;
 
-import nlp.langmodel.LanguageModel;
 import nlp.util.CommandLineUtils;
 
 /**
@@ -29,154 +29,207 @@ public class LanguageModelTester {
 
 
 	// HELPER CLASS FOR THE HARNESS, CAN IGNORE
+	/**
+	 * Word-level edit distance. Words are mapped to ids of the instance's own
+	 * Vocabulary, and the distance is computed over the id arrays. With the
+	 * default unit costs it uses the bit-parallel algorithm of Myers, in
+	 * Hyyro's formulation for edit distance, which keeps a column of the
+	 * DP matrix as bit vectors of vertical deltas. The shorter sentence is
+	 * the pattern; one of up to 64 words fits in a single long, and longer
+	 * ones are split into 64-row blocks that pass horizontal deltas down.
+	 * With other costs it fills the matrix row by row, keeping two rows.
+	 * <p/>
+	 * The arrays are reused across calls, so an instance is not thread-safe.
+	 */
 	static class EditDistance {
 		static double INSERT_COST = 1.0;
 		static double DELETE_COST = 1.0;
 		static double SUBSTITUTE_COST = 1.0;
 
-		private double[][] initialize(double[][] d) {
-			for (int i = 0; i < d.length; i++) {
-				for (int j = 0; j < d[i].length; j++) {
-					d[i][j] = Double.NaN;
-				}
-			}
-			return d;
+		private final Vocabulary vocabulary = new Vocabulary();
+		private int[] firstIds = new int[64];
+		private int[] secondIds = new int[64];
+		private double[] previousRow = new double[65];
+		private double[] currentRow = new double[65];
+		// Match masks of the pattern, blocks longs per word id.
+		private long[] peq = new long[64];
+		private long[] positive = new long[1];
+		private long[] negative = new long[1];
+
+		public double getDistance(List<String> firstList,
+				List<String> secondList) {
+			firstIds = toIds(firstList, firstIds);
+			secondIds = toIds(secondList, secondIds);
+			return getDistance(firstIds, firstList.size(), secondIds,
+					secondList.size());
 		}
 
-		public double getDistance(List<? extends Object> firstList,
-				List<? extends Object> secondList) {
-			double[][] bestDistances = initialize(new double[firstList.size() + 1][secondList
-					.size() + 1]);
-			return getDistance(firstList, secondList, 0, 0, bestDistances);
+		/**
+		 * Returns the distance between first[0, firstLength) and second[0,
+		 * secondLength), whose elements are ids of getVocabulary().
+		 */
+		public double getDistance(int[] first, int firstLength, int[] second,
+				int secondLength) {
+			if (INSERT_COST != 1.0 || DELETE_COST != 1.0
+					|| SUBSTITUTE_COST != 1.0)
+				return getWeightedDistance(first, firstLength, second,
+						secondLength);
+			if (firstLength <= secondLength)
+				return getUnitDistance(first, firstLength, second, secondLength);
+			return getUnitDistance(second, secondLength, first, firstLength);
 		}
 
-		private double getDistance(List<? extends Object> firstList,
-				List<? extends Object> secondList, int firstPosition,
-				int secondPosition, double[][] bestDistances) {
-			if (firstPosition > firstList.size()
-					|| secondPosition > secondList.size())
-				return Double.POSITIVE_INFINITY;
-			if (firstPosition == firstList.size()
-					&& secondPosition == secondList.size())
-				return 0.0;
-			if (Double.isNaN(bestDistances[firstPosition][secondPosition])) {
-				double distance = Double.POSITIVE_INFINITY;
-				distance = Math.min(
-						distance,
-						INSERT_COST
-								+ getDistance(firstList, secondList,
-										firstPosition + 1, secondPosition,
-										bestDistances));
-				distance = Math.min(
-						distance,
-						DELETE_COST
-								+ getDistance(firstList, secondList,
-										firstPosition, secondPosition + 1,
-										bestDistances));
-				distance = Math.min(
-						distance,
-						SUBSTITUTE_COST
-								+ getDistance(firstList, secondList,
-										firstPosition + 1, secondPosition + 1,
-										bestDistances));
-				if (firstPosition < firstList.size()
-						&& secondPosition < secondList.size()) {
-					if (firstList.get(firstPosition).equals(
-							secondList.get(secondPosition))) {
-						distance = Math.min(
-								distance,
-								getDistance(firstList, secondList,
-										firstPosition + 1, secondPosition + 1,
-										bestDistances));
-					}
-				}
-				bestDistances[firstPosition][secondPosition] = distance;
-			}
-			return bestDistances[firstPosition][secondPosition];
+		public Vocabulary getVocabulary() {
+			return vocabulary;
 		}
-	}
-
-	// HELPER CLASS FOR THE HARNESS, CAN IGNORE
-	static class SentenceCollection extends AbstractCollection<List<String>> {
-		static class SentenceIterator implements Iterator<List<String>> {
 
-			BufferedReader reader;
-
-			public boolean hasNext() {
-				try {
-					return reader.ready();
-				} catch (IOException e) {
-					return false;
-				}
+		private int[] toIds(List<String> sentence, int[] ids) {
+			if (ids.length < sentence.size())
+				ids = new int[Math.max(sentence.size(), ids.length * 2)];
+			for (int i = 0; i < sentence.size(); i++) {
+				ids[i] = vocabulary.add(sentence.get(i));
 			}
+			return ids;
+		}
 
-			public List<String> next() {
-				try {
-					String line = reader.readLine();
-					String[] words = line.split("\\s+");
-					List<String> sentence = new ArrayList<String>();
-					for (int i = 0; i < words.length; i++) {
-						String word = words[i];
-						sentence.add(word.toLowerCase());
-					}
-					return sentence;
-				} catch (IOException e) {
-					throw new NoSuchElementException();
-				}
+		/**
+		 * Prefix DP: d[i][j] is the cost of turning first[0, i) into
+		 * second[0, j), where consuming a word of first costs INSERT_COST and
+		 * one of second DELETE_COST, as in the original recursion.
+		 */
+		private double getWeightedDistance(int[] first, int firstLength,
+				int[] second, int secondLength) {
+			if (previousRow.length <= secondLength) {
+				previousRow = new double[secondLength + 1];
+				currentRow = new double[secondLength + 1];
 			}
-
-			public void remove() {
-				throw new UnsupportedOperationException();
+			for (int j = 0; j <= secondLength; j++) {
+				previousRow[j] = j * DELETE_COST;
 			}
-
-			public SentenceIterator(BufferedReader reader) {
-				this.reader = reader;
+			for (int i = 1; i <= firstLength; i++) {
+				currentRow[0] = i * INSERT_COST;
+				for (int j = 1; j <= secondLength; j++) {
+					double distance = Math.min(previousRow[j] + INSERT_COST,
+							currentRow[j - 1] + DELETE_COST);
+					double diagonal = previousRow[j - 1] + SUBSTITUTE_COST;
+					if (first[i - 1] == second[j - 1])
+						diagonal = Math.min(diagonal, previousRow[j - 1]);
+					currentRow[j] = Math.min(distance, diagonal);
+				}
+				double[] row = previousRow;
+				previousRow = currentRow;
+				currentRow = row;
 			}
+			return previousRow[secondLength];
 		}
 
-		String fileName;
-
-		public Iterator<List<String>> iterator() {
-			try {
-				BufferedReader reader = new BufferedReader(new FileReader(
-						fileName));
-				return new SentenceIterator(reader);
-			} catch (FileNotFoundException e) {
-				throw new RuntimeException("Problem with SentenceIterator for "
-						+ fileName);
+		/** Levenshtein distance of pattern against text, by bit vectors. */
+		private double getUnitDistance(int[] pattern, int patternLength,
+				int[] text, int textLength) {
+			if (patternLength == 0)
+				return textLength;
+			int blocks = (patternLength + 63) >>> 6;
+			int required = vocabulary.size() * blocks;
+			if (peq.length < required)
+				peq = new long[Math.max(required, peq.length * 2)];
+			for (int i = 0; i < patternLength; i++) {
+				peq[pattern[i] * blocks + (i >>> 6)] |= 1L << (i & 63);
 			}
-		}
-
-		public int size() {
-			int size = 0;
-			Iterator<List<String>> i = iterator();
-			while (i.hasNext()) {
-				size++;
-				i.next();
+			int distance = blocks == 1 ? getSingleBlockDistance(pattern,
+					patternLength, text, textLength)
+					: getBlockedDistance(pattern, patternLength, text,
+							textLength, blocks);
+			for (int i = 0; i < patternLength; i++) {
+				peq[pattern[i] * blocks + (i >>> 6)] = 0L;
 			}
-			return size;
+			return distance;
 		}
 
-		public SentenceCollection(String fileName) {
-			this.fileName = fileName;
+		private int getSingleBlockDistance(int[] pattern, int patternLength,
+				int[] text, int textLength) {
+			long last = 1L << (patternLength - 1);
+			long pv = -1L;
+			long mv = 0L;
+			int score = patternLength;
+			for (int j = 0; j < textLength; j++) {
+				long eq = peq[text[j]];
+				long xv = eq | mv;
+				long xh = (((eq & pv) + pv) ^ pv) | eq;
+				long ph = mv | ~(xh | pv);
+				long mh = pv & xh;
+				if ((ph & last) != 0)
+					score++;
+				else if ((mh & last) != 0)
+					score--;
+				// Row 0 of the matrix grows by one per text word.
+				ph = (ph << 1) | 1L;
+				mh <<= 1;
+				pv = mh | ~(xv | ph);
+				mv = ph & xv;
+			}
+			return score;
 		}
 
-		public static class Reader {
-			static Collection<List<String>> readSentenceCollection(
-					String fileName) {
-				return new SentenceCollection(fileName);
+		private int getBlockedDistance(int[] pattern, int patternLength,
+				int[] text, int textLength, int blocks) {
+			if (positive.length < blocks) {
+				positive = new long[blocks];
+				negative = new long[blocks];
 			}
+			Arrays.fill(positive, 0, blocks, -1L);
+			Arrays.fill(negative, 0, blocks, 0L);
+			long lastHigh = 1L << ((patternLength - 1) & 63);
+			int score = patternLength;
+			for (int j = 0; j < textLength; j++) {
+				int base = text[j] * blocks;
+				int carry = 1;
+				for (int k = 0; k < blocks; k++) {
+					long high = k == blocks - 1 ? lastHigh : Long.MIN_VALUE;
+					carry = advanceBlock(k, peq[base + k], carry, high);
+				}
+				score += carry;
+			}
+			return score;
 		}
 
+		/**
+		 * Advances block k of the vertical deltas by one text word, given the
+		 * horizontal delta entering its top row, and returns the one leaving
+		 * its row at bit high.
+		 */
+		private int advanceBlock(int k, long eq, int carryIn, long high) {
+			long pv = positive[k];
+			long mv = negative[k];
+			long xv = eq | mv;
+			if (carryIn < 0)
+				eq |= 1L;
+			long xh = (((eq & pv) + pv) ^ pv) | eq;
+			long ph = mv | ~(xh | pv);
+			long mh = pv & xh;
+			int carryOut = 0;
+			if ((ph & high) != 0)
+				carryOut = 1;
+			else if ((mh & high) != 0)
+				carryOut = -1;
+			ph <<= 1;
+			mh <<= 1;
+			if (carryIn < 0)
+				mh |= 1L;
+			else if (carryIn > 0)
+				ph |= 1L;
+			positive[k] = mh | ~(xv | ph);
+			negative[k] = ph & xv;
+			return carryOut;
+		}
 	}
 
-	static double calculatePerplexity(LanguageModel languageModel,
+	static double calculatePerplexity(LogLanguageModel languageModel,
 			Collection<List<String>> sentenceCollection) {
 		double logProbability = 0.0;
 		double numSymbols = 0.0;
 		for (List<String> sentence : sentenceCollection) {
-			logProbability += Math.log(languageModel
-					.getSentenceProbability(sentence)) / Math.log(2.0);
+			logProbability += languageModel
+					.getSentenceLogProbability(sentence) / Math.log(2.0);
 			numSymbols += sentence.size();
 		}
 		double avgLogProbability = logProbability / numSymbols;
@@ -184,56 +237,95 @@ public class LanguageModelTester {
 		return perplexity;
 	}
 
-	static double calculateWordErrorRate(LanguageModel languageModel,
+	/** Freezes the model, so it takes no updates afterwards, and evaluates it. */
+	static double calculateWordErrorRate(
+			IncrementalLanguageModel languageModel,
 			List<SpeechNBestList> speechNBestLists, boolean verbose) {
-		double totalDistance = 0.0;
-		double totalWords = 0.0;
-		EditDistance editDistance = new EditDistance();
-		for (int i = 0; i < speechNBestLists.size(); i++) {
-            SpeechNBestList speechNBestList = speechNBestLists.get(i);
-			List<String> correctSentence = speechNBestList.getCorrectSentence();
-			List<String> bestGuess = null;
-			double bestScore = Double.NEGATIVE_INFINITY;
-			double numWithBestScores = 0.0;
-			double distanceForBestScores = 0.0;
-			for (List<String> guess : speechNBestList.getNBestSentences()) {
-				double score = Math.log(languageModel
-						.getSentenceProbability(guess))
-						+ (speechNBestList.getAcousticScore(guess) / 16.0);
-				double distance = editDistance.getDistance(correctSentence,
-						guess);
-				if (score == bestScore) {
-					numWithBestScores += 1.0;
-					distanceForBestScores += distance;
-				}
-				if ((score > bestScore ) || bestGuess == null) {
-					bestScore = score;
-					bestGuess = guess;
-					distanceForBestScores = distance;
-					numWithBestScores = 1.0;
+		return calculateWordErrorRate(FrozenLanguageModel.freeze(languageModel),
+				new WordErrorRateEvaluation(speechNBestLists), verbose);
+	}
+
+	/** Evaluates on the common ForkJoinPool. */
+	static double calculateWordErrorRate(FrozenLanguageModel languageModel,
+			WordErrorRateEvaluation evaluation, boolean verbose) {
+		return calculateWordErrorRate(languageModel, evaluation, verbose,
+				ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Returns the WER of choosing each list's hypothesis by combined score,
+	 * reading the distances from the evaluation's cache. Chunks of lists are
+	 * rescored in parallel, each chunk with its own PrefixTrieRescorer, which
+	 * is why the model must already be frozen. Every list stores its chosen
+	 * distance and verbose scores in its own slots, which are summed and
+	 * printed in list order, so the output does not depend on scheduling.
+	 */
+	static double calculateWordErrorRate(
+			final FrozenLanguageModel languageModel,
+			final WordErrorRateEvaluation evaluation, final boolean verbose,
+			ExecutorService executor) {
+		final List<SpeechNBestList> speechNBestLists = evaluation
+				.getSpeechNBestLists();
+		final int numLists = speechNBestLists.size();
+		final double[] chosenDistances = new double[numLists];
+		final int[] bestIndices = new int[numLists];
+		final double[] guessLogProbabilities = new double[numLists];
+		final double[] goldLogProbabilities = new double[numLists];
+		List<Callable<Void>> chunks = new ArrayList<Callable<Void>>();
+		for (int start = 0; start < numLists; start += WordErrorRateEvaluation.CHUNK_LISTS) {
+			final int chunkStart = start;
+			final int chunkEnd = Math.min(start
+					+ WordErrorRateEvaluation.CHUNK_LISTS, numLists);
+			chunks.add(new Callable<Void>() {
+				public Void call() {
+					PrefixTrieRescorer rescorer = new PrefixTrieRescorer(
+							languageModel);
+					for (int i = chunkStart; i < chunkEnd; i++) {
+						SpeechNBestList speechNBestList = speechNBestLists.get(i);
+						List<List<String>> guesses = speechNBestList
+								.getNBestSentences();
+						double[] scores = rescorer.getLogProbabilities(guesses);
+						for (int j = 0; j < guesses.size(); j++) {
+							scores[j] += speechNBestList.getAcousticScore(guesses
+									.get(j)) / 16.0;
+						}
+						chosenDistances[i] = evaluation.getChosenDistance(i,
+								scores);
+						if (verbose) {
+							bestIndices[i] = WordErrorRateEvaluation
+									.getBestIndex(scores);
+							guessLogProbabilities[i] = languageModel
+									.getSentenceLogProbability(guesses
+											.get(bestIndices[i]));
+							goldLogProbabilities[i] = languageModel
+									.getSentenceLogProbability(speechNBestList
+											.getCorrectSentence());
+						}
+					}
+					return null;
 				}
-			}
-			 double distance = editDistance.getDistance(correctSentence,
-			 bestGuess);
-			totalDistance += distanceForBestScores / numWithBestScores;
-			totalWords += correctSentence.size();
-			if (verbose) {
+			});
+		}
+		WordErrorRateEvaluation.invokeAll(chunks, executor);
+		if (verbose) {
+			for (int i = 0; i < numLists; i++) {
+				SpeechNBestList speechNBestList = speechNBestLists.get(i);
 				out.println();
-				displayHypothesis("GUESS:", bestGuess, speechNBestList,
-						languageModel);
-                displayHypothesis("GOLD:", correctSentence, speechNBestList,
-						languageModel);
+				displayHypothesis("GUESS:", speechNBestList.getNBestSentences()
+						.get(bestIndices[i]), speechNBestList,
+						guessLogProbabilities[i]);
+				displayHypothesis("GOLD:", speechNBestList.getCorrectSentence(),
+						speechNBestList, goldLogProbabilities[i]);
 			}
 		}
-		return totalDistance / totalWords;
+		return evaluation.getWordErrorRate(chosenDistances);
 	}
 
 	private static NumberFormat nf = new DecimalFormat("0.00E00");
 
 	private static void displayHypothesis(String prefix, List<String> guess,
-			SpeechNBestList speechNBestList, LanguageModel languageModel) {
+			SpeechNBestList speechNBestList, double language) {
 		double acoustic = speechNBestList.getAcousticScore(guess) / 16.0;
-		double language = Math.log(languageModel.getSentenceProbability(guess));
 		out.println(prefix + "\tAM: " + nf.format(acoustic) + "\tLM: "
 				+ nf.format(language) + "\tTotal: "
 				+ nf.format(acoustic + language) + "\t" + guess);
@@ -242,67 +334,6 @@ public class LanguageModelTester {
                 + nf.format(acoustic + language) + "\t" + guess);
 	}
 
-	static double calculateWordErrorRateLowerBound(
-			List<SpeechNBestList> speechNBestLists) {
-		double totalDistance = 0.0;
-		double totalWords = 0.0;
-		EditDistance editDistance = new EditDistance();
-		for (SpeechNBestList speechNBestList : speechNBestLists) {
-			List<String> correctSentence = speechNBestList.getCorrectSentence();
-			double bestDistance = Double.POSITIVE_INFINITY;
-			for (List<String> guess : speechNBestList.getNBestSentences()) {
-				double distance = editDistance.getDistance(correctSentence,
-						guess);
-				if (distance < bestDistance)
-					bestDistance = distance;
-			}
-			totalDistance += bestDistance;
-			totalWords += correctSentence.size();
-		}
-		return totalDistance / totalWords;
-	}
-
-	static double calculateWordErrorRateUpperBound(
-			List<SpeechNBestList> speechNBestLists) {
-		double totalDistance = 0.0;
-		double totalWords = 0.0;
-		EditDistance editDistance = new EditDistance();
-		for (SpeechNBestList speechNBestList : speechNBestLists) {
-			List<String> correctSentence = speechNBestList.getCorrectSentence();
-			double worstDistance = Double.NEGATIVE_INFINITY;
-			for (List<String> guess : speechNBestList.getNBestSentences()) {
-				double distance = editDistance.getDistance(correctSentence,
-						guess);
-				if (distance > worstDistance)
-					worstDistance = distance;
-			}
-			totalDistance += worstDistance;
-			totalWords += correctSentence.size();
-		}
-		return totalDistance / totalWords;
-	}
-
-	static double calculateWordErrorRateRandomChoice(
-			List<SpeechNBestList> speechNBestLists) {
-		double totalDistance = 0.0;
-		double totalWords = 0.0;
-		EditDistance editDistance = new EditDistance();
-		for (SpeechNBestList speechNBestList : speechNBestLists) {
-			List<String> correctSentence = speechNBestList.getCorrectSentence();
-			double sumDistance = 0.0;
-			double numGuesses = 0.0;
-			for (List<String> guess : speechNBestList.getNBestSentences()) {
-				double distance = editDistance.getDistance(correctSentence,
-						guess);
-				sumDistance += distance;
-				numGuesses += 1.0;
-			}
-			totalDistance += sumDistance / numGuesses;
-			totalWords += correctSentence.size();
-		}
-		return totalDistance / totalWords;
-	}
-
 	static Collection<List<String>> extractCorrectSentenceList(
 			List<SpeechNBestList> speechNBestLists) {
 		Collection<List<String>> correctSentences = new ArrayList<List<String>>();
@@ -331,7 +362,7 @@ public class LanguageModelTester {
 
 		// Set up default parameters and settings
 		String basePath = ".";
-		String model = "baseline";
+		String model = "bigram";
 		boolean verbose = true;
 
 		// Update defaults using command line specifications
@@ -346,7 +377,6 @@ public class LanguageModelTester {
 		if (argMap.containsKey("-model")) {
 			model = argMap.get("-model");
 		}
-        model = "bigram";
 		System.out.println("Using model: " + model);
 
 		// Whether or not to print the individual speech errors.
@@ -358,19 +388,37 @@ public class LanguageModelTester {
 			verbose = false;
 		}
 
+		// Whether to keep binary caches of the tokenized sentence files.
+		boolean corpusCache = argMap.containsKey("-corpusCache");
+
+		// A snapshot replaces the corpus and training altogether; it carries
+		// the vocabulary the n-best lists are filtered against.
+		LanguageModelSnapshot snapshot = null;
+		if (argMap.containsKey("-loadModel")) {
+			snapshot = LanguageModelSnapshot.load(argMap.get("-loadModel"));
+			model = snapshot.getModelName();
+			System.out.println("Loaded model: " + argMap.get("-loadModel")
+					+ " (" + model + ")");
+		}
+
 		// Read in all the assignment data
 		String trainingSentencesFile = "/treebank-sentences-spoken-train.txt";
 		String speechNBestListsPath = "/wsj_n_bst";
-		Collection<List<String>> trainingSentenceCollection = SentenceCollection.Reader
-				.readSentenceCollection(basePath + trainingSentencesFile);
-        String validationSentencesFile =
-                "/treebank-sentences-spoken-validate.txt";
-        Collection<List<String>> validationSentenceCollection =
-                SentenceCollection.Reader.readSentenceCollection(basePath +
-                        validationSentencesFile);
-
-		Set<String> trainingVocabulary = extractVocabulary(trainingSentenceCollection);
-        trainingVocabulary.addAll(extractVocabulary(validationSentenceCollection));
+		Collection<List<String>> trainingSentenceCollection = null;
+		Collection<List<String>> validationSentenceCollection = null;
+		Set<String> trainingVocabulary;
+		if (snapshot != null) {
+			trainingVocabulary = snapshot.getVocabulary();
+		} else {
+			trainingSentenceCollection = Corpus.read(basePath
+					+ trainingSentencesFile, corpusCache);
+			String validationSentencesFile =
+					"/treebank-sentences-spoken-validate.txt";
+			validationSentenceCollection = Corpus.read(basePath
+					+ validationSentencesFile, corpusCache);
+			trainingVocabulary = extractVocabulary(trainingSentenceCollection);
+			trainingVocabulary.addAll(extractVocabulary(validationSentenceCollection));
+		}
 		List<SpeechNBestList> speechNBestLists = SpeechNBestList.Reader
 				.readSpeechNBestLists(basePath + speechNBestListsPath,
 						trainingVocabulary);
@@ -379,31 +427,97 @@ public class LanguageModelTester {
 /*
 		 String testSentencesFile = "/treebank-sentences-spoken-test.txt";
 		 Collection<List<String>> testSentenceCollection =
-		 SentenceCollection.Reader.readSentenceCollection(basePath +
-		 testSentencesFile);
+		 Corpus.read(basePath + testSentencesFile);
     */
+		// Counts for the n-gram models can instead be gathered out of core
+		// into a count file, which is reused while it matches the training
+		// file and the model's order.
+		NgramCounts counts = null;
+		if (snapshot == null && argMap.containsKey("-countFile")) {
+			// The n-gram model counts every order itself while building its trie.
+			if (model.equalsIgnoreCase("ngram"))
+				throw new IllegalArgumentException(
+						"-countFile does not apply to the ngram model");
+			int order = model.toLowerCase().endsWith("trigram") ? 3 : 2;
+			String countFile = argMap.get("-countFile");
+			File trainingFile = new File(basePath + trainingSentencesFile);
+			if (!ExternalNgramCounter.isCurrent(countFile, trainingFile, order)) {
+				int maxBufferedNgrams = argMap.containsKey("-countBuffer") ? Integer
+						.parseInt(argMap.get("-countBuffer")) : 1 << 22;
+				ExternalNgramCounter.count(trainingSentenceCollection, order,
+						maxBufferedNgrams, countFile, trainingFile);
+				System.out.println("Counted into: " + countFile);
+			}
+			counts = ExternalNgramCounter.read(countFile);
+			System.out.println("Using counts: " + countFile);
+		}
+
 		// Build the language model
-		LanguageModel languageModel = null;
-		if (model.equalsIgnoreCase("baseline")) {
+		IncrementalLanguageModel languageModel = null;
+		if (snapshot != null) {
+			languageModel = snapshot.getModel();
+		} else if (model.equalsIgnoreCase("baseline")) {
 			languageModel = new EmpiricalUnigramLanguageModel(
 					trainingSentenceCollection);
 		} else if (model.equalsIgnoreCase("sri")) {
 			languageModel = new SriLanguageModel(argMap.get("-sri"));
 		} else if (model.equalsIgnoreCase("bigram")) {
-			languageModel = new EmpiricalBigramLanguageModel(
+			languageModel = counts != null ? new EmpiricalBigramLanguageModel(
+					counts) : new EmpiricalBigramLanguageModel(
 					trainingSentenceCollection, validationSentenceCollection);
 		} else if (model.equalsIgnoreCase("trigram")) {
-			languageModel = new EmpiricalTrigramLanguageModel(
+			languageModel = counts != null ? new EmpiricalTrigramLanguageModel(
+					counts) : new EmpiricalTrigramLanguageModel(
 					trainingSentenceCollection , validationSentenceCollection);
 		} else if (model.equalsIgnoreCase("katz-bigram")) {
-			languageModel = new KatzBigramLanguageModel(
-					trainingSentenceCollection);
+			languageModel = counts != null ? new KatzBigramLanguageModel(counts)
+					: new KatzBigramLanguageModel(trainingSentenceCollection);
 		} else if (model.equalsIgnoreCase("katz-trigram")) {
-			languageModel = new KatzTrigramLanguageModel(
-					trainingSentenceCollection);
+			languageModel = counts != null ? new KatzTrigramLanguageModel(counts)
+					: new KatzTrigramLanguageModel(trainingSentenceCollection);
+		} else if (model.equalsIgnoreCase("ngram")) {
+			int order = argMap.containsKey("-order") ? Integer.parseInt(argMap
+					.get("-order")) : 3;
+			String smoothing = argMap.containsKey("-smoothing") ? argMap
+					.get("-smoothing") : "kneser-ney";
+			NgramSmoothing ngramSmoothing = NgramSmoothing.forName(smoothing);
+			if (argMap.containsKey("-pruneCounts"))
+				NgramPruner.checkSmoothing(ngramSmoothing, false);
+			if (argMap.containsKey("-pruneEntropy"))
+				NgramPruner.checkSmoothing(ngramSmoothing, true);
+			NgramLanguageModel ngramModel = new NgramLanguageModel(
+					trainingSentenceCollection, order, ngramSmoothing);
+			if (argMap.containsKey("-pruneCounts")
+					|| argMap.containsKey("-pruneEntropy")) {
+				System.out.println("Before pruning: " + ngramModel.size()
+						+ " n-grams, " + ngramModel.getNumNodes() + " nodes, "
+						+ ngramModel.getMemoryBytes()
+						+ " bytes, validation perplexity "
+						+ calculatePerplexity(ngramModel,
+								validationSentenceCollection));
+				if (argMap.containsKey("-pruneCounts"))
+					NgramPruner.pruneByCount(ngramModel, NgramPruner
+							.parseCutoffs(argMap.get("-pruneCounts")));
+				if (argMap.containsKey("-pruneEntropy"))
+					NgramPruner.pruneByEntropy(ngramModel, Double
+							.parseDouble(argMap.get("-pruneEntropy")));
+				System.out.println("After pruning:  " + ngramModel.size()
+						+ " n-grams, " + ngramModel.getNumNodes() + " nodes, "
+						+ ngramModel.getMemoryBytes()
+						+ " bytes, validation perplexity "
+						+ calculatePerplexity(ngramModel,
+								validationSentenceCollection));
+			}
+			languageModel = ngramModel;
 		} else {
 			throw new RuntimeException("Unknown model descriptor: " + model);
 		}
+		if (argMap.containsKey("-saveModel") && snapshot == null) {
+			String snapshotFile = argMap.get("-saveModel");
+			LanguageModelSnapshot.save(model, languageModel,
+					trainingVocabulary, snapshotFile);
+			System.out.println("Saved model: " + snapshotFile);
+		}
 
         // Evaluate the language model
 		//double wsjPerplexity = calculatePerplexity(languageModel,
@@ -412,16 +526,22 @@ public class LanguageModelTester {
 				extractCorrectSentenceList(speechNBestLists));
 		//System.out.println("WSJ Perplexity:  " + wsjPerplexity);
 		System.out.println("HUB Perplexity:  " + hubPerplexity);
+		WordErrorRateEvaluation evaluation = new WordErrorRateEvaluation(
+				speechNBestLists);
 		System.out.println("WER Baselines:");
-		System.out.println("  Best Path:  "
-				+ calculateWordErrorRateLowerBound(speechNBestLists));
-		System.out.println("  Worst Path: "
-				+ calculateWordErrorRateUpperBound(speechNBestLists));
-		System.out.println("  Avg Path:   "
-				+ calculateWordErrorRateRandomChoice(speechNBestLists));
-		double wordErrorRate = calculateWordErrorRate(languageModel,
-				speechNBestLists, verbose);
+		System.out.println("  Best Path:  " + evaluation.getLowerBound());
+		System.out.println("  Worst Path: " + evaluation.getUpperBound());
+		System.out.println("  Avg Path:   " + evaluation.getRandomChoice());
+		// Scoring on several threads needs a model that takes no more updates.
+		double wordErrorRate = calculateWordErrorRate(FrozenLanguageModel
+				.freeze(languageModel), evaluation, verbose);
 		System.out.println("HUB Word Error Rate: " + wordErrorRate);
+		if (languageModel instanceof ScoringMetrics.Source) {
+			ScoringMetrics metrics = ((ScoringMetrics.Source) languageModel)
+					.getMetrics();
+			if (metrics != null)
+				System.out.print(metrics.snapshot());
+		}
 		System.out.println("Generated Sentences:");
         //for (int i = 0; i < 10; i++)
           //  System.out.println("  " + languageModel.generateSentence());
@@ -0,0 +1,27 @@
+package nlp.assignments;
+
+import java.util.List;
+
+import nlp.langmodel.LanguageModel;
+
+/**
+ * A language model that scores sentences in log space. Summing natural-log
+ * word probabilities avoids the underflow of multiplying raw probabilities
+ * over long sentences, and lets models that store log values skip the
+ * exp/log round trip.
+ */
+interface LogLanguageModel extends LanguageModel {
+
+	/**
+	 * Returns the natural log of the probability of the sentence, including
+	 * the transition to the stop symbol.
+	 */
+	double getSentenceLogProbability(List<String> sentence);
+
+	/**
+	 * Returns the natural-log probability of each word of the sentence given
+	 * its history. The array has one entry per word followed by one for the
+	 * stop symbol, and sums to getSentenceLogProbability(sentence).
+	 */
+	double[] getWordLogProbabilities(List<String> sentence);
+}
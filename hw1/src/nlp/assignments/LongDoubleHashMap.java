@@ -0,0 +1,144 @@
+package nlp.assignments;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash table from primitive long keys to double values,
+ * used to hold packed n-gram counts and probabilities without boxing. Keys
+ * are probed linearly in a power-of-two table; absent keys read as a default
+ * value.
+ */
+class LongDoubleHashMap {
+
+	private static final long EMPTY = Long.MIN_VALUE;
+
+	private long[] keys;
+	private double[] values;
+	private int size;
+	private boolean hasEmptyKey;
+	private double emptyKeyValue;
+
+	public double get(long key, double defaultValue) {
+		if (key == EMPTY)
+			return hasEmptyKey ? emptyKeyValue : defaultValue;
+		int mask = keys.length - 1;
+		int slot = hash(key) & mask;
+		while (true) {
+			long k = keys[slot];
+			if (k == key)
+				return values[slot];
+			if (k == EMPTY)
+				return defaultValue;
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	public double get(long key) {
+		return get(key, 0.0);
+	}
+
+	public boolean containsKey(long key) {
+		if (key == EMPTY)
+			return hasEmptyKey;
+		return keys[find(key)] == key;
+	}
+
+	public void put(long key, double value) {
+		if (key == EMPTY) {
+			if (!hasEmptyKey)
+				size++;
+			hasEmptyKey = true;
+			emptyKeyValue = value;
+			return;
+		}
+		int slot = find(key);
+		if (keys[slot] == EMPTY) {
+			keys[slot] = key;
+			size++;
+			values[slot] = value;
+			if (size * 2 > keys.length)
+				rehash(keys.length * 2);
+			return;
+		}
+		values[slot] = value;
+	}
+
+	public void increment(long key, double amount) {
+		if (key == EMPTY) {
+			put(key, get(key) + amount);
+			return;
+		}
+		int slot = find(key);
+		if (keys[slot] == EMPTY) {
+			keys[slot] = key;
+			size++;
+			values[slot] = amount;
+			if (size * 2 > keys.length)
+				rehash(keys.length * 2);
+			return;
+		}
+		values[slot] += amount;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/** Returns a copy of the keys currently in the table, in no particular order. */
+	public long[] keys() {
+		long[] result = new long[size];
+		int i = 0;
+		if (hasEmptyKey)
+			result[i++] = EMPTY;
+		for (long k : keys) {
+			if (k != EMPTY)
+				result[i++] = k;
+		}
+		return result;
+	}
+
+	private int find(long key) {
+		int mask = keys.length - 1;
+		int slot = hash(key) & mask;
+		while (keys[slot] != key && keys[slot] != EMPTY)
+			slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	private void rehash(int capacity) {
+		long[] oldKeys = keys;
+		double[] oldValues = values;
+		keys = new long[capacity];
+		values = new double[capacity];
+		Arrays.fill(keys, EMPTY);
+		int mask = capacity - 1;
+		for (int i = 0; i < oldKeys.length; i++) {
+			long k = oldKeys[i];
+			if (k == EMPTY)
+				continue;
+			int slot = hash(k) & mask;
+			while (keys[slot] != EMPTY)
+				slot = (slot + 1) & mask;
+			keys[slot] = k;
+			values[slot] = oldValues[i];
+		}
+	}
+
+	private static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	public LongDoubleHashMap(int expectedSize) {
+		int capacity = 16;
+		while (capacity < expectedSize * 2)
+			capacity <<= 1;
+		keys = new long[capacity];
+		values = new double[capacity];
+		Arrays.fill(keys, EMPTY);
+	}
+
+	public LongDoubleHashMap() {
+		this(8);
+	}
+}
@@ -0,0 +1,108 @@
+package nlp.assignments;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash table from primitive long keys to int values, laid
+ * out like LongDoubleHashMap. Used for the child links of the n-gram trie,
+ * keyed by NgramKeys.pack(parent node, word id).
+ */
+class LongIntHashMap {
+
+	private static final long EMPTY = Long.MIN_VALUE;
+
+	private long[] keys;
+	private int[] values;
+	private int size;
+	private boolean hasEmptyKey;
+	private int emptyKeyValue;
+
+	public int get(long key, int defaultValue) {
+		if (key == EMPTY)
+			return hasEmptyKey ? emptyKeyValue : defaultValue;
+		int mask = keys.length - 1;
+		int slot = hash(key) & mask;
+		while (true) {
+			long k = keys[slot];
+			if (k == key)
+				return values[slot];
+			if (k == EMPTY)
+				return defaultValue;
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	public void put(long key, int value) {
+		if (key == EMPTY) {
+			if (!hasEmptyKey)
+				size++;
+			hasEmptyKey = true;
+			emptyKeyValue = value;
+			return;
+		}
+		int slot = find(key);
+		if (keys[slot] == EMPTY) {
+			keys[slot] = key;
+			size++;
+			values[slot] = value;
+			if (size * 2 > keys.length)
+				rehash(keys.length * 2);
+			return;
+		}
+		values[slot] = value;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/** Returns the bytes held by the key and value arrays. */
+	public long getMemoryBytes() {
+		return 12L * keys.length;
+	}
+
+	private int find(long key) {
+		int mask = keys.length - 1;
+		int slot = hash(key) & mask;
+		while (keys[slot] != key && keys[slot] != EMPTY)
+			slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	private void rehash(int capacity) {
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		keys = new long[capacity];
+		values = new int[capacity];
+		Arrays.fill(keys, EMPTY);
+		int mask = capacity - 1;
+		for (int i = 0; i < oldKeys.length; i++) {
+			long k = oldKeys[i];
+			if (k == EMPTY)
+				continue;
+			int slot = hash(k) & mask;
+			while (keys[slot] != EMPTY)
+				slot = (slot + 1) & mask;
+			keys[slot] = k;
+			values[slot] = oldValues[i];
+		}
+	}
+
+	private static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	public LongIntHashMap(int expectedSize) {
+		int capacity = 16;
+		while (capacity < expectedSize * 2)
+			capacity <<= 1;
+		keys = new long[capacity];
+		values = new int[capacity];
+		Arrays.fill(keys, EMPTY);
+	}
+
+	public LongIntHashMap() {
+		this(8);
+	}
+}
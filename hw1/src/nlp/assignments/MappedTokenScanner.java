@@ -0,0 +1,190 @@
+package nlp.assignments;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits a text file into lines and tokens straight from a read-only memory
+ * mapping of it. A token is a byte range of the mapped buffer that callers
+ * resolve to a Vocabulary id, so a word that repeats costs a hash probe
+ * instead of a new String per occurrence.
+ * <p/>
+ * Lines end at "\n", "\r" or "\r\n", as with BufferedReader.readLine().
+ * Within a line, nextToken() yields the tokens of line.split("\\s+"),
+ * including the empty first token of a line that starts with whitespace,
+ * and nextField() those of line.split() on a single separator character.
+ * The text is taken to be UTF-8; splitting on ASCII bytes is safe there,
+ * since they never occur inside a multi-byte character.
+ * <p/>
+ * A mapping holds at most 2GB, so a larger file is mapped as several
+ * windows, each cut at a line boundary so no line or token spans two.
+ */
+class MappedTokenScanner {
+
+	private final List<ByteBuffer> windows;
+	private int window;
+	private ByteBuffer buffer;
+	private int limit;
+	// Start of the next line, and bounds and scan position of this one.
+	private int nextLine;
+	private int lineStart;
+	private int lineEnd;
+	private int cursor;
+	private boolean firstToken;
+	private int tokenStart;
+	private int tokenEnd;
+
+	public static MappedTokenScanner open(String fileName) throws IOException {
+		return open(fileName, Integer.MAX_VALUE);
+	}
+
+	static MappedTokenScanner open(String fileName, int maxWindowSize)
+			throws IOException {
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			long size = channel.size();
+			List<ByteBuffer> windows = new ArrayList<ByteBuffer>();
+			long position = 0;
+			do {
+				long windowSize = Math.min(size - position, maxWindowSize);
+				// The mappings stay valid after the channel is closed.
+				ByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY,
+						position, windowSize);
+				if (position + windowSize < size) {
+					windowSize = getLastLineEnd(window);
+					if (windowSize == 0)
+						throw new IOException("Line longer than "
+								+ maxWindowSize + " bytes at offset "
+								+ position + " of " + fileName);
+					window.limit((int) windowSize);
+				}
+				windows.add(window);
+				position += windowSize;
+			} while (position < size);
+			return new MappedTokenScanner(windows);
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Returns the offset just past the last complete line terminator of a
+	 * window that is not the end of the file, or 0 if it has none. A "\r"
+	 * in the last byte may be the start of a "\r\n" split between two
+	 * windows, so it does not count.
+	 */
+	private static int getLastLineEnd(ByteBuffer window) {
+		for (int i = window.limit() - 1; i >= 0; i--) {
+			byte b = window.get(i);
+			if (b == '\n' || (b == '\r' && i < window.limit() - 1))
+				return i + 1;
+		}
+		return 0;
+	}
+
+	/** Moves to the next line, returning false at the end of the file. */
+	public boolean nextLine() {
+		while (nextLine >= limit) {
+			if (window + 1 >= windows.size())
+				return false;
+			window++;
+			buffer = windows.get(window);
+			limit = buffer.limit();
+			nextLine = 0;
+		}
+		lineStart = nextLine;
+		lineEnd = lineStart;
+		while (lineEnd < limit) {
+			byte b = buffer.get(lineEnd);
+			if (b == '\n' || b == '\r')
+				break;
+			lineEnd++;
+		}
+		nextLine = lineEnd + 1;
+		if (lineEnd < limit && buffer.get(lineEnd) == '\r'
+				&& nextLine < limit && buffer.get(nextLine) == '\n')
+			nextLine++;
+		cursor = lineStart;
+		firstToken = true;
+		return true;
+	}
+
+	/**
+	 * Moves to the next whitespace-separated token of the line, returning
+	 * false when the line has no more.
+	 */
+	public boolean nextToken() {
+		if (firstToken) {
+			firstToken = false;
+			// split() gives an empty line one empty token, and a line that
+			// opens with whitespace an empty first token unless it is blank.
+			if (cursor == lineEnd
+					|| (isWhitespace(buffer.get(cursor)) && skipWhitespace() < lineEnd)) {
+				tokenStart = lineStart;
+				tokenEnd = lineStart;
+				return true;
+			}
+		}
+		if (skipWhitespace() == lineEnd)
+			return false;
+		tokenStart = cursor;
+		while (cursor < lineEnd && !isWhitespace(buffer.get(cursor)))
+			cursor++;
+		tokenEnd = cursor;
+		return true;
+	}
+
+	/**
+	 * Moves to the next field of the line delimited by separator, returning
+	 * false when the line has no more. Unlike split(), trailing empty fields
+	 * are returned.
+	 */
+	public boolean nextField(char separator) {
+		if (cursor > lineEnd)
+			return false;
+		tokenStart = cursor;
+		while (cursor < lineEnd && buffer.get(cursor) != separator)
+			cursor++;
+		tokenEnd = cursor;
+		cursor++;
+		return true;
+	}
+
+	/** Adds the current token to the vocabulary, returning its id. */
+	public int addToken(Vocabulary vocabulary) {
+		return vocabulary.add(buffer, tokenStart, tokenEnd - tokenStart);
+	}
+
+	/** Adds the lowercased current token to the vocabulary. */
+	public int addLowerCaseToken(Vocabulary vocabulary) {
+		return vocabulary.addLowerCase(buffer, tokenStart, tokenEnd
+				- tokenStart);
+	}
+
+	/** Returns the current token as a new String. */
+	public String getToken() {
+		return Vocabulary.decode(buffer, tokenStart, tokenEnd - tokenStart);
+	}
+
+	private int skipWhitespace() {
+		while (cursor < lineEnd && isWhitespace(buffer.get(cursor)))
+			cursor++;
+		return cursor;
+	}
+
+	/** The characters of \s other than the line terminators. */
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t' || b == 0x0B || b == '\f';
+	}
+
+	MappedTokenScanner(List<ByteBuffer> windows) {
+		this.windows = windows;
+		this.buffer = windows.get(0);
+		this.limit = buffer.limit();
+	}
+}
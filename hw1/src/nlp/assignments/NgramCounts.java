@@ -0,0 +1,329 @@
+package nlp.assignments;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import nlp.util.Counter;
+import nlp.util.CounterMap;
+
+/**
+ * Unigram, bigram and (optionally) trigram counts over a sentence collection,
+ * gathered on a ForkJoinPool. The collection is split recursively; each leaf
+ * counts its sentences into its own vocabulary and primitive tables, and
+ * sibling results are merged as the tasks join by remapping the right-hand
+ * ids into the left-hand vocabulary. The root is finally remapped into the
+ * caller's vocabulary, so packed keys can be used directly by the model.
+ * <p/>
+ * Every sentence is padded with order - 1 START symbols and one STOP, and
+ * every position of the padded sentence is counted.
+ * <p/>
+ * Counts opened from a count file keep only the vocabulary and unigram
+ * counts in memory; their bigram and trigram entries are streamed from the
+ * file each time they are added to a model.
+ */
+class NgramCounts {
+
+	/** Receives the (packed key, count) entries of one order. */
+	interface EntryVisitor {
+		void visit(long key, double count);
+	}
+
+	private static final int LEAF_SENTENCES = 2048;
+
+	private final int order;
+	private final Vocabulary vocabulary;
+	private double[] unigramCounts;
+	private final LongDoubleHashMap bigramCounts;
+	private final LongDoubleHashMap trigramCounts;
+	// Set instead of the tables when the counts are read from a count file.
+	private final ExternalNgramCounter.Sections sections;
+	private int sentenceCount;
+
+	/**
+	 * Counts the collection with a fresh ForkJoinPool, adding every word to
+	 * the given vocabulary.
+	 */
+	public static NgramCounts count(Collection<List<String>> sentences,
+			int order, Vocabulary vocabulary) {
+		ForkJoinPool pool = new ForkJoinPool();
+		try {
+			return count(sentences, order, vocabulary, pool);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	public static NgramCounts count(Collection<List<String>> sentences,
+			int order, Vocabulary vocabulary, ForkJoinPool pool) {
+		if (order < 2 || order > 3)
+			throw new IllegalArgumentException("Unsupported order: " + order);
+		List<List<String>> sentenceList = sentences instanceof RandomAccess ? (List<List<String>>) sentences
+				: new ArrayList<List<String>>(sentences);
+		int leafSize = Math.max(LEAF_SENTENCES, sentenceList.size()
+				/ (pool.getParallelism() * 8) + 1);
+		NgramCounts partial = pool.invoke(new CountTask(sentenceList, 0,
+				sentenceList.size(), order, leafSize));
+		NgramCounts result = new NgramCounts(order, vocabulary);
+		result.merge(partial);
+		return result;
+	}
+
+	public int getOrder() {
+		return order;
+	}
+
+	public Vocabulary getVocabulary() {
+		return vocabulary;
+	}
+
+	public int getSentenceCount() {
+		return sentenceCount;
+	}
+
+	public double getUnigramCount(int id) {
+		return id < 0 || id >= unigramCounts.length ? 0.0 : unigramCounts[id];
+	}
+
+	/**
+	 * Bigram counts keyed by NgramKeys.pack(previous, word). Counts read from
+	 * a count file load the whole order into a new table on each call.
+	 */
+	public LongDoubleHashMap getBigramCounts() {
+		return sections != null ? loadSection(2) : bigramCounts;
+	}
+
+	/**
+	 * Trigram counts keyed by NgramKeys.pack(prePrevious, previous, word), or
+	 * null below order 3. Counts read from a count file load the whole order
+	 * into a new table on each call.
+	 */
+	public LongDoubleHashMap getTrigramCounts() {
+		if (order < 3)
+			return null;
+		return sections != null ? loadSection(3) : trigramCounts;
+	}
+
+	/** Passes every entry of order n, 2 or 3, to the visitor. */
+	public void visit(int n, EntryVisitor visitor) {
+		if (sections != null) {
+			try {
+				sections.scan(n, visitor);
+			} catch (IOException e) {
+				throw new RuntimeException("Problem reading n-gram counts", e);
+			}
+			return;
+		}
+		LongDoubleHashMap counts = n == 2 ? bigramCounts : trigramCounts;
+		for (long key : counts.keys()) {
+			visitor.visit(key, counts.get(key));
+		}
+	}
+
+	private LongDoubleHashMap loadSection(int n) {
+		try {
+			return sections.load(n);
+		} catch (IOException e) {
+			throw new RuntimeException("Problem reading n-gram counts", e);
+		}
+	}
+
+	public void addUnigramsTo(Counter<String> counter) {
+		for (int id = 0; id < vocabulary.size(); id++) {
+			if (unigramCounts[id] != 0)
+				counter.incrementCount(vocabulary.get(id), unigramCounts[id]);
+		}
+	}
+
+	public void addBigramsTo(final CounterMap<String, String> counterMap) {
+		visit(2, new EntryVisitor() {
+			public void visit(long key, double count) {
+				counterMap.incrementCount(vocabulary.get(NgramKeys.first(key)),
+						vocabulary.get(NgramKeys.second(key)), count);
+			}
+		});
+	}
+
+	/**
+	 * Adds the trigram counts, and their totals per (prePrevious, previous)
+	 * context, to tables keyed by ids of the given vocabulary. Words are added
+	 * to it as needed; when it is this object's own vocabulary the keys are
+	 * copied as they are.
+	 */
+	public void addTrigramsTo(Vocabulary target, final LongDoubleHashMap counts,
+			final LongDoubleHashMap contextCounts) {
+		int[] mapping = null;
+		if (target != vocabulary) {
+			mapping = new int[vocabulary.size()];
+			for (int id = 0; id < mapping.length; id++) {
+				mapping[id] = NgramKeys.addTrigramWord(target, vocabulary.get(id));
+			}
+		}
+		final int[] ids = mapping;
+		visit(3, new EntryVisitor() {
+			public void visit(long key, double count) {
+				addTrigram(key, count, ids, counts, contextCounts);
+			}
+		});
+	}
+
+	private static void addTrigram(long key, double count, int[] ids,
+			LongDoubleHashMap counts, LongDoubleHashMap contextCounts) {
+		int prePreviousId = NgramKeys.trigramField(key, 0);
+		int previousId = NgramKeys.trigramField(key, 1);
+		int wordId = NgramKeys.trigramField(key, 2);
+		if (ids != null) {
+			prePreviousId = ids[prePreviousId];
+			previousId = ids[previousId];
+			wordId = ids[wordId];
+		}
+		counts.increment(NgramKeys.pack(prePreviousId, previousId, wordId),
+				count);
+		contextCounts.increment(NgramKeys.pack(prePreviousId, previousId),
+				count);
+	}
+
+	/**
+	 * The models pad sentences according to their own order, so counts must
+	 * have been collected at exactly that order.
+	 */
+	void checkOrder(int expectedOrder) {
+		if (order != expectedOrder)
+			throw new IllegalArgumentException("Expected counts of order "
+					+ expectedOrder + " but found order " + order);
+	}
+
+	/** Returns the number of bigram and trigram entries held. */
+	int ngramEntries() {
+		return bigramCounts.size()
+				+ (trigramCounts == null ? 0 : trigramCounts.size());
+	}
+
+	void countSentence(List<String> sentence) {
+		int length = sentence.size() + order;
+		int prePreviousId = Vocabulary.NOT_FOUND;
+		int previousId = Vocabulary.NOT_FOUND;
+		for (int i = 0; i < length; i++) {
+			String word;
+			if (i < order - 1)
+				word = EmpiricalBigramLanguageModel.START;
+			else if (i < length - 1)
+				word = sentence.get(i - order + 1);
+			else
+				word = EmpiricalBigramLanguageModel.STOP;
+			int wordId = addWord(word);
+			unigramCounts[wordId]++;
+			if (i >= 1)
+				bigramCounts.increment(NgramKeys.pack(previousId, wordId), 1.0);
+			if (i >= 2 && trigramCounts != null)
+				trigramCounts.increment(NgramKeys.pack(prePreviousId,
+						previousId, wordId), 1.0);
+			prePreviousId = previousId;
+			previousId = wordId;
+		}
+		sentenceCount++;
+	}
+
+	/** Adds another partial result, remapping its ids into this vocabulary. */
+	private void merge(NgramCounts other) {
+		int[] ids = new int[other.vocabulary.size()];
+		for (int id = 0; id < ids.length; id++) {
+			ids[id] = addWord(other.vocabulary.get(id));
+			unigramCounts[ids[id]] += other.unigramCounts[id];
+		}
+		for (long key : other.bigramCounts.keys()) {
+			bigramCounts.increment(
+					NgramKeys.pack(ids[NgramKeys.first(key)],
+							ids[NgramKeys.second(key)]),
+					other.bigramCounts.get(key));
+		}
+		if (trigramCounts != null) {
+			for (long key : other.trigramCounts.keys()) {
+				trigramCounts.increment(NgramKeys.pack(
+						ids[NgramKeys.trigramField(key, 0)],
+						ids[NgramKeys.trigramField(key, 1)],
+						ids[NgramKeys.trigramField(key, 2)]),
+						other.trigramCounts.get(key));
+			}
+		}
+		sentenceCount += other.sentenceCount;
+	}
+
+	private int addWord(String word) {
+		int id = order >= 3 ? NgramKeys.addTrigramWord(vocabulary, word)
+				: vocabulary.add(word);
+		if (id >= unigramCounts.length) {
+			double[] grown = new double[Math.max(id + 1,
+					unigramCounts.length * 2)];
+			System.arraycopy(unigramCounts, 0, grown, 0, unigramCounts.length);
+			unigramCounts = grown;
+		}
+		return id;
+	}
+
+	NgramCounts(int order, Vocabulary vocabulary) {
+		this.order = order;
+		this.vocabulary = vocabulary;
+		this.unigramCounts = new double[Math.max(16, vocabulary.size())];
+		this.bigramCounts = new LongDoubleHashMap();
+		this.trigramCounts = order >= 3 ? new LongDoubleHashMap() : null;
+		this.sections = null;
+	}
+
+	/**
+	 * Wraps the sections of a count file, keyed by the ids of the given
+	 * vocabulary.
+	 */
+	NgramCounts(int order, Vocabulary vocabulary, double[] unigramCounts,
+			ExternalNgramCounter.Sections sections, int sentenceCount) {
+		this.order = order;
+		this.vocabulary = vocabulary;
+		this.unigramCounts = unigramCounts;
+		this.bigramCounts = null;
+		this.trigramCounts = null;
+		this.sections = sections;
+		this.sentenceCount = sentenceCount;
+	}
+
+	private static class CountTask extends RecursiveTask<NgramCounts> {
+		private static final long serialVersionUID = 1L;
+
+		private final List<List<String>> sentences;
+		private final int start;
+		private final int end;
+		private final int order;
+		private final int leafSize;
+
+		CountTask(List<List<String>> sentences, int start, int end, int order,
+				int leafSize) {
+			this.sentences = sentences;
+			this.start = start;
+			this.end = end;
+			this.order = order;
+			this.leafSize = leafSize;
+		}
+
+		protected NgramCounts compute() {
+			if (end - start <= leafSize) {
+				NgramCounts counts = new NgramCounts(order, new Vocabulary());
+				for (int i = start; i < end; i++) {
+					counts.countSentence(sentences.get(i));
+				}
+				return counts;
+			}
+			int middle = (start + end) >>> 1;
+			CountTask left = new CountTask(sentences, start, middle, order,
+					leafSize);
+			CountTask right = new CountTask(sentences, middle, end, order,
+					leafSize);
+			right.fork();
+			NgramCounts counts = left.compute();
+			counts.merge(right.join());
+			return counts;
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package nlp.assignments;
+
+/**
+ * Packs sequences of vocabulary ids into single long keys for the primitive
+ * n-gram tables, so that no String or boxed key is created per lookup.
+ */
+final class NgramKeys {
+
+	private static final long TRIGRAM_FIELD_MASK = (1 << 21) - 1;
+
+	/**
+	 * Largest id that fits in the 21-bit fields of a packed trigram key. The
+	 * all-ones field is reserved: Vocabulary.NOT_FOUND masks to it, so unknown
+	 * words pack to keys that never occur in a table.
+	 */
+	static final int MAX_TRIGRAM_ID = (int) TRIGRAM_FIELD_MASK - 1;
+
+	private NgramKeys() {
+	}
+
+	/** Packs a (previous word, word) pair; each id keeps its full 32 bits. */
+	static long pack(int previous, int word) {
+		return ((long) previous << 32) | (word & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Packs a trigram into three 21-bit fields. Ids must lie in
+	 * [0, MAX_TRIGRAM_ID] or be Vocabulary.NOT_FOUND.
+	 */
+	static long pack(int prePrevious, int previous, int word) {
+		return ((prePrevious & TRIGRAM_FIELD_MASK) << 42)
+				| ((previous & TRIGRAM_FIELD_MASK) << 21)
+				| (word & TRIGRAM_FIELD_MASK);
+	}
+
+	/** Adds a word to a vocabulary whose ids end up in packed trigram keys. */
+	static int addTrigramWord(Vocabulary vocabulary, String word) {
+		int id = vocabulary.add(word);
+		if (id > MAX_TRIGRAM_ID)
+			throw new IllegalStateException(
+					"Vocabulary too large for packed trigram keys: " + id);
+		return id;
+	}
+
+	static int first(long key) {
+		return (int) (key >>> 32);
+	}
+
+	static int second(long key) {
+		return (int) key;
+	}
+
+	/** Returns field 0, 1 or 2 (oldest word first) of a packed trigram key. */
+	static int trigramField(long key, int field) {
+		return (int) ((key >>> (21 * (2 - field))) & TRIGRAM_FIELD_MASK);
+	}
+}
@@ -0,0 +1,688 @@
+package nlp.assignments;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An n-gram language model of any order with pluggable smoothing. All orders
+ * live in one trie whose child links are a single hashed table keyed by
+ * NgramKeys.pack(parent node, word id), so each order costs memory only for
+ * the n-grams that occur.
+ * <p/>
+ * The trie is stored newest word first: the node of w1 ... wk is reached
+ * from the root through wk, wk-1, ..., w1. The parent of a node is then the
+ * same n-gram without its oldest word, which is exactly the n-gram a
+ * backoff step moves to. Every n-gram ending at a position lies on one path
+ * from the root, so counting a token and scoring a word each walk O(order)
+ * links. Each node also records the node of its history (its context) and
+ * the statistics the smoothing methods need when the node is used as a
+ * context: c(h .), N1+(h .), and the Kneser-Ney continuation counts.
+ * <p/>
+ * Sentences are padded with order - 1 START symbols and one STOP. Only the
+ * words and STOP are predicted; the START-only prefixes exist as context
+ * nodes with a count of zero.
+ */
+class NgramLanguageModel implements IncrementalLanguageModel,
+		ParallelSentenceGenerator.SentenceSampler,
+		FrozenLanguageModel.Freezable, ScoringMetrics.Source,
+		LanguageModelSnapshot.Writable {
+
+	static final String START = "<S>";
+	static final String STOP = "</S>";
+	static final String UNKNOWN = "*UNKNOWN*";
+	static final int ROOT = 0;
+	static final int NO_NODE = -1;
+
+	final int order;
+	final NgramSmoothing smoothing;
+	final Vocabulary vocabulary = new Vocabulary();
+	final int startId;
+	final int stopId;
+
+	// The trie: child links plus per-node arrays indexed by node id.
+	LongIntHashMap children = new LongIntHashMap();
+	int numNodes;
+	int[] parents;
+	int[] words;
+	int[] contexts;
+	int[] depths;
+	double[] counts;
+	double[] followerCounts;
+	double[] followerTypes;
+	double[] leftTypes;
+	double[] leftFollowerCounts;
+	double[] leftFollowerTypes;
+	// Number of n-grams with a non-zero count, indexed by order.
+	int[] ngramsPerOrder;
+	int startContext;
+	// Set by freeze(); pruning is then refused.
+	volatile boolean frozen;
+	final ScoringMetrics metrics;
+
+	// Samplers over the seen followers of each context node, and the
+	// followers of every node grouped by context, built on first use.
+	ConcurrentHashMap<Integer, WordSampler> wordSamplers = new ConcurrentHashMap<Integer, WordSampler>();
+	private volatile Followers followers;
+
+	public int getOrder() {
+		return order;
+	}
+
+	/** Returns the number of distinct n-grams of the given order. */
+	public int size(int n) {
+		return ngramsPerOrder[n];
+	}
+
+	/** Returns the number of n-grams of all orders. */
+	public int size() {
+		int size = 0;
+		for (int n = 1; n <= order; n++) {
+			size += ngramsPerOrder[n];
+		}
+		return size;
+	}
+
+	int getChild(int node, int wordId) {
+		if (node == NO_NODE || wordId == Vocabulary.NOT_FOUND)
+			return NO_NODE;
+		return children.get(NgramKeys.pack(node, wordId), NO_NODE);
+	}
+
+	/** P(w) with a single fictitious count shared by unknown words. */
+	double getUnigramProbability(int unigramNode) {
+		double count = unigramNode == NO_NODE ? 0.0 : counts[unigramNode];
+		return (count == 0 ? 1.0 : count) / (followerCounts[ROOT] + 1.0);
+	}
+
+	double getCount(int node) {
+		return node == NO_NODE ? 0.0 : counts[node];
+	}
+
+	/** Returns the number of trie nodes, n-grams and context-only nodes. */
+	public int getNumNodes() {
+		return numNodes;
+	}
+
+	/**
+	 * Returns the bytes held by the trie arrays, the child links and the
+	 * smoothing's per-node tables; the vocabulary is not included.
+	 */
+	public long getMemoryBytes() {
+		return 16L * parents.length + 48L * counts.length
+				+ children.getMemoryBytes() + smoothing.getMemoryBytes();
+	}
+
+	/**
+	 * Drops an n-gram from scoring by clearing its count. Its node stays in
+	 * the trie until finishPruning(), since it may still be the context of
+	 * longer n-grams.
+	 */
+	void prune(int node) {
+		if (frozen)
+			throw new IllegalStateException("Model is frozen");
+		if (counts[node] == 0)
+			return;
+		counts[node] = 0;
+		ngramsPerOrder[depths[node]]--;
+	}
+
+	/**
+	 * Lets the smoothing adjust to pruned n-grams, then compacts the trie and
+	 * drops cached samplers.
+	 */
+	void finishPruning() {
+		smoothing.pruned(this);
+		compact();
+		wordSamplers.clear();
+		followers = null;
+	}
+
+	/**
+	 * Removes the nodes pruning has left without a use. A node goes when it
+	 * has no count, no remaining node has it as parent or context, it is not
+	 * on the path of the start context, and either it is of the highest
+	 * order (and so never a context) or the smoothing scores words after it
+	 * exactly as after its parent. Scores are unchanged. The remaining nodes
+	 * keep their order, and the arrays and child links are rebuilt at the
+	 * new size.
+	 */
+	private void compact() {
+		boolean[] used = new boolean[numNodes];
+		for (int node = startContext; node != NO_NODE; node = parents[node]) {
+			used[node] = true;
+		}
+		// Parents and contexts are one order lower than their users, so
+		// going down from the highest order settles every node before it is
+		// looked at.
+		for (int k = order; k >= 1; k--) {
+			for (int node = 1; node < numNodes; node++) {
+				if (depths[node] != k)
+					continue;
+				if (!used[node] && counts[node] == 0
+						&& (k == order || smoothing.canDropContext(this, node)))
+					continue;
+				used[node] = true;
+				used[parents[node]] = true;
+				used[contexts[node]] = true;
+			}
+		}
+		int[] newIds = new int[numNodes];
+		int size = 0;
+		for (int node = 0; node < numNodes; node++) {
+			newIds[node] = used[node] ? size++ : NO_NODE;
+		}
+		if (size == numNodes)
+			return;
+		// New ids never exceed old ones, so the arrays compact in place.
+		for (int node = 0; node < numNodes; node++) {
+			int id = newIds[node];
+			if (id == NO_NODE)
+				continue;
+			parents[id] = node == ROOT ? NO_NODE : newIds[parents[node]];
+			words[id] = words[node];
+			contexts[id] = newIds[contexts[node]];
+			depths[id] = depths[node];
+			counts[id] = counts[node];
+			followerCounts[id] = followerCounts[node];
+			followerTypes[id] = followerTypes[node];
+			leftTypes[id] = leftTypes[node];
+			leftFollowerCounts[id] = leftFollowerCounts[node];
+			leftFollowerTypes[id] = leftFollowerTypes[node];
+		}
+		numNodes = size;
+		allocate(size);
+		children = new LongIntHashMap(size);
+		for (int node = 1; node < numNodes; node++) {
+			children.put(NgramKeys.pack(parents[node], words[node]), node);
+		}
+		startContext = newIds[startContext];
+		smoothing.compacted(this, newIds);
+	}
+
+	public ScoringMetrics getMetrics() {
+		return metrics;
+	}
+
+	/** Only pruning changes a trained model; freezing refuses it. */
+	public void freeze() {
+		frozen = true;
+	}
+
+	public double getSentenceProbability(List<String> sentence) {
+		return Math.exp(getSentenceLogProbability(sentence));
+	}
+
+	public double getSentenceLogProbability(List<String> sentence) {
+		return scoreSentence(sentence, null);
+	}
+
+	public double[] getWordLogProbabilities(List<String> sentence) {
+		double[] wordLogProbabilities = new double[sentence.size() + 1];
+		scoreSentence(sentence, wordLogProbabilities);
+		return wordLogProbabilities;
+	}
+
+	private double scoreSentence(List<String> sentence,
+			double[] wordLogProbabilities) {
+		double logProbability = 0.0;
+		int[] context = { startContext };
+		for (int i = 0; i <= sentence.size(); i++) {
+			int wordId = i < sentence.size() ? vocabulary.indexOf(sentence
+					.get(i)) : stopId;
+			double wordLogProbability = Math.log(scoreWord(context[0], wordId,
+					context, metrics));
+			if (wordLogProbabilities != null)
+				wordLogProbabilities[i] = wordLogProbability;
+			logProbability += wordLogProbability;
+		}
+		return logProbability;
+	}
+
+	public LanguageModelState getInitialState() {
+		return new LanguageModelState(startContext, null, 0.0);
+	}
+
+	public LanguageModelState score(LanguageModelState state, String word) {
+		int[] context = new int[1];
+		double probability = scoreWord((int) state.context,
+				vocabulary.indexOf(word), context, metrics);
+		return new LanguageModelState(context[0], null, Math.log(probability));
+	}
+
+	public double getFinalLogProbability(LanguageModelState state) {
+		return Math.log(scoreWord((int) state.context, stopId, new int[1],
+				metrics));
+	}
+
+	/** Returns P(word | context node) under the configured smoothing. */
+	double getProbability(int contextNode, int wordId) {
+		return scoreWord(contextNode, wordId, new int[1]);
+	}
+
+	/**
+	 * Collects the context nodes of every history length and the nodes of
+	 * the n-grams ending in wordId, scores the word and stores the context
+	 * for the following word in nextContext[0]. That context is the longest
+	 * suffix of the extended history, up to order - 1 words, that is in the
+	 * trie; shorter histories give the same probabilities.
+	 */
+	double scoreWord(int contextNode, int wordId, int[] nextContext) {
+		return scoreWord(contextNode, wordId, nextContext, null);
+	}
+
+	/** Scores a word as above and counts the lookups in metrics, if given. */
+	private double scoreWord(int contextNode, int wordId, int[] nextContext,
+			ScoringMetrics metrics) {
+		int depth = depths[contextNode];
+		int[] contextNodes = new int[order];
+		int[] ngramNodes = new int[order + 1];
+		contextNodes[depth] = contextNode;
+		for (int m = depth; m > 0; m--) {
+			contextNodes[m - 1] = parents[contextNodes[m]];
+		}
+		ngramNodes[0] = ROOT;
+		ngramNodes[1] = getChild(ROOT, wordId);
+		for (int k = 1; k <= depth; k++) {
+			ngramNodes[k + 1] = getChild(ngramNodes[k],
+					words[contextNodes[k]]);
+		}
+		int next = ROOT;
+		for (int k = Math.min(depth + 1, order - 1); k >= 1; k--) {
+			if (ngramNodes[k] != NO_NODE) {
+				next = ngramNodes[k];
+				break;
+			}
+		}
+		nextContext[0] = next;
+		double probability = smoothing.getProbability(this, contextNodes,
+				ngramNodes, depth);
+		if (metrics != null) {
+			int resolvedOrder = 0;
+			for (int k = 1; k <= depth + 1; k++) {
+				metrics.recordLookup(k);
+				if (getCount(ngramNodes[k]) > 0)
+					resolvedOrder = k;
+			}
+			metrics.recordPrediction(resolvedOrder,
+					wordId == Vocabulary.NOT_FOUND, probability == 0);
+		}
+		return probability;
+	}
+
+	String generateWord(int contextNode, SplittableRandom random) {
+		int wordId = sampleWord(contextNode, random);
+		return wordId == Vocabulary.NOT_FOUND ? UNKNOWN : vocabulary.get(wordId);
+	}
+
+	/**
+	 * Draws a word id, or NOT_FOUND for an unknown word, by backoff: the
+	 * context's sampler picks one of its seen followers or the backoff
+	 * outcome, which draws from the parent context instead and rejects the
+	 * followers already covered. Every smoothing scores a word the context
+	 * has not seen as a fixed multiple of its score after the parent, so
+	 * this samples P(w | context) exactly.
+	 */
+	private int sampleWord(int contextNode, SplittableRandom random) {
+		WordSampler sampler = getWordSampler(contextNode);
+		int wordId = sampler.sampler.sample(random.nextDouble());
+		if (wordId != WordSampler.BACKOFF)
+			return wordId;
+		do {
+			wordId = sampleWord(parents[contextNode], random);
+		} while (sampler.isFollower(wordId));
+		return wordId;
+	}
+
+	private WordSampler getWordSampler(int contextNode) {
+		WordSampler sampler = wordSamplers.get(contextNode);
+		if (sampler == null) {
+			sampler = buildWordSampler(contextNode);
+			wordSamplers.putIfAbsent(contextNode, sampler);
+		}
+		return sampler;
+	}
+
+	/**
+	 * Weighs each seen follower of the context by its probability. At the
+	 * root the mass left over goes to unknown words; elsewhere it goes to
+	 * the backoff outcome, which is worth the backoff factor times
+	 * the parent's mass outside these followers. The factor is the ratio of
+	 * the scores of an unknown word, which no context has seen.
+	 */
+	private WordSampler buildWordSampler(int contextNode) {
+		Followers index = getFollowers();
+		int start = index.starts[contextNode];
+		int end = index.starts[contextNode + 1];
+		int[] followerIds = Arrays.copyOfRange(index.words, start, end);
+		List<Integer> outcomes = new ArrayList<Integer>(followerIds.length + 1);
+		double[] weights = new double[followerIds.length + 1];
+		double seenMass = 0.0;
+		for (int wordId : followerIds) {
+			double probability = getProbability(contextNode, wordId);
+			if (probability > 0) {
+				weights[outcomes.size()] = probability;
+				outcomes.add(wordId);
+				seenMass += probability;
+			}
+		}
+		double mass;
+		if (contextNode == ROOT) {
+			if (seenMass < 1.0) {
+				weights[outcomes.size()] = 1.0 - seenMass;
+				outcomes.add(Vocabulary.NOT_FOUND);
+			}
+			mass = Math.max(seenMass, 1.0);
+		} else {
+			int parent = parents[contextNode];
+			WordSampler parentSampler = getWordSampler(parent);
+			double lowerMass = parentSampler.mass;
+			for (int wordId : followerIds) {
+				lowerMass -= getProbability(parent, wordId);
+			}
+			double parentUnknown = getProbability(parent, Vocabulary.NOT_FOUND);
+			double backoffMass = 0.0;
+			if (lowerMass > 1e-12 * parentSampler.mass && parentUnknown > 0)
+				backoffMass = getProbability(contextNode, Vocabulary.NOT_FOUND)
+						/ parentUnknown * lowerMass;
+			if (backoffMass > 0 || outcomes.isEmpty()) {
+				weights[outcomes.size()] = backoffMass > 0 ? backoffMass : 1.0;
+				outcomes.add(WordSampler.BACKOFF);
+			}
+			mass = seenMass + backoffMass;
+		}
+		return new WordSampler(new AliasSampler<Integer>(outcomes, weights),
+				followerIds, mass);
+	}
+
+	private Followers getFollowers() {
+		Followers index = followers;
+		if (index == null) {
+			index = new Followers(this);
+			followers = index;
+		}
+		return index;
+	}
+
+	/**
+	 * The alias table of a context node and the word ids it covers, sorted.
+	 * Mass is the total score of all words after the context, one for every
+	 * smoothing but stupid backoff.
+	 */
+	static final class WordSampler {
+		static final int BACKOFF = -2;
+
+		final AliasSampler<Integer> sampler;
+		final int[] followerIds;
+		final double mass;
+
+		boolean isFollower(int wordId) {
+			return Arrays.binarySearch(followerIds, wordId) >= 0;
+		}
+
+		WordSampler(AliasSampler<Integer> sampler, int[] followerIds,
+				double mass) {
+			this.sampler = sampler;
+			this.followerIds = followerIds;
+			this.mass = mass;
+		}
+	}
+
+	/**
+	 * The words seen after each context node, START excepted: those of node
+	 * c are words[starts[c]] up to words[starts[c + 1]], in id order.
+	 */
+	static final class Followers {
+		final int[] starts;
+		final int[] words;
+
+		Followers(NgramLanguageModel model) {
+			int numNodes = model.numNodes;
+			// A node holds its oldest word; the word it predicts is the one
+			// of its unigram ancestor.
+			int[] predicted = new int[numNodes];
+			for (int node = 1; node < numNodes; node++) {
+				int unigram = node;
+				while (model.depths[unigram] > 1)
+					unigram = model.parents[unigram];
+				predicted[node] = model.words[unigram];
+			}
+			starts = new int[numNodes + 1];
+			for (int node = 1; node < numNodes; node++) {
+				if (predicted[node] != model.startId)
+					starts[model.contexts[node] + 1]++;
+			}
+			for (int node = 0; node < numNodes; node++) {
+				starts[node + 1] += starts[node];
+			}
+			words = new int[starts[numNodes]];
+			int[] next = Arrays.copyOf(starts, numNodes);
+			for (int node = 1; node < numNodes; node++) {
+				if (predicted[node] != model.startId)
+					words[next[model.contexts[node]]++] = predicted[node];
+			}
+			for (int node = 0; node < numNodes; node++) {
+				Arrays.sort(words, starts[node], starts[node + 1]);
+			}
+		}
+	}
+
+	public List<String> generateSentence() {
+		return generateSentence(new SplittableRandom());
+	}
+
+	public List<String> generateSentence(SplittableRandom random) {
+		List<String> sentence = new ArrayList<String>();
+		int[] context = { startContext };
+		String word = generateWord(context[0], random);
+		while (!word.equals(STOP)) {
+			sentence.add(word);
+			scoreWord(context[0], vocabulary.indexOf(word), context);
+			word = generateWord(context[0], random);
+		}
+		return sentence;
+	}
+
+	public NgramLanguageModel(Collection<List<String>> sentenceCollection,
+			int order, NgramSmoothing smoothing) {
+		if (order < 1)
+			throw new IllegalArgumentException("Order must be positive: "
+					+ order);
+		this.order = order;
+		this.smoothing = smoothing;
+		this.metrics = new ScoringMetrics(order);
+		startId = vocabulary.add(START);
+		stopId = vocabulary.add(STOP);
+		allocate(1024);
+		numNodes = 1;
+		contexts[ROOT] = ROOT;
+		parents[ROOT] = NO_NODE;
+		words[ROOT] = Vocabulary.NOT_FOUND;
+		ngramsPerOrder = new int[order + 1];
+
+		int[] path = new int[order + 1];
+		int[] previousPath = new int[order + 1];
+		for (List<String> sentence : sentenceCollection) {
+			int length = sentence.size() + order;
+			int[] ids = new int[length];
+			for (int i = 0; i < length; i++) {
+				if (i < order - 1)
+					ids[i] = startId;
+				else if (i < length - 1)
+					ids[i] = vocabulary.add(sentence.get(i - order + 1));
+				else
+					ids[i] = stopId;
+			}
+			for (int i = 0; i < length; i++) {
+				countPosition(ids, i, i >= order - 1, path, previousPath);
+				int[] swap = previousPath;
+				previousPath = path;
+				path = swap;
+			}
+		}
+
+		startContext = ROOT;
+		for (int k = 0; k < order - 1; k++) {
+			int child = getChild(startContext, startId);
+			if (child == NO_NODE)
+				break;
+			startContext = child;
+		}
+		smoothing.estimate(this);
+	}
+
+	/**
+	 * Writes the trained model: the smoothing, the vocabulary in id order,
+	 * the per-node arrays and the smoothing's estimated tables. Only the
+	 * child links are rebuilt by read(). Pruned n-grams are either gone from
+	 * a compacted trie or written as context nodes with a count of zero.
+	 */
+	public void write(DataOutputStream out) throws IOException {
+		out.writeInt(order);
+		out.writeUTF(smoothing.getName());
+		out.writeDouble(smoothing.getParameter());
+		out.writeInt(vocabulary.size());
+		for (int id = 0; id < vocabulary.size(); id++) {
+			out.writeUTF(vocabulary.get(id));
+		}
+		out.writeInt(numNodes);
+		out.writeInt(startContext);
+		for (int n = 0; n <= order; n++) {
+			out.writeInt(ngramsPerOrder[n]);
+		}
+		for (int node = 0; node < numNodes; node++) {
+			out.writeInt(parents[node]);
+			out.writeInt(words[node]);
+			out.writeInt(contexts[node]);
+			out.writeInt(depths[node]);
+			out.writeDouble(counts[node]);
+			out.writeDouble(followerCounts[node]);
+			out.writeDouble(followerTypes[node]);
+			out.writeDouble(leftTypes[node]);
+			out.writeDouble(leftFollowerCounts[node]);
+			out.writeDouble(leftFollowerTypes[node]);
+		}
+		smoothing.write(this, out);
+	}
+
+	/** Reads a model written by write(). */
+	static NgramLanguageModel read(DataInputStream in) throws IOException {
+		int order = in.readInt();
+		NgramSmoothing smoothing = NgramSmoothing.forName(in.readUTF(), in
+				.readDouble());
+		return new NgramLanguageModel(order, smoothing, in);
+	}
+
+	private NgramLanguageModel(int order, NgramSmoothing smoothing,
+			DataInputStream in) throws IOException {
+		this.order = order;
+		this.smoothing = smoothing;
+		this.metrics = new ScoringMetrics(order);
+		int vocabularySize = in.readInt();
+		for (int id = 0; id < vocabularySize; id++) {
+			vocabulary.add(in.readUTF());
+		}
+		startId = vocabulary.indexOf(START);
+		stopId = vocabulary.indexOf(STOP);
+		int size = in.readInt();
+		allocate(Math.max(size, 1));
+		startContext = in.readInt();
+		ngramsPerOrder = new int[order + 1];
+		for (int n = 0; n <= order; n++) {
+			ngramsPerOrder[n] = in.readInt();
+		}
+		for (int node = 0; node < size; node++) {
+			parents[node] = in.readInt();
+			words[node] = in.readInt();
+			contexts[node] = in.readInt();
+			depths[node] = in.readInt();
+			counts[node] = in.readDouble();
+			followerCounts[node] = in.readDouble();
+			followerTypes[node] = in.readDouble();
+			leftTypes[node] = in.readDouble();
+			leftFollowerCounts[node] = in.readDouble();
+			leftFollowerTypes[node] = in.readDouble();
+			if (node != ROOT)
+				children.put(NgramKeys.pack(parents[node], words[node]), node);
+		}
+		numNodes = size;
+		smoothing.read(this, in);
+	}
+
+	/**
+	 * Walks the path of the n-grams ending at position i, creating missing
+	 * nodes. For predicted positions every n-gram on the path is counted and
+	 * the follower and continuation statistics of its context are updated.
+	 */
+	private void countPosition(int[] ids, int i, boolean predicted, int[] path,
+			int[] previousPath) {
+		int node = ROOT;
+		path[0] = ROOT;
+		int maxOrder = Math.min(order, i + 1);
+		for (int k = 1; k <= maxOrder; k++) {
+			int wordId = ids[i - k + 1];
+			int child = getChild(node, wordId);
+			if (child == NO_NODE)
+				child = addNode(node, wordId, k == 1 ? ROOT : previousPath[k - 1], k);
+			path[k] = child;
+			node = child;
+			if (!predicted)
+				continue;
+			boolean isNew = counts[child] == 0;
+			counts[child]++;
+			int context = contexts[child];
+			followerCounts[context]++;
+			if (!isNew)
+				continue;
+			ngramsPerOrder[k]++;
+			followerTypes[context]++;
+			if (k >= 2) {
+				int suffix = parents[child];
+				if (leftTypes[suffix] == 0)
+					leftFollowerTypes[contexts[suffix]]++;
+				leftTypes[suffix]++;
+				leftFollowerCounts[contexts[suffix]]++;
+			}
+		}
+	}
+
+	private int addNode(int parent, int wordId, int context, int depth) {
+		if (numNodes == parents.length)
+			allocate(parents.length * 2);
+		int node = numNodes++;
+		parents[node] = parent;
+		words[node] = wordId;
+		contexts[node] = context;
+		depths[node] = depth;
+		children.put(NgramKeys.pack(parent, wordId), node);
+		return node;
+	}
+
+	private void allocate(int capacity) {
+		parents = parents == null ? new int[capacity] : Arrays.copyOf(parents,
+				capacity);
+		words = words == null ? new int[capacity] : Arrays.copyOf(words,
+				capacity);
+		contexts = contexts == null ? new int[capacity] : Arrays.copyOf(
+				contexts, capacity);
+		depths = depths == null ? new int[capacity] : Arrays.copyOf(depths,
+				capacity);
+		counts = grow(counts, capacity);
+		followerCounts = grow(followerCounts, capacity);
+		followerTypes = grow(followerTypes, capacity);
+		leftTypes = grow(leftTypes, capacity);
+		leftFollowerCounts = grow(leftFollowerCounts, capacity);
+		leftFollowerTypes = grow(leftFollowerTypes, capacity);
+	}
+
+	private static double[] grow(double[] array, int capacity) {
+		return array == null ? new double[capacity] : Arrays.copyOf(array,
+				capacity);
+	}
+}
@@ -0,0 +1,126 @@
+package nlp.assignments;
+
+import java.util.Arrays;
+
+/**
+ * Shrinks a trained NgramLanguageModel after the fact, either with count
+ * cutoffs per order or with Stolcke's relative-entropy criterion, and then
+ * has the smoothing recompute its backoff weights over what is left.
+ * <p/>
+ * Unigrams are never pruned, so the vocabulary stays intact. An n-gram is
+ * only removed if no longer n-gram extending it to the left survives:
+ * orders are visited from the highest down, which keeps the model
+ * suffix-closed the way a backoff model expects. Afterwards the model
+ * compacts its trie: removed n-grams that are not the context of a
+ * remaining one lose their nodes, so pruning frees memory as well as
+ * n-grams.
+ * <p/>
+ * Pruning needs a backoff smoothing. Count cutoffs work with Katz and stupid
+ * backoff; entropy pruning needs the normalized Katz model.
+ */
+class NgramPruner {
+
+	/**
+	 * Removes every n-gram of order k >= 2 whose count is below
+	 * minCounts[k - 2]; the last cutoff also applies to all higher orders.
+	 */
+	public static int pruneByCount(NgramLanguageModel model, int[] minCounts) {
+		checkSmoothing(model.smoothing, false);
+		if (minCounts.length == 0)
+			return 0;
+		boolean[] candidates = new boolean[model.numNodes];
+		for (int node = 1; node < model.numNodes; node++) {
+			int k = model.depths[node];
+			if (k < 2)
+				continue;
+			double count = model.getCount(node);
+			candidates[node] = count > 0
+					&& count < minCounts[Math.min(k - 2, minCounts.length - 1)];
+		}
+		return prune(model, candidates);
+	}
+
+	/**
+	 * Removes every n-gram of order k >= 2 whose removal changes the model by
+	 * less than threshold in relative entropy, with each cost computed
+	 * against the unpruned model as in Stolcke (1998).
+	 */
+	public static int pruneByEntropy(NgramLanguageModel model, double threshold) {
+		checkSmoothing(model.smoothing, true);
+		NgramSmoothing.Katz katz = (NgramSmoothing.Katz) model.smoothing;
+		double[] historyProbabilities = new double[model.numNodes];
+		Arrays.fill(historyProbabilities, Double.NaN);
+		boolean[] candidates = new boolean[model.numNodes];
+		for (int node = 1; node < model.numNodes; node++) {
+			if (model.depths[node] < 2 || model.getCount(node) == 0)
+				continue;
+			int context = model.contexts[node];
+			if (Double.isNaN(historyProbabilities[context]))
+				historyProbabilities[context] = getHistoryProbability(model,
+						context);
+			candidates[node] = katz.pruningCost(model, node,
+					historyProbabilities[context]) < threshold;
+		}
+		return prune(model, candidates);
+	}
+
+	/**
+	 * P(h) for the history of a context node, by the chain rule over its
+	 * words oldest first. START symbols are given, not predicted.
+	 */
+	private static double getHistoryProbability(NgramLanguageModel model,
+			int contextNode) {
+		int[] context = { NgramLanguageModel.ROOT };
+		double probability = 1.0;
+		for (int node = contextNode; node != NgramLanguageModel.ROOT; node = model.parents[node]) {
+			int wordId = model.words[node];
+			double wordProbability = model.scoreWord(context[0], wordId,
+					context);
+			if (wordId != model.startId)
+				probability *= wordProbability;
+		}
+		return probability;
+	}
+
+	private static int prune(NgramLanguageModel model, boolean[] candidates) {
+		boolean[] keptChildren = new boolean[model.numNodes];
+		int numPruned = 0;
+		for (int k = model.order; k >= 2; k--) {
+			for (int node = 1; node < model.numNodes; node++) {
+				if (model.depths[node] != k || model.getCount(node) == 0)
+					continue;
+				if (candidates[node] && !keptChildren[node]) {
+					model.prune(node);
+					numPruned++;
+				} else {
+					keptChildren[model.parents[node]] = true;
+				}
+			}
+		}
+		model.finishPruning();
+		return numPruned;
+	}
+
+	/**
+	 * Throws unless models with this smoothing can be pruned, so callers can
+	 * check before they spend time training.
+	 */
+	static void checkSmoothing(NgramSmoothing smoothing, boolean byEntropy) {
+		if (byEntropy && !(smoothing instanceof NgramSmoothing.Katz))
+			throw new IllegalArgumentException(
+					"Entropy pruning needs katz smoothing");
+		if (!(smoothing instanceof NgramSmoothing.Katz || smoothing instanceof NgramSmoothing.StupidBackoff))
+			throw new IllegalArgumentException(
+					"Pruning needs katz or stupid-backoff smoothing");
+	}
+
+	/** Parses a comma-separated list of count cutoffs, from order 2 up. */
+	static int[] parseCutoffs(String cutoffs) {
+		String[] fields = cutoffs.split(",");
+		int[] minCounts = new int[fields.length];
+		for (int i = 0; i < fields.length; i++) {
+			minCounts[i] = Integer.parseInt(fields[i].trim());
+		}
+		return minCounts;
+	}
+}
@@ -0,0 +1,448 @@
+package nlp.assignments;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A smoothing method for NgramLanguageModel. Probabilities are computed from
+ * the nodes the model collects for one prediction: contextNodes[m] is the
+ * node of the last m history words (contextNodes[0] is the root), and
+ * ngramNodes[k] is the node of the n-gram of order k ending in the predicted
+ * word, or NO_NODE if it was never seen. depth is the length of the longest
+ * history in the trie.
+ * <p/>
+ * Methods that precompute per-node values do so in estimate(), which the
+ * model calls once after counting, so an instance belongs to one model. They
+ * also write those values to model snapshots and remap them when pruning
+ * compacts the trie.
+ */
+abstract class NgramSmoothing {
+
+	/** Precomputes whatever the method needs once the counts are final. */
+	void estimate(NgramLanguageModel model) {
+	}
+
+	abstract double getProbability(NgramLanguageModel model,
+			int[] contextNodes, int[] ngramNodes, int depth);
+
+	/** Called after NgramPruner has removed n-grams from the model. */
+	void pruned(NgramLanguageModel model) {
+	}
+
+	/**
+	 * Whether words after a context node with no remaining followers score
+	 * exactly as after its parent, so that compaction may drop the node.
+	 */
+	boolean canDropContext(NgramLanguageModel model, int node) {
+		return false;
+	}
+
+	/**
+	 * Called after compaction has moved node old to newIds[old], or dropped
+	 * it if that is NO_NODE; model.numNodes is already the new count.
+	 */
+	void compacted(NgramLanguageModel model, int[] newIds) {
+	}
+
+	/** Returns the bytes held by precomputed per-node values. */
+	long getMemoryBytes() {
+		return 0;
+	}
+
+	/** Writes the values estimate() computed. */
+	void write(NgramLanguageModel model, DataOutputStream out)
+			throws IOException {
+	}
+
+	/** Reads the values written by write(), in place of estimate(). */
+	void read(NgramLanguageModel model, DataInputStream in) throws IOException {
+	}
+
+	/** The name forName() accepts for this method. */
+	abstract String getName();
+
+	/** The single parameter of the method, as passed to forName(). */
+	abstract double getParameter();
+
+	/**
+	 * Parses the names accepted on the command line: interpolated, katz,
+	 * kneser-ney (or kn) and stupid-backoff, each with its default parameter.
+	 */
+	static NgramSmoothing forName(String name) {
+		if (name.equalsIgnoreCase("interpolated"))
+			return new Interpolated(0.9);
+		if (name.equalsIgnoreCase("katz"))
+			return new Katz(5);
+		if (name.equalsIgnoreCase("kneser-ney") || name.equalsIgnoreCase("kn"))
+			return new KneserNey(0.75);
+		if (name.equalsIgnoreCase("stupid-backoff"))
+			return new StupidBackoff(0.4);
+		throw new IllegalArgumentException("Unknown smoothing: " + name);
+	}
+
+	/** Creates a method by name with an explicit parameter. */
+	static NgramSmoothing forName(String name, double parameter) {
+		if (name.equalsIgnoreCase("interpolated"))
+			return new Interpolated(parameter);
+		if (name.equalsIgnoreCase("katz"))
+			return new Katz((int) parameter);
+		if (name.equalsIgnoreCase("kneser-ney") || name.equalsIgnoreCase("kn"))
+			return new KneserNey(parameter);
+		if (name.equalsIgnoreCase("stupid-backoff"))
+			return new StupidBackoff(parameter);
+		throw new IllegalArgumentException("Unknown smoothing: " + name);
+	}
+
+	/**
+	 * Recursive linear interpolation with a fixed weight on the maximum
+	 * likelihood estimate of each order, down to the unigram distribution.
+	 */
+	static class Interpolated extends NgramSmoothing {
+		private final double lambda;
+
+		Interpolated(double lambda) {
+			this.lambda = lambda;
+		}
+
+		String getName() {
+			return "interpolated";
+		}
+
+		double getParameter() {
+			return lambda;
+		}
+
+		double getProbability(NgramLanguageModel model, int[] contextNodes,
+				int[] ngramNodes, int depth) {
+			double probability = model.getUnigramProbability(ngramNodes[1]);
+			for (int m = 1; m <= depth; m++) {
+				double total = model.followerCounts[contextNodes[m]];
+				if (total > 0)
+					probability = lambda * model.getCount(ngramNodes[m + 1])
+							/ total + (1.0 - lambda) * probability;
+			}
+			return probability;
+		}
+	}
+
+	/**
+	 * Katz backoff. Counts up to the cutoff are discounted with Good-Turing
+	 * estimates from the count-of-counts of their order, and each context's
+	 * backoff weight spreads the freed mass over the lower order. Where the
+	 * count-of-counts are too sparse for a valid discount the count is left
+	 * undiscounted.
+	 */
+	static class Katz extends NgramSmoothing {
+		private final int cutoff;
+		private double[] probabilities;
+		private double[] backoffs;
+		// Per context: the mass of its seen words, and of the same words
+		// under the lower order.
+		private double[] seenMass;
+		private double[] lowerMass;
+		private double unknownProbability;
+
+		Katz(int cutoff) {
+			this.cutoff = cutoff;
+		}
+
+		String getName() {
+			return "katz";
+		}
+
+		double getParameter() {
+			return cutoff;
+		}
+
+		void estimate(NgramLanguageModel model) {
+			int numNodes = model.numNodes;
+			double[][] countOfCounts = new double[model.order + 1][cutoff + 2];
+			for (int node = 1; node < numNodes; node++) {
+				double count = model.counts[node];
+				if (count > 0 && count <= cutoff + 1)
+					countOfCounts[model.depths[node]][(int) count]++;
+			}
+			double[][] ratios = new double[model.order + 1][cutoff + 1];
+			for (int k = 1; k <= model.order; k++) {
+				double[] buckets = countOfCounts[k];
+				double a = (cutoff + 1) * buckets[cutoff + 1] / buckets[1];
+				for (int r = 1; r <= cutoff; r++) {
+					double discountedCount = (r + 1) * buckets[r + 1]
+							/ buckets[r];
+					double ratio = (discountedCount / r - a) / (1 - a);
+					ratios[k][r] = ratio > 0 && ratio <= 1 ? ratio : 1.0;
+				}
+			}
+
+			probabilities = new double[numNodes];
+			for (int node = 1; node < numNodes; node++) {
+				double count = model.counts[node];
+				if (count == 0)
+					continue;
+				double ratio = count <= cutoff ? ratios[model.depths[node]][(int) count]
+						: 1.0;
+				probabilities[node] = count * ratio
+						/ model.followerCounts[model.contexts[node]];
+			}
+			// The Good-Turing mass of unseen words, spread over the vocabulary;
+			// a single fictitious singleton stands in if there are none.
+			unknownProbability = Math.max(countOfCounts[1][1], 1.0)
+					/ model.followerCounts[NgramLanguageModel.ROOT]
+					/ model.vocabulary.size();
+
+			// Orders are processed bottom up, so the lower-order masses are
+			// final before the contexts of the next order use them.
+			int[][] nodesByOrder = nodesByOrder(model);
+			seenMass = new double[numNodes];
+			lowerMass = new double[numNodes];
+			backoffs = new double[numNodes];
+			Arrays.fill(backoffs, 1.0);
+			for (int k = 2; k <= model.order; k++) {
+				for (int node : nodesByOrder[k]) {
+					int context = model.contexts[node];
+					seenMass[context] += probabilities[node];
+					lowerMass[context] += probabilities[model.parents[node]];
+				}
+				// A context whose counts are all above the cutoff keeps no mass
+				// for unseen words; it reserves a Witten-Bell share instead.
+				for (int node : nodesByOrder[k]) {
+					int context = model.contexts[node];
+					if (seenMass[context] < 1.0 - 1e-9)
+						continue;
+					double types = model.followerTypes[context];
+					probabilities[node] *= 1.0 - types
+							/ (model.followerCounts[context] + types);
+				}
+				for (int node : nodesByOrder[k]) {
+					int context = model.contexts[node];
+					if (seenMass[context] >= 1.0 - 1e-9) {
+						double types = model.followerTypes[context];
+						seenMass[context] = 1.0 - types
+								/ (model.followerCounts[context] + types);
+					}
+					double lowerLeftOver = 1.0 - lowerMass[context];
+					backoffs[context] = lowerLeftOver > 0 ? (1.0 - seenMass[context])
+							/ lowerLeftOver
+							: 1.0 - seenMass[context];
+				}
+			}
+		}
+
+		/**
+		 * Keeps the probabilities of the remaining n-grams and recomputes the
+		 * backoff weights so that each context is normalized again.
+		 */
+		void pruned(NgramLanguageModel model) {
+			Arrays.fill(seenMass, 0.0);
+			Arrays.fill(lowerMass, 0.0);
+			for (int node = 1; node < model.numNodes; node++) {
+				if (model.getCount(node) == 0 || model.depths[node] < 2)
+					continue;
+				int context = model.contexts[node];
+				seenMass[context] += probabilities[node];
+				lowerMass[context] += probabilities[model.parents[node]];
+			}
+			for (int node = 1; node < model.numNodes; node++) {
+				double lowerLeftOver = 1.0 - lowerMass[node];
+				backoffs[node] = lowerLeftOver > 0 ? (1.0 - seenMass[node])
+						/ lowerLeftOver : 1.0 - seenMass[node];
+			}
+		}
+
+		/**
+		 * A context without remaining followers has a backoff weight of one
+		 * after pruned(), which leaves the lower order unchanged.
+		 */
+		boolean canDropContext(NgramLanguageModel model, int node) {
+			return backoffs[node] == 1.0;
+		}
+
+		void compacted(NgramLanguageModel model, int[] newIds) {
+			probabilities = remap(probabilities, newIds, model.numNodes);
+			backoffs = remap(backoffs, newIds, model.numNodes);
+			seenMass = remap(seenMass, newIds, model.numNodes);
+			lowerMass = remap(lowerMass, newIds, model.numNodes);
+		}
+
+		private static double[] remap(double[] values, int[] newIds, int size) {
+			double[] remapped = new double[size];
+			for (int node = 0; node < newIds.length; node++) {
+				if (newIds[node] != NgramLanguageModel.NO_NODE)
+					remapped[newIds[node]] = values[node];
+			}
+			return remapped;
+		}
+
+		long getMemoryBytes() {
+			return 32L * probabilities.length;
+		}
+
+		void write(NgramLanguageModel model, DataOutputStream out)
+				throws IOException {
+			out.writeDouble(unknownProbability);
+			for (int node = 0; node < model.numNodes; node++) {
+				out.writeDouble(probabilities[node]);
+				out.writeDouble(backoffs[node]);
+				out.writeDouble(seenMass[node]);
+				out.writeDouble(lowerMass[node]);
+			}
+		}
+
+		void read(NgramLanguageModel model, DataInputStream in)
+				throws IOException {
+			unknownProbability = in.readDouble();
+			int numNodes = model.numNodes;
+			probabilities = new double[numNodes];
+			backoffs = new double[numNodes];
+			seenMass = new double[numNodes];
+			lowerMass = new double[numNodes];
+			for (int node = 0; node < numNodes; node++) {
+				probabilities[node] = in.readDouble();
+				backoffs[node] = in.readDouble();
+				seenMass[node] = in.readDouble();
+				lowerMass[node] = in.readDouble();
+			}
+		}
+
+		/**
+		 * Stolcke's relative entropy between the model with and without the
+		 * n-gram (h, w), given P(h): removing it sends w to the lower order
+		 * and changes the backoff weight of h from alpha to alpha'.
+		 * <p/>
+		 * D = -P(h) [ P(w|h) (log P(w|h') + log alpha' - log P(w|h))
+		 * + (log alpha' - log alpha) sum over backed-off v of P(v|h) ]
+		 */
+		double pruningCost(NgramLanguageModel model, int node,
+				double historyProbability) {
+			int context = model.contexts[node];
+			double probability = probabilities[node];
+			double lowerProbability = probabilities[model.parents[node]];
+			double backoff = backoffs[context];
+			double newBackoff = (1.0 - seenMass[context] + probability)
+					/ (1.0 - lowerMass[context] + lowerProbability);
+			double cost = probability
+					* (Math.log(lowerProbability) + Math.log(newBackoff) - Math
+							.log(probability));
+			if (backoff > 0)
+				cost += backoff * (1.0 - lowerMass[context])
+						* (Math.log(newBackoff) - Math.log(backoff));
+			return -historyProbability * cost;
+		}
+
+		private static int[][] nodesByOrder(NgramLanguageModel model) {
+			int[] sizes = new int[model.order + 1];
+			for (int node = 1; node < model.numNodes; node++) {
+				if (model.counts[node] > 0)
+					sizes[model.depths[node]]++;
+			}
+			int[][] nodes = new int[model.order + 1][];
+			for (int k = 0; k <= model.order; k++) {
+				nodes[k] = new int[sizes[k]];
+				sizes[k] = 0;
+			}
+			for (int node = 1; node < model.numNodes; node++) {
+				if (model.counts[node] > 0) {
+					int k = model.depths[node];
+					nodes[k][sizes[k]++] = node;
+				}
+			}
+			return nodes;
+		}
+
+		double getProbability(NgramLanguageModel model, int[] contextNodes,
+				int[] ngramNodes, int depth) {
+			int k = depth + 1;
+			while (k > 0 && model.getCount(ngramNodes[k]) == 0)
+				k--;
+			double probability = k == 0 ? unknownProbability
+					: probabilities[ngramNodes[k]];
+			for (int m = Math.max(k, 1); m <= depth; m++) {
+				probability *= backoffs[contextNodes[m]];
+			}
+			return probability;
+		}
+	}
+
+	/**
+	 * Interpolated Kneser-Ney with one absolute discount. The highest order
+	 * uses raw counts; lower orders use continuation counts N1+(. h w), and
+	 * the recursion ends in the uniform distribution over the vocabulary.
+	 */
+	static class KneserNey extends NgramSmoothing {
+		private final double discount;
+
+		KneserNey(double discount) {
+			this.discount = discount;
+		}
+
+		String getName() {
+			return "kneser-ney";
+		}
+
+		double getParameter() {
+			return discount;
+		}
+
+		double getProbability(NgramLanguageModel model, int[] contextNodes,
+				int[] ngramNodes, int depth) {
+			// START is in the vocabulary but is never predicted.
+			double probability = 1.0 / (model.vocabulary.size() - 1);
+			for (int m = 0; m <= depth; m++) {
+				int context = contextNodes[m];
+				int node = ngramNodes[m + 1];
+				double count;
+				double total;
+				double types;
+				if (m == model.order - 1) {
+					count = model.getCount(node);
+					total = model.followerCounts[context];
+					types = model.followerTypes[context];
+				} else {
+					count = node == NgramLanguageModel.NO_NODE ? 0.0
+							: model.leftTypes[node];
+					total = model.leftFollowerCounts[context];
+					types = model.leftFollowerTypes[context];
+				}
+				if (total > 0)
+					probability = Math.max(count - discount, 0) / total
+							+ discount * types / total * probability;
+			}
+			return probability;
+		}
+	}
+
+	/**
+	 * Stupid backoff: the relative frequency of the longest n-gram seen,
+	 * scaled by a fixed factor for every order backed off. The scores are not
+	 * normalized.
+	 */
+	static class StupidBackoff extends NgramSmoothing {
+		private final double alpha;
+
+		StupidBackoff(double alpha) {
+			this.alpha = alpha;
+		}
+
+		String getName() {
+			return "stupid-backoff";
+		}
+
+		double getParameter() {
+			return alpha;
+		}
+
+		double getProbability(NgramLanguageModel model, int[] contextNodes,
+				int[] ngramNodes, int depth) {
+			double scale = 1.0;
+			for (int m = depth; m >= 1; m--) {
+				double count = model.getCount(ngramNodes[m + 1]);
+				if (count > 0)
+					return scale * count / model.followerCounts[contextNodes[m]];
+				scale *= alpha;
+			}
+			return scale * model.getUnigramProbability(ngramNodes[1]);
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package nlp.assignments;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A column of per-n-gram values (log probabilities or back-off weights) in a
+ * BackoffNgramTable, stored either as plain floats or as 8- or 16-bit codes
+ * into a codebook fitted to the column, as KenLM and IRSTLM do for large
+ * models.
+ */
+abstract class NgramValues {
+
+	static final int FLOAT_BITS = 32;
+
+	public abstract float get(int index);
+
+	/** Returns 32 for plain floats, or the code width of a quantized column. */
+	public abstract int getBits();
+
+	abstract void write(DataOutputStream out, int size) throws IOException;
+
+	static NgramValues of(FloatBuffer values) {
+		return new FloatValues(values);
+	}
+
+	/** Returns the number of bytes a column of size values occupies on disk. */
+	static long byteSize(int size, int bits) {
+		if (bits == FLOAT_BITS)
+			return 4L * size;
+		return 4L * (1 << bits) + padding(size * (long) (bits / 8));
+	}
+
+	static NgramValues map(FileChannel channel, long position, int size,
+			int bits, String section, String fileName) throws IOException {
+		if (bits == FLOAT_BITS)
+			return of(BackoffNgramTable.Reader.map(channel, position,
+					4L * size, section, fileName).asFloatBuffer());
+		checkBits(bits);
+		float[] codebook = new float[1 << bits];
+		BackoffNgramTable.Reader.map(channel, position, 4L * codebook.length,
+				section, fileName).asFloatBuffer().get(codebook);
+		ByteBuffer codes = BackoffNgramTable.Reader.map(channel, position + 4L
+				* codebook.length, size * (long) (bits / 8), section, fileName);
+		return new QuantizedValues(codebook, codes, bits);
+	}
+
+	/**
+	 * Fits a codebook with 2^bits entries to the first size values by
+	 * splitting their sorted order into equally populated bins, each
+	 * represented by its mean, and encodes every value as its nearest entry.
+	 */
+	static NgramValues quantize(NgramValues values, int size, int bits) {
+		checkBits(bits);
+		float[] sorted = new float[size];
+		for (int i = 0; i < size; i++) {
+			sorted[i] = values.get(i);
+		}
+		Arrays.sort(sorted);
+		int bins = 1 << bits;
+		float[] codebook = new float[bins];
+		int used = 0;
+		for (int bin = 0; bin < bins && size > 0; bin++) {
+			int from = (int) ((long) size * bin / bins);
+			int to = (int) ((long) size * (bin + 1) / bins);
+			if (from == to)
+				continue;
+			double sum = 0.0;
+			for (int i = from; i < to; i++) {
+				sum += sorted[i];
+			}
+			float centroid = (float) (sum / (to - from));
+			if (used == 0 || centroid != codebook[used - 1])
+				codebook[used++] = centroid;
+		}
+		for (int bin = used; bin < bins; bin++) {
+			codebook[bin] = used == 0 ? 0.0f : codebook[used - 1];
+		}
+		long bytes = size * (long) (bits / 8);
+		if (bytes > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Cannot quantize " + size
+					+ " values to " + bits + " bits: " + bytes
+					+ " bytes of codes do not fit in one buffer");
+		ByteBuffer codes = ByteBuffer.allocate((int) bytes);
+		for (int i = 0; i < size; i++) {
+			int code = nearest(codebook, used, values.get(i));
+			if (bits == 8)
+				codes.put(i, (byte) code);
+			else
+				codes.putShort(2 * i, (short) code);
+		}
+		return new QuantizedValues(codebook, codes, bits);
+	}
+
+	private static int nearest(float[] codebook, int used, float value) {
+		int index = Arrays.binarySearch(codebook, 0, Math.max(used, 1), value);
+		if (index >= 0)
+			return index;
+		int above = -index - 1;
+		if (above == 0)
+			return 0;
+		if (above >= used)
+			return Math.max(used - 1, 0);
+		return value - codebook[above - 1] <= codebook[above] - value ? above - 1
+				: above;
+	}
+
+	private static void checkBits(int bits) {
+		if (bits != 8 && bits != 16)
+			throw new IllegalArgumentException(
+					"Quantization supports 8 or 16 bits, not " + bits);
+	}
+
+	private static long padding(long bytes) {
+		return (bytes + 3) & ~3L;
+	}
+
+	private static class FloatValues extends NgramValues {
+		final FloatBuffer values;
+
+		public float get(int index) {
+			return values.get(index);
+		}
+
+		public int getBits() {
+			return FLOAT_BITS;
+		}
+
+		void write(DataOutputStream out, int size) throws IOException {
+			for (int i = 0; i < size; i++) {
+				out.writeFloat(values.get(i));
+			}
+		}
+
+		FloatValues(FloatBuffer values) {
+			this.values = values;
+		}
+	}
+
+	private static class QuantizedValues extends NgramValues {
+		final float[] codebook;
+		final ByteBuffer codes;
+		final int bits;
+
+		public float get(int index) {
+			if (bits == 8)
+				return codebook[codes.get(index) & 0xFF];
+			return codebook[codes.getShort(2 * index) & 0xFFFF];
+		}
+
+		public int getBits() {
+			return bits;
+		}
+
+		void write(DataOutputStream out, int size) throws IOException {
+			for (float entry : codebook) {
+				out.writeFloat(entry);
+			}
+			long bytes = size * (long) (bits / 8);
+			for (int i = 0; i < bytes; i++) {
+				out.writeByte(codes.get(i));
+			}
+			for (long i = bytes; i < padding(bytes); i++) {
+				out.writeByte(0);
+			}
+		}
+
+		QuantizedValues(float[] codebook, ByteBuffer codes, int bits) {
+			this.codebook = codebook;
+			this.codes = codes;
+			this.bits = bits;
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package nlp.assignments;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Generates batches of sentences from a language model on a ForkJoinPool,
+ * the common pool unless the caller supplies one. The batch is cut into
+ * fixed-size chunks, and each chunk gets its own SplittableRandom split from
+ * the seed in chunk order. The output therefore depends only on the seed and
+ * the batch size, not on how many threads run or how the chunks are
+ * scheduled.
+ */
+class ParallelSentenceGenerator {
+
+	/** Source of sentences driven by an explicit random generator. */
+	interface SentenceSampler {
+		List<String> generateSentence(SplittableRandom random);
+
+		/**
+		 * Generates sentences on the common pool; the result depends only on
+		 * the seed and the number of sentences.
+		 */
+		default List<List<String>> generateSentences(int numSentences,
+				long seed) {
+			return generate(this, numSentences, seed);
+		}
+	}
+
+	private static final int CHUNK_SENTENCES = 64;
+
+	public static List<List<String>> generate(final SentenceSampler sampler,
+			int numSentences, long seed) {
+		return generate(sampler, numSentences, seed, ForkJoinPool.commonPool());
+	}
+
+	public static List<List<String>> generate(final SentenceSampler sampler,
+			int numSentences, long seed, ForkJoinPool pool) {
+		SplittableRandom seedRandom = new SplittableRandom(seed);
+		List<Callable<List<List<String>>>> chunks = new ArrayList<Callable<List<List<String>>>>();
+		for (int start = 0; start < numSentences; start += CHUNK_SENTENCES) {
+			final int size = Math.min(CHUNK_SENTENCES, numSentences - start);
+			final SplittableRandom random = seedRandom.split();
+			chunks.add(new Callable<List<List<String>>>() {
+				public List<List<String>> call() {
+					List<List<String>> sentences = new ArrayList<List<String>>(
+							size);
+					for (int i = 0; i < size; i++) {
+						sentences.add(sampler.generateSentence(random));
+					}
+					return sentences;
+				}
+			});
+		}
+		List<List<String>> sentences = new ArrayList<List<String>>(numSentences);
+		try {
+			for (Future<List<List<String>>> chunk : pool.invokeAll(chunks)) {
+				sentences.addAll(chunk.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while generating sentences",
+					e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Problem generating sentences",
+					e.getCause());
+		}
+		return sentences;
+	}
+}
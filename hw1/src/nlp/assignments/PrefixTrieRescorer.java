@@ -0,0 +1,62 @@
+package nlp.assignments;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Scores a list of hypotheses with an IncrementalLanguageModel by inserting
+ * them into a prefix trie. Each trie node is scored once, when it is
+ * created, so hypotheses that share a prefix (as the entries of an n-best
+ * list do) share the LM calls for it.
+ */
+class PrefixTrieRescorer {
+
+	private static class Node {
+		final LanguageModelState state;
+		final double logProbability;
+		Map<String, Node> children;
+
+		Node child(IncrementalLanguageModel languageModel, String word) {
+			if (children == null)
+				children = new HashMap<String, Node>(4);
+			Node child = children.get(word);
+			if (child == null) {
+				LanguageModelState next = languageModel.score(state, word);
+				child = new Node(next, logProbability
+						+ next.getLogProbability());
+				children.put(word, child);
+			}
+			return child;
+		}
+
+		Node(LanguageModelState state, double logProbability) {
+			this.state = state;
+			this.logProbability = logProbability;
+		}
+	}
+
+	private final IncrementalLanguageModel languageModel;
+
+	/**
+	 * Returns the sentence log probability of each hypothesis, in the order
+	 * of the list.
+	 */
+	public double[] getLogProbabilities(List<List<String>> hypotheses) {
+		double[] logProbabilities = new double[hypotheses.size()];
+		Node root = new Node(languageModel.getInitialState(), 0.0);
+		for (int i = 0; i < hypotheses.size(); i++) {
+			Node node = root;
+			for (String word : hypotheses.get(i)) {
+				node = node.child(languageModel, word);
+			}
+			logProbabilities[i] = node.logProbability
+					+ languageModel.getFinalLogProbability(node.state);
+		}
+		return logProbabilities;
+	}
+
+	public PrefixTrieRescorer(IncrementalLanguageModel languageModel) {
+		this.languageModel = languageModel;
+	}
+}
@@ -3,8 +3,6 @@ package nlp.assignments;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Map;
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
 
 import nlp.classify.*;
@@ -54,18 +52,21 @@ public class ProperNameTester {
 
 	private static List<LabeledInstance<String, String>> loadData(
 			String fileName) throws IOException {
-		BufferedReader reader = new BufferedReader(new FileReader(fileName));
+		MappedTokenScanner scanner = MappedTokenScanner.open(fileName);
+		// The few labels are interned; names are nearly all distinct.
+		Vocabulary labels = new Vocabulary();
 		List<LabeledInstance<String, String>> labeledInstances = new ArrayList<LabeledInstance<String, String>>();
-		while (reader.ready()) {
-			String line = reader.readLine();
-			String[] parts = line.split("\t");
-			String label = parts[0];
-			String name = parts[1];
+		while (scanner.nextLine()) {
+			scanner.nextField('\t');
+			String label = labels.get(scanner.addToken(labels));
+			if (!scanner.nextField('\t'))
+				throw new IOException("Missing name after label " + label
+						+ " in " + fileName);
+			String name = scanner.getToken();
 			LabeledInstance<String, String> labeledInstance = new LabeledInstance<String, String>(
 					label, name);
 			labeledInstances.add(labeledInstance);
 		}
-		reader.close();
 		return labeledInstances;
 	}
 
@@ -0,0 +1,151 @@
+package nlp.assignments;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for the scoring path of a language model: table lookups per
+ * order, the order each prediction was resolved at (and so how far it
+ * backed off), out-of-vocabulary words, zero-probability predictions and
+ * sentence probabilities that underflow outside log space.
+ * The counters are LongAdders, so concurrent scorers add to them without
+ * contending on a lock, and a model reports what it saw through a
+ * snapshot instead of printing from the inner loop.
+ */
+final class ScoringMetrics {
+
+	/** A model that keeps scoring metrics. */
+	interface Source {
+		ScoringMetrics getMetrics();
+	}
+
+	private final int maxOrder;
+	private final LongAdder[] lookups;
+	private final LongAdder[] resolvedOrders;
+	private final LongAdder predictions = new LongAdder();
+	private final LongAdder outOfVocabulary = new LongAdder();
+	private final LongAdder zeroProbabilities = new LongAdder();
+	private final LongAdder underflows = new LongAdder();
+
+	/** Counts one probe of the n-gram tables of the given order. */
+	public void recordLookup(int order) {
+		lookups[order].increment();
+	}
+
+	/**
+	 * Counts one predicted word. resolvedOrder is the longest order with an
+	 * observed n-gram for it, 0 if not even the unigram was seen.
+	 */
+	public void recordPrediction(int resolvedOrder, boolean outOfVocabulary,
+			boolean zeroProbability) {
+		predictions.increment();
+		resolvedOrders[resolvedOrder].increment();
+		if (outOfVocabulary)
+			this.outOfVocabulary.increment();
+		if (zeroProbability)
+			zeroProbabilities.increment();
+	}
+
+	/**
+	 * Counts one sentence whose log probability is finite but whose
+	 * probability rounds to zero as a double.
+	 */
+	public void recordUnderflow() {
+		underflows.increment();
+	}
+
+	/**
+	 * Reads the counters. Updates that race with the snapshot may or may not
+	 * be included.
+	 */
+	public Snapshot snapshot() {
+		long[] lookupCounts = new long[maxOrder + 1];
+		long[] resolvedCounts = new long[maxOrder + 1];
+		for (int n = 0; n <= maxOrder; n++) {
+			lookupCounts[n] = lookups[n].sum();
+			resolvedCounts[n] = resolvedOrders[n].sum();
+		}
+		return new Snapshot(maxOrder, lookupCounts, resolvedCounts,
+				predictions.sum(), outOfVocabulary.sum(), zeroProbabilities
+						.sum(), underflows.sum());
+	}
+
+	public ScoringMetrics(int maxOrder) {
+		this.maxOrder = maxOrder;
+		this.lookups = new LongAdder[maxOrder + 1];
+		this.resolvedOrders = new LongAdder[maxOrder + 1];
+		for (int n = 0; n <= maxOrder; n++) {
+			lookups[n] = new LongAdder();
+			resolvedOrders[n] = new LongAdder();
+		}
+	}
+
+	/** Immutable counter values at one point in time. */
+	static final class Snapshot {
+		private final int maxOrder;
+		private final long[] lookups;
+		private final long[] resolvedOrders;
+		private final long predictions;
+		private final long outOfVocabulary;
+		private final long zeroProbabilities;
+		private final long underflows;
+
+		public int getMaxOrder() {
+			return maxOrder;
+		}
+
+		public long getLookups(int order) {
+			return lookups[order];
+		}
+
+		/** Predictions that backed off depth orders below the maximum. */
+		public long getBackoffDepthCount(int depth) {
+			return resolvedOrders[maxOrder - depth];
+		}
+
+		public long getPredictions() {
+			return predictions;
+		}
+
+		public long getOutOfVocabulary() {
+			return outOfVocabulary;
+		}
+
+		public long getZeroProbabilities() {
+			return zeroProbabilities;
+		}
+
+		public long getUnderflows() {
+			return underflows;
+		}
+
+		public String toString() {
+			StringBuilder builder = new StringBuilder();
+			builder.append("Scoring Metrics:\n");
+			builder.append("  Predictions:        " + predictions + "\n");
+			builder.append("  OOV Words:          " + outOfVocabulary + "\n");
+			builder.append("  Zero Probabilities: " + zeroProbabilities + "\n");
+			builder.append("  Underflows:         " + underflows + "\n");
+			for (int n = maxOrder; n >= 1; n--) {
+				builder.append("  Order " + n + " Lookups:    " + lookups[n]
+						+ "\n");
+			}
+			for (int depth = 0; depth <= maxOrder; depth++) {
+				builder.append("  Backoff Depth " + depth + ":    "
+						+ getBackoffDepthCount(depth) + "\n");
+			}
+			return builder.toString();
+		}
+
+		Snapshot(int maxOrder, long[] lookups, long[] resolvedOrders,
+				long predictions, long outOfVocabulary, long zeroProbabilities,
+				long underflows) {
+			this.maxOrder = maxOrder;
+			this.lookups = lookups;
+			this.resolvedOrders = resolvedOrders;
+			this.predictions = predictions;
+			this.outOfVocabulary = outOfVocabulary;
+			this.zeroProbabilities = zeroProbabilities;
+			this.underflows = underflows;
+		}
+	}
+}
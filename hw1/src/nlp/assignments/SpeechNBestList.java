@@ -32,30 +32,33 @@ class SpeechNBestList {
 		public static List<SpeechNBestList> readSpeechNBestLists(String path,
 				Set<String> vocabulary) throws IOException {
 			List<SpeechNBestList> speechNBestLists = new ArrayList<SpeechNBestList>();
-			BufferedReader correctSentenceReader = open(path + "/REF.HUB1");
-			Map<String, List<String>> correctSentenceMap = readCorrectSentences(correctSentenceReader);
+			// Words of all lists are interned here, so the many hypotheses
+			// that repeat a word share one String for it.
+			Vocabulary words = new Vocabulary();
+			Map<String, List<String>> correctSentenceMap = readCorrectSentences(
+					MappedTokenScanner.open(path + "/REF.HUB1"), words);
 			List<String> prefixList = getPrefixes(path);
 			for (String prefix : prefixList) {
-				BufferedReader wordReader = open(path + "/" + prefix);
-				BufferedReader scoreReader = open(path + "/" + prefix + ".acc");
+				MappedTokenScanner wordScanner = MappedTokenScanner.open(path
+						+ "/" + prefix);
+				MappedTokenScanner scoreScanner = MappedTokenScanner.open(path
+						+ "/" + prefix + ".acc");
 				List<String> correctSentence = correctSentenceMap.get(prefix);
 				SpeechNBestList speechNBestList = buildSpeechNBestList(
-						correctSentence, wordReader, scoreReader, vocabulary);
+						correctSentence, wordScanner, scoreScanner, words,
+						vocabulary);
 				if (speechNBestList != null)
 					speechNBestLists.add(speechNBestList);
-				wordReader.close();
-				scoreReader.close();
 			}
-			correctSentenceReader.close();
 			return speechNBestLists;
 		}
 
 		private static SpeechNBestList buildSpeechNBestList(
-				List<String> correctSentence, BufferedReader wordReader,
-				BufferedReader scoreReader, Set<String> vocabulary)
-				throws IOException {
-			List<Double> scoreList = readScores(scoreReader);
-			List<List<String>> sentenceList = readSentences(wordReader);
+				List<String> correctSentence, MappedTokenScanner wordScanner,
+				MappedTokenScanner scoreScanner, Vocabulary words,
+				Set<String> vocabulary) {
+			List<Double> scoreList = readScores(scoreScanner);
+			List<List<String>> sentenceList = readSentences(wordScanner, words);
 			List<List<String>> uniqueSentenceList = new ArrayList<List<String>>();
 			Map<List<String>, Double> sentencesToScores = new HashMap<List<String>, Double>();
 			List<String> tokenizedCorrectSentence = null;
@@ -110,16 +113,12 @@ class SpeechNBestList {
 			return true;
 		}
 
-		private static List<Double> readScores(BufferedReader scoreReader)
-				throws IOException {
+		private static List<Double> readScores(MappedTokenScanner scoreScanner) {
 			List<Double> scoreList = new ArrayList<Double>();
-			while (scoreReader.ready()) {
-				String line = scoreReader.readLine();
-				String[] scoreStrings = line.split("\\s+");
+			while (scoreScanner.nextLine()) {
 				double totalScore = 0.0;
-				for (int i = 0; i < scoreStrings.length; i++) {
-					String scoreString = scoreStrings[i];
-					totalScore += Double.parseDouble(scoreString);
+				while (scoreScanner.nextToken()) {
+					totalScore += Double.parseDouble(scoreScanner.getToken());
 				}
 				scoreList.add(totalScore);
 			}
@@ -127,21 +126,24 @@ class SpeechNBestList {
 		}
 
 		private static List<List<String>> readSentences(
-				BufferedReader wordReader) throws IOException {
+				MappedTokenScanner wordScanner, Vocabulary words) {
 			List<List<String>> sentenceList = new ArrayList<List<String>>();
-			while (wordReader.ready()) {
-				String line = wordReader.readLine();
-				String[] words = line.split("\\s+");
-				List<String> sentence = new ArrayList<String>();
-				for (int i = 0; i < words.length; i++) {
-					String word = words[i];
-					sentence.add(word.toLowerCase());
-				}
-				sentenceList.add(sentence);
+			while (wordScanner.nextLine()) {
+				sentenceList.add(readSentence(wordScanner, words));
 			}
 			return sentenceList;
 		}
 
+		/** Reads the lowercased tokens of the scanner's current line. */
+		private static List<String> readSentence(MappedTokenScanner scanner,
+				Vocabulary words) {
+			List<String> sentence = new ArrayList<String>();
+			while (scanner.nextToken()) {
+				sentence.add(words.get(scanner.addLowerCaseToken(words)));
+			}
+			return sentence;
+		}
+
 		private static List<String> getPrefixes(String path) {
 			Set<String> prefixSet = new HashSet<String>();
 			List<String> prefixList = new ArrayList<String>();
@@ -166,27 +168,17 @@ class SpeechNBestList {
 		}
 
 		private static Map<String, List<String>> readCorrectSentences(
-				BufferedReader reader) throws IOException {
+				MappedTokenScanner scanner, Vocabulary words) {
 			Map<String, List<String>> correctSentenceMap = new HashMap<String, List<String>>();
-			while (reader.ready()) {
-				String line = reader.readLine();
-				String[] words = line.split("\\s+");
-				List<String> sentence = new ArrayList<String>();
-				for (int i = 0; i < words.length - 1; i++) {
-					String word = words[i];
-					sentence.add(word.toLowerCase());
-				}
-				String idToken = words[words.length - 1].toLowerCase();
+			while (scanner.nextLine()) {
+				// The last token of a reference line is its "(id)".
+				List<String> sentence = readSentence(scanner, words);
+				String idToken = sentence.remove(sentence.size() - 1);
 				String sentenceID = idToken.substring(1, idToken.length() - 1);
 				correctSentenceMap.put(sentenceID, sentence);
 			}
 			return correctSentenceMap;
 		}
-
-		private static BufferedReader open(String fileName)
-				throws FileNotFoundException {
-			return new BufferedReader(new FileReader(fileName));
-		}
 	}
 
 }
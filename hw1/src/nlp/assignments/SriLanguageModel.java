@@ -1,68 +1,138 @@
 package nlp.assignments;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
-import nlp.langmodel.LanguageModel;
-import nlp.util.Counter;
-
 /**
  * A dummy language model -- uses empirical unigram counts, plus a single
  * fictitious count for unknown words.
  */
-class SriLanguageModel implements LanguageModel {
+class SriLanguageModel implements IncrementalLanguageModel,
+		ScoringMetrics.Source {
 
 	static final String START = "<s>";
 	static final String STOP = "</s>";
 	static final String UNKNOWN = "<unk>";
 
-	Counter<String> probabilities = new Counter<String>();
-	Counter<String> backoffs = new Counter<String>();
+	BackoffNgramTable table;
+	int startId;
+	int unknownId;
+	final ScoringMetrics metrics = new ScoringMetrics(3);
 
 	public double getTrigramProbability(String prePreviousWord,
 			String previousWord, String word) {
-		double trigramProbability = probabilities.getCount(prePreviousWord
-				+ " " + previousWord + " " + word);
-		if (trigramProbability != 0)
-			return Math.exp(trigramProbability);
-
-		double bigramProbability = probabilities.getCount(previousWord + " "
-				+ word);
-		if (bigramProbability != 0)
-			return Math.exp(bigramProbability
-					+ backoffs.getCount(prePreviousWord + " " + previousWord));
-
-		double unigramProbability = probabilities.getCount(word);
-		if (unigramProbability == 0) {
-			System.out.println("UNKNOWN Word: " + word);
-			unigramProbability = probabilities.getCount(UNKNOWN);
-		}
-		return Math.exp(unigramProbability + backoffs.getCount(previousWord));
+		return Math.exp(getTrigramLogProbability(prePreviousWord,
+				previousWord, word));
+	}
+
+	/**
+	 * Returns the back-off log probability straight from the stored
+	 * natural-log values, without exponentiating.
+	 */
+	public double getTrigramLogProbability(String prePreviousWord,
+			String previousWord, String word) {
+		int[] trigram = { table.indexOf(prePreviousWord),
+				table.indexOf(previousWord), table.indexOf(word) };
+		return getTrigramLogProbability(trigram);
+	}
+
+	/**
+	 * Scores trigram[2] given trigram[0..1], all as vocabulary ids. The array
+	 * is used as scratch space and its last entry may be overwritten.
+	 */
+	private double getTrigramLogProbability(int[] trigram) {
+		metrics.recordLookup(3);
+		double trigramProbability = table.getLogProbability(trigram, 0, 3);
+		if (!Double.isNaN(trigramProbability))
+			return recordPrediction(3, false, trigramProbability);
+
+		metrics.recordLookup(2);
+		double bigramProbability = table.getLogProbability(trigram, 1, 2);
+		if (!Double.isNaN(bigramProbability))
+			return recordPrediction(2, false, bigramProbability
+					+ table.getBackoff(trigram, 0, 2));
+
+		boolean outOfVocabulary = trigram[2] == Vocabulary.NOT_FOUND;
+		if (outOfVocabulary)
+			trigram[2] = unknownId;
+		metrics.recordLookup(1);
+		double unigramProbability = table.getLogProbability(trigram, 2, 1);
+		return recordPrediction(outOfVocabulary ? 0 : 1, outOfVocabulary,
+				unigramProbability + table.getBackoff(trigram, 1, 1));
+	}
+
+	private double recordPrediction(int resolvedOrder,
+			boolean outOfVocabulary, double logProbability) {
+		metrics.recordPrediction(resolvedOrder, outOfVocabulary,
+				logProbability == Double.NEGATIVE_INFINITY);
+		return logProbability;
+	}
+
+	public ScoringMetrics getMetrics() {
+		return metrics;
 	}
 
 	public double getSentenceProbability(List<String> sentence) {
-		List<String> stoppedSentence = new ArrayList<String>(sentence);
-		stoppedSentence.add(0, START);
-		stoppedSentence.add(0, START);
-		stoppedSentence.add(STOP);
-		double probability = 1.0;
-		String prePreviousWord = stoppedSentence.get(0);
-		String previousWord = stoppedSentence.get(1);
-		for (int i = 2; i < stoppedSentence.size(); i++) {
-			String word = stoppedSentence.get(i);
-			probability *= getTrigramProbability(prePreviousWord, previousWord,
-					word);
-			prePreviousWord = previousWord;
-			previousWord = word;
-		}
-		if (probability == 0)
-			System.err.println("Underflow");
+		double logProbability = getSentenceLogProbability(sentence);
+		double probability = Math.exp(logProbability);
+		if (probability == 0 && logProbability != Double.NEGATIVE_INFINITY)
+			metrics.recordUnderflow();
 		return probability;
 	}
 
+	public double getSentenceLogProbability(List<String> sentence) {
+		return scoreSentence(sentence, null);
+	}
+
+	public double[] getWordLogProbabilities(List<String> sentence) {
+		double[] wordLogProbabilities = new double[sentence.size() + 1];
+		scoreSentence(sentence, wordLogProbabilities);
+		return wordLogProbabilities;
+	}
+
+	private double scoreSentence(List<String> sentence,
+			double[] wordLogProbabilities) {
+		double logProbability = 0.0;
+		int[] trigram = new int[3];
+		int prePreviousId = startId;
+		int previousId = startId;
+		for (int i = 0; i <= sentence.size(); i++) {
+			String word = i < sentence.size() ? sentence.get(i) : STOP;
+			int wordId = table.indexOf(word);
+			trigram[0] = prePreviousId;
+			trigram[1] = previousId;
+			trigram[2] = wordId;
+			double wordLogProbability = getTrigramLogProbability(trigram);
+			if (wordLogProbabilities != null)
+				wordLogProbabilities[i] = wordLogProbability;
+			logProbability += wordLogProbability;
+			prePreviousId = previousId;
+			previousId = wordId;
+		}
+		return logProbability;
+	}
+
+	/** The state context packs the table ids of the last two words. */
+	public LanguageModelState getInitialState() {
+		return new LanguageModelState(NgramKeys.pack(startId, startId), null,
+				0.0);
+	}
+
+	public LanguageModelState score(LanguageModelState state, String word) {
+		int wordId = table.indexOf(word);
+		int previousId = NgramKeys.second(state.context);
+		int[] trigram = { NgramKeys.first(state.context), previousId, wordId };
+		double logProbability = getTrigramLogProbability(trigram);
+		return new LanguageModelState(NgramKeys.pack(previousId, wordId), null,
+				logProbability);
+	}
+
+	public double getFinalLogProbability(LanguageModelState state) {
+		int[] trigram = { NgramKeys.first(state.context),
+				NgramKeys.second(state.context), table.indexOf(STOP) };
+		return getTrigramLogProbability(trigram);
+	}
+
 	String generateWord() {
 		return UNKNOWN;
 	}
@@ -77,32 +147,41 @@ class SriLanguageModel implements LanguageModel {
 		return sentence;
 	}
 
+	SriLanguageModel(BackoffNgramTable table) {
+		this.table = table;
+		startId = table.indexOf(START);
+		unknownId = table.indexOf(UNKNOWN);
+		checkUnknown(table.getOrder() + "-gram table");
+	}
+
+	/**
+	 * Loads either an ARPA file or a file compiled by ArpaCompiler; the
+	 * latter is memory-mapped rather than parsed.
+	 */
 	public SriLanguageModel(String fileName) {
-		BufferedReader reader;
 		try {
-			reader = new BufferedReader(new FileReader(fileName));
-			String line = reader.readLine();
-			while (line != null) {
-				if (!line.isEmpty() && line.charAt(0) == '-') {
-					String[] parts = line.split("\t");
-					if (parts.length != 2 && parts.length != 3) {
-						System.err.println("BUG: " + Arrays.toString(parts));
-					}
-					probabilities.setCount(parts[1],
-							Double.parseDouble(parts[0]) / Math.log10(Math.E));
-					if (parts.length == 3) {
-						backoffs.setCount(
-								parts[1],
-								Double.parseDouble(parts[2])
-										/ Math.log10(Math.E));
-					}
-				}
-				line = reader.readLine();
+			if (BackoffNgramTable.Reader.isBinary(fileName)) {
+				table = BackoffNgramTable.Reader.map(fileName);
+			} else {
+				table = BackoffNgramTable.Reader.readArpa(fileName);
 			}
+			startId = table.indexOf(START);
+			unknownId = table.indexOf(UNKNOWN);
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
+		if (table != null)
+			checkUnknown(fileName);
+	}
 
+	/**
+	 * OOV words are scored as UNKNOWN, so a closed-vocabulary model, which
+	 * has no UNKNOWN unigram, would give them no probability at all.
+	 */
+	private void checkUnknown(String source) {
+		if (unknownId == Vocabulary.NOT_FOUND)
+			throw new IllegalArgumentException("No " + UNKNOWN + " unigram in "
+					+ source + "; build the model with an open vocabulary");
 	}
 
 }
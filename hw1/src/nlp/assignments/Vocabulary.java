@@ -0,0 +1,187 @@
+package nlp.assignments;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * A dense word-to-int mapping shared by the compiled language models. Ids are
+ * assigned in insertion order starting at zero, so they can index plain
+ * arrays. Lookups use open addressing over a power-of-two table, avoiding the
+ * boxing of a HashMap<String, Integer>.
+ */
+class Vocabulary {
+
+	static final int NOT_FOUND = -1;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private String[] words;
+	private int[] table;
+	private int size;
+
+	public int indexOf(String word) {
+		int mask = table.length - 1;
+		int slot = hash(word) & mask;
+		while (true) {
+			int id = table[slot];
+			if (id == NOT_FOUND)
+				return NOT_FOUND;
+			if (words[id].equals(word))
+				return id;
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	/**
+	 * Looks up the word spelled by the UTF-8 bytes buffer[offset, offset +
+	 * length) without creating a String when the bytes are ASCII. The hash
+	 * is computed exactly as String.hashCode would for the same characters.
+	 */
+	public int indexOf(ByteBuffer buffer, int offset, int length) {
+		int slot = findSlot(buffer, offset, length, false);
+		if (slot < 0)
+			return indexOf(decode(buffer, offset, length));
+		return table[slot];
+	}
+
+	/**
+	 * Adds the word spelled by the UTF-8 bytes buffer[offset, offset +
+	 * length), creating a String only when the word is new or not ASCII.
+	 */
+	public int add(ByteBuffer buffer, int offset, int length) {
+		return add(buffer, offset, length, false);
+	}
+
+	/**
+	 * Adds the lowercased word spelled by the UTF-8 bytes buffer[offset,
+	 * offset + length), as add(decode(...).toLowerCase()) would. ASCII words
+	 * are lowercased byte by byte while probing.
+	 */
+	public int addLowerCase(ByteBuffer buffer, int offset, int length) {
+		return add(buffer, offset, length, true);
+	}
+
+	private int add(ByteBuffer buffer, int offset, int length,
+			boolean lowerCase) {
+		int slot = findSlot(buffer, offset, length, lowerCase);
+		if (slot < 0) {
+			String word = decode(buffer, offset, length);
+			return add(lowerCase ? word.toLowerCase() : word);
+		}
+		if (table[slot] != NOT_FOUND)
+			return table[slot];
+		String word = decode(buffer, offset, length);
+		return insert(lowerCase ? word.toLowerCase() : word, slot);
+	}
+
+	/**
+	 * Returns the slot holding the ASCII word in buffer[offset, offset +
+	 * length), or the empty slot where it belongs; -1 if the bytes are not
+	 * ASCII.
+	 */
+	private int findSlot(ByteBuffer buffer, int offset, int length,
+			boolean lowerCase) {
+		int stringHash = 0;
+		for (int i = 0; i < length; i++) {
+			byte b = buffer.get(offset + i);
+			if (b < 0)
+				return -1;
+			stringHash = 31 * stringHash + (lowerCase ? toLowerCase(b) : b);
+		}
+		int mask = table.length - 1;
+		int slot = mix(stringHash) & mask;
+		while (true) {
+			int id = table[slot];
+			if (id == NOT_FOUND
+					|| matches(words[id], buffer, offset, length, lowerCase))
+				return slot;
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private static boolean matches(String word, ByteBuffer buffer,
+			int offset, int length, boolean lowerCase) {
+		if (word.length() != length)
+			return false;
+		for (int i = 0; i < length; i++) {
+			byte b = buffer.get(offset + i);
+			if (word.charAt(i) != (lowerCase ? toLowerCase(b) : b))
+				return false;
+		}
+		return true;
+	}
+
+	private static int toLowerCase(byte b) {
+		return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+	}
+
+	static String decode(ByteBuffer buffer, int offset, int length) {
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = buffer.get(offset + i);
+		}
+		return new String(bytes, UTF8);
+	}
+
+	public int add(String word) {
+		int mask = table.length - 1;
+		int slot = hash(word) & mask;
+		while (true) {
+			int id = table[slot];
+			if (id == NOT_FOUND)
+				break;
+			if (words[id].equals(word))
+				return id;
+			slot = (slot + 1) & mask;
+		}
+		return insert(word, slot);
+	}
+
+	/** Stores a new word in an empty slot found by probing for it. */
+	private int insert(String word, int slot) {
+		if (size == words.length)
+			words = Arrays.copyOf(words, size * 2);
+		int id = size++;
+		words[id] = word;
+		table[slot] = id;
+		if (size * 2 > table.length)
+			rehash(table.length * 2);
+		return id;
+	}
+
+	public String get(int id) {
+		return words[id];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	private void rehash(int capacity) {
+		table = new int[capacity];
+		Arrays.fill(table, NOT_FOUND);
+		int mask = capacity - 1;
+		for (int id = 0; id < size; id++) {
+			int slot = hash(words[id]) & mask;
+			while (table[slot] != NOT_FOUND)
+				slot = (slot + 1) & mask;
+			table[slot] = id;
+		}
+	}
+
+	private static int hash(String word) {
+		return mix(word.hashCode());
+	}
+
+	private static int mix(int stringHash) {
+		int h = stringHash * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	public Vocabulary() {
+		words = new String[16];
+		table = new int[32];
+		Arrays.fill(table, NOT_FOUND);
+	}
+}
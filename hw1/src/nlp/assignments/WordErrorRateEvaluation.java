@@ -0,0 +1,211 @@
+package nlp.assignments;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * The edit distance of every hypothesis of a set of SpeechNBestLists to its
+ * list's reference, computed once and kept in one double array per list. The
+ * WER baselines (best, worst and average path) and per-list statistics are
+ * gathered in the same pass, and a language model's WER only has to pick
+ * hypotheses by score and read their cached distances.
+ * <p/>
+ * WERs are total distance over total reference words, as in
+ * LanguageModelTester. Lists are independent, so their distances are
+ * computed in parallel; every list writes only its own slots, and totals
+ * are summed in list order afterwards, so the results do not depend on the
+ * number of threads.
+ */
+class WordErrorRateEvaluation {
+
+	static final int CHUNK_LISTS = 8;
+
+	private final List<SpeechNBestList> speechNBestLists;
+	private final double[][] distances;
+	private final double[] minimumDistances;
+	private final double[] maximumDistances;
+	private final double[] meanDistances;
+	private final int[] oracleIndices;
+	private final double totalWords;
+
+	public List<SpeechNBestList> getSpeechNBestLists() {
+		return speechNBestLists;
+	}
+
+	public int size() {
+		return speechNBestLists.size();
+	}
+
+	/** The distances of list's hypotheses, in n-best order. */
+	public double[] getDistances(int list) {
+		return distances[list];
+	}
+
+	public double getMinimumDistance(int list) {
+		return minimumDistances[list];
+	}
+
+	public double getMaximumDistance(int list) {
+		return maximumDistances[list];
+	}
+
+	public double getMeanDistance(int list) {
+		return meanDistances[list];
+	}
+
+	/** The first hypothesis of the list with the smallest distance. */
+	public int getOracleIndex(int list) {
+		return oracleIndices[list];
+	}
+
+	/** The WER of always choosing the closest hypothesis. */
+	public double getLowerBound() {
+		return sum(minimumDistances) / totalWords;
+	}
+
+	/** The WER of always choosing the farthest hypothesis. */
+	public double getUpperBound() {
+		return sum(maximumDistances) / totalWords;
+	}
+
+	/** The expected WER of choosing hypotheses uniformly at random. */
+	public double getRandomChoice() {
+		return sum(meanDistances) / totalWords;
+	}
+
+	/**
+	 * Returns the hypothesis with the highest score: the first one that no
+	 * later score exceeds.
+	 */
+	public static int getBestIndex(double[] scores) {
+		int best = 0;
+		for (int j = 1; j < scores.length; j++) {
+			if (scores[j] > scores[best])
+				best = j;
+		}
+		return best;
+	}
+
+	/**
+	 * Returns the distance of choosing list's hypothesis by scores, averaged
+	 * over the hypotheses that tie for the highest score.
+	 */
+	public double getChosenDistance(int list, double[] scores) {
+		double[] listDistances = distances[list];
+		int best = getBestIndex(scores);
+		double distance = listDistances[best];
+		double numWithBestScore = 1.0;
+		for (int j = 0; j < scores.length; j++) {
+			if (j != best && scores[j] == scores[best]) {
+				distance += listDistances[j];
+				numWithBestScore += 1.0;
+			}
+		}
+		return distance / numWithBestScore;
+	}
+
+	/** Returns the WER of the distances chosen for each list. */
+	public double getWordErrorRate(double[] chosenDistances) {
+		return sum(chosenDistances) / totalWords;
+	}
+
+	private static double sum(double[] values) {
+		double sum = 0.0;
+		for (double value : values) {
+			sum += value;
+		}
+		return sum;
+	}
+
+	/**
+	 * Runs the chunks on the executor and waits for all of them, rethrowing
+	 * the first failure.
+	 */
+	static void invokeAll(List<Callable<Void>> chunks, ExecutorService executor) {
+		try {
+			for (Future<Void> chunk : executor.invokeAll(chunks)) {
+				chunk.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while evaluating n-best lists",
+					e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Problem evaluating n-best lists", e
+					.getCause());
+		}
+	}
+
+	/** Computes the distances on the common ForkJoinPool. */
+	public WordErrorRateEvaluation(List<SpeechNBestList> speechNBestLists) {
+		this(speechNBestLists, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Computes the distances of chunks of CHUNK_LISTS lists in parallel on
+	 * the executor, each chunk with its own EditDistance.
+	 */
+	public WordErrorRateEvaluation(
+			final List<SpeechNBestList> speechNBestLists,
+			ExecutorService executor) {
+		this.speechNBestLists = speechNBestLists;
+		int numLists = speechNBestLists.size();
+		distances = new double[numLists][];
+		minimumDistances = new double[numLists];
+		maximumDistances = new double[numLists];
+		meanDistances = new double[numLists];
+		oracleIndices = new int[numLists];
+		List<Callable<Void>> chunks = new ArrayList<Callable<Void>>();
+		for (int start = 0; start < numLists; start += CHUNK_LISTS) {
+			final int chunkStart = start;
+			final int chunkEnd = Math.min(start + CHUNK_LISTS, numLists);
+			chunks.add(new Callable<Void>() {
+				public Void call() {
+					LanguageModelTester.EditDistance editDistance = new LanguageModelTester.EditDistance();
+					for (int i = chunkStart; i < chunkEnd; i++) {
+						computeDistances(i, editDistance);
+					}
+					return null;
+				}
+			});
+		}
+		invokeAll(chunks, executor);
+		double words = 0.0;
+		for (SpeechNBestList speechNBestList : speechNBestLists) {
+			words += speechNBestList.getCorrectSentence().size();
+		}
+		totalWords = words;
+	}
+
+	private void computeDistances(int list,
+			LanguageModelTester.EditDistance editDistance) {
+		SpeechNBestList speechNBestList = speechNBestLists.get(list);
+		List<String> correctSentence = speechNBestList.getCorrectSentence();
+		List<List<String>> guesses = speechNBestList.getNBestSentences();
+		double[] listDistances = new double[guesses.size()];
+		double minimum = Double.POSITIVE_INFINITY;
+		double maximum = Double.NEGATIVE_INFINITY;
+		double sum = 0.0;
+		for (int j = 0; j < guesses.size(); j++) {
+			double distance = editDistance.getDistance(correctSentence, guesses
+					.get(j));
+			listDistances[j] = distance;
+			if (distance < minimum) {
+				minimum = distance;
+				oracleIndices[list] = j;
+			}
+			if (distance > maximum)
+				maximum = distance;
+			sum += distance;
+		}
+		distances[list] = listDistances;
+		minimumDistances[list] = minimum;
+		maximumDistances[list] = maximum;
+		meanDistances[list] = sum / guesses.size();
+	}
+}
@@ -0,0 +1,55 @@
+package nlp.assignments;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Training on one batch and updating with another must give the same model
+ * as training on both at once.
+ */
+public class EmpiricalBigramLanguageModelTest {
+
+	private static List<List<String>> sentences(String... lines) {
+		List<List<String>> sentences = new ArrayList<List<String>>();
+		for (String line : lines) {
+			sentences.add(Arrays.asList(line.split(" ")));
+		}
+		return sentences;
+	}
+
+	@Test
+	public void updateMatchesTrainingOnBothBatches() {
+		List<List<String>> first = sentences("the cat sat", "the dog sat",
+				"a cat ran", "the cat ran away");
+		List<List<String>> second = sentences("the bird sang", "a dog sat",
+				"the cat sat down", "a bird ran");
+		List<List<String>> all = new ArrayList<List<String>>(first);
+		all.addAll(second);
+
+		EmpiricalBigramLanguageModel incremental = new EmpiricalBigramLanguageModel(
+				NgramCounts.count(first, 2, new Vocabulary()));
+		incremental.getSentenceLogProbability(first.get(0));
+		incremental.updateCounters(second);
+		EmpiricalBigramLanguageModel batch = new EmpiricalBigramLanguageModel(
+				NgramCounts.count(all, 2, new Vocabulary()));
+
+		List<List<String>> testSentences = new ArrayList<List<String>>(all);
+		testSentences.addAll(sentences("the fish sat", "a cat sang"));
+		for (List<String> sentence : testSentences) {
+			assertEquals(batch.getSentenceLogProbability(sentence),
+					incremental.getSentenceLogProbability(sentence), 1e-12);
+			for (String word : sentence) {
+				assertEquals(batch.getKneserNeyBigram(
+						EmpiricalBigramLanguageModel.START, word),
+						incremental.getKneserNeyBigram(
+								EmpiricalBigramLanguageModel.START, word),
+						1e-12);
+			}
+		}
+	}
+}